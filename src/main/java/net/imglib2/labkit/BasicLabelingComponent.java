@@ -6,6 +6,10 @@ import bdv.util.BdvHandlePanel;
 import bdv.util.BdvOptions;
 import bdv.util.BdvSource;
 import bdv.viewer.DisplayMode;
+import bdv.viewer.ViewerPanel;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.Interval;
+import net.imglib2.RealInterval;
 import net.imglib2.labkit.actions.ToggleVisibility;
 import net.imglib2.labkit.bdv.BdvAutoContrast;
 import net.imglib2.labkit.bdv.BdvLayer;
@@ -16,6 +20,7 @@ import net.imglib2.labkit.brush.SelectLabelController;
 import net.imglib2.labkit.labeling.LabelsLayer;
 import net.imglib2.labkit.models.ImageLabelingModel;
 import net.imglib2.labkit.panel.LabelToolsPanel;
+import net.imglib2.realtransform.AffineTransform3D;
 import net.miginfocom.swing.MigLayout;
 import org.scijava.ui.behaviour.util.AbstractNamedAction;
 
@@ -75,6 +80,7 @@ public class BasicLabelingComponent implements AutoCloseable {
 
 	private void initLabelsLayer() {
 		addBdvLayer(new LabelsLayer(model));
+		model.dataChangedNotifier().add(this::requestRepaint);
 	}
 
 	public BdvSource addBdvLayer(BdvLayer layer) {
@@ -116,6 +122,39 @@ public class BasicLabelingComponent implements AutoCloseable {
 		bdvHandle.getViewerPanel().requestRepaint();
 	}
 
+	private void requestRepaint(Interval interval) {
+		if (isVisible(interval)) requestRepaint();
+	}
+
+	/**
+	 * Returns false, if the given interval of the labeling is outside of the
+	 * screen, the current slice or the current time point.
+	 */
+	private boolean isVisible(Interval interval) {
+		ViewerPanel viewer = bdvHandle.getViewerPanel();
+		int n = interval.numDimensions();
+		if (model.isTimeSeries()) {
+			n--;
+			long t = viewer.getState().getCurrentTimepoint();
+			if (t < interval.min(n) || t > interval.max(n)) return false;
+		}
+		double[] min = new double[3];
+		double[] max = new double[3];
+		for (int d = 0; d < n; d++) {
+			min[d] = interval.min(d) - 0.5;
+			max[d] = interval.max(d) + 0.5;
+		}
+		AffineTransform3D transform = new AffineTransform3D();
+		viewer.getState().getViewerTransform(transform);
+		transform.concatenate(model.labelTransformation());
+		RealInterval bounds = transform.estimateBounds(new FinalRealInterval(min,
+			max));
+		return bounds.realMax(0) >= 0 && bounds.realMin(0) <= viewer.getDisplay()
+			.getWidth() && bounds.realMax(1) >= 0 && bounds.realMin(1) <= viewer
+				.getDisplay().getHeight() && bounds.realMax(2) >= -1 && bounds
+					.realMin(2) <= 1;
+	}
+
 	@Override
 	public void close() {
 		bdvHandle.close();
@@ -11,6 +11,7 @@ import net.imglib2.labkit.actions.LabelingIoAction;
 import net.imglib2.labkit.actions.ResetViewAction;
 import net.imglib2.labkit.actions.SegmentationAsLabelAction;
 import net.imglib2.labkit.actions.SegmentationExportAction;
+import net.imglib2.labkit.actions.UndoAction;
 import net.imglib2.labkit.menu.MenuKey;
 import net.imglib2.labkit.models.ColoredLabelsModel;
 import net.imglib2.labkit.models.DefaultSegmentationModel;
@@ -66,6 +67,7 @@ public class SegmentationComponent implements AutoCloseable {
 		new AddLabelingIoAction(extensible, labelingModel.labeling());
 		new SegmentationExportAction(extensible);
 		new ResetViewAction(extensible, labelingModel);
+		new UndoAction(extensible, labelingModel);
 		new BatchSegmentAction(extensible, selectedSegmenter);
 		new SegmentationAsLabelAction(extensible, segmentationModel);
 		new BitmapImportExportAction(extensible, labelingModel);
@@ -2,8 +2,6 @@
 package net.imglib2.labkit.actions;
 
 import io.scif.services.DatasetIOService;
-import net.imagej.Dataset;
-import net.imagej.DatasetService;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.Converters;
 import net.imglib2.img.display.imagej.ImageJFunctions;
@@ -12,10 +10,9 @@ import net.imglib2.labkit.MenuBar;
 import net.imglib2.labkit.labeling.Label;
 import net.imglib2.labkit.labeling.Labeling;
 import net.imglib2.labkit.models.ImageLabelingModel;
-import net.imglib2.type.logic.BitType;
+import net.imglib2.labkit.utils.TiledTiffWriter;
 import net.imglib2.type.logic.BoolType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.util.Intervals;
 import org.scijava.plugin.Parameter;
 
@@ -29,9 +26,6 @@ public class BitmapImportExportAction extends AbstractFileIoAction {
 
 	private final Extensible extensible;
 
-	@Parameter
-	DatasetService datasetService;
-
 	@Parameter
 	DatasetIOService datasetIOService;
 
@@ -60,9 +54,8 @@ public class BitmapImportExportAction extends AbstractFileIoAction {
 
 	private void exportLabel(Label label, String filename) throws IOException {
 		Labeling labeling = model.labeling().get();
-		RandomAccessibleInterval<BitType> bitmap = labeling.getRegion(label);
-		Dataset dataset = datasetService.create(toUnsignedByteType(bitmap));
-		datasetIOService.save(dataset, filename);
+		TiledTiffWriter.write(labeling.getRegion(label), labeling.iterableRegions()
+			.get(label).cursor(), TiledTiffWriter.PixelType.UINT8, filename);
 	}
 
 	private void importLabel(Void ignore, String filename) throws IOException {
@@ -88,11 +81,4 @@ public class BitmapImportExportAction extends AbstractFileIoAction {
 		return Converters.convert(image, (in, out) -> out.set(in
 			.getRealDouble() > 0.5), new BoolType());
 	}
-
-	private RandomAccessibleInterval<UnsignedByteType> toUnsignedByteType(
-		RandomAccessibleInterval<BitType> bitmap)
-	{
-		return Converters.convert(bitmap, (in, out) -> out.set(in.getInteger()),
-			new UnsignedByteType());
-	}
 }
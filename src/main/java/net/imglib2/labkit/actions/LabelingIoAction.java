@@ -7,6 +7,7 @@ import net.imglib2.labkit.MenuBar;
 import net.imglib2.labkit.models.LabelingModel;
 import net.imglib2.labkit.utils.LabkitUtils;
 import net.imglib2.labkit.labeling.Labeling;
+import net.imglib2.labkit.labeling.LabelingAutosave;
 import net.imglib2.labkit.labeling.LabelingSerializer;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.type.numeric.IntegerType;
@@ -21,6 +22,7 @@ public class LabelingIoAction extends AbstractFileIoAction {
 
 	private final LabelingModel labelingModel;
 	private final LabelingSerializer serializer;
+	private volatile LabelingAutosave autosave;
 
 	public LabelingIoAction(DefaultExtensible extensible,
 		LabelingModel labelingModel)
@@ -40,9 +42,24 @@ public class LabelingIoAction extends AbstractFileIoAction {
 
 				@Override
 				public void run(Void ignore, String filename) throws Exception {
-					serializer.save(labelingModel.labeling().get(), filename);
+					save(filename);
 				}
 			}, "ctrl S");
+		initSaveAction(MenuBar.LABELING_MENU, "Autosave Labeling ...", 2.5f,
+			new Action<Void>()
+			{
+
+				@Override
+				public String suggestedFile() {
+					return LabelingIoAction.this.labelingModel.defaultFileName();
+				}
+
+				@Override
+				public void run(Void ignore, String filename) throws Exception {
+					startAutosave(filename);
+				}
+			}, "");
+		labelingModel.labeling().notifier().add(this::onLabelingChanged);
 		initOpenAction(MenuBar.LABELING_MENU, "Open Labeling ...", 1, this::open,
 			"ctrl O");
 		Runnable action = () -> {
@@ -54,6 +71,41 @@ public class LabelingIoAction extends AbstractFileIoAction {
 			ignore -> action.run(), null, "");
 	}
 
+	/**
+	 * Saves the labeling. If it's autosaved to the same file, only the changes
+	 * since the last autosave are written.
+	 */
+	private void save(String filename) throws IOException {
+		Labeling labeling = labelingModel.labeling().get();
+		LabelingAutosave autosave = this.autosave;
+		if (autosave != null && autosave.isAutosaving(labeling, filename))
+			autosave.flush();
+		else serializer.save(labeling, filename);
+	}
+
+	private synchronized void startAutosave(String filename) throws IOException {
+		stopAutosave();
+		autosave = LabelingAutosave.start(labelingModel.labeling().get(),
+			filename);
+	}
+
+	private synchronized void stopAutosave() {
+		if (autosave == null) return;
+		try {
+			autosave.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		autosave = null;
+	}
+
+	private void onLabelingChanged() {
+		LabelingAutosave autosave = this.autosave;
+		if (autosave != null && autosave.labeling() != labelingModel.labeling()
+			.get()) stopAutosave();
+	}
+
 	private void open(Void ignore, String filename) throws IOException {
 		Labeling labeling = serializer.open(filename);
 		labelingModel.labeling().set(labeling);
@@ -1,28 +1,25 @@
 
 package net.imglib2.labkit.actions;
 
-import net.imglib2.Cursor;
-import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.Converter;
 import net.imglib2.converter.Converters;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
 import net.imglib2.labkit.Extensible;
 import net.imglib2.labkit.MenuBar;
-import net.imglib2.labkit.labeling.Label;
 import net.imglib2.labkit.labeling.Labeling;
 import net.imglib2.labkit.models.Holder;
 import net.imglib2.labkit.models.SegmentationItem;
 import net.imglib2.labkit.models.SegmentationModel;
 import net.imglib2.labkit.models.SegmentationResultsModel;
 import net.imglib2.labkit.models.SegmenterListModel;
-import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.labkit.utils.LabkitUtils;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.integer.ShortType;
-import net.imglib2.view.Views;
 
 import javax.swing.*;
 import java.util.List;
-import java.util.Set;
 
 /**
  * @author Matthias Arzt
@@ -68,23 +65,14 @@ public class SegmentationAsLabelAction {
 			.get() == index);
 		RandomAccessibleInterval<BitType> result = Converters.convert(segmentation,
 			converter, new BitType());
-		addLabel(labelingHolder.get(), "segmented " + selected, result);
+		labelingHolder.get().addLabel("segmented " + selected, result, grid(
+			segmentation));
 		labelingHolder.notifier().notifyListeners();
 	}
 
-	// TODO move to better place
-	private static void addLabel(Labeling labeling, String name,
-		RandomAccessibleInterval<BitType> mask)
-	{
-		Cursor<BitType> cursor = Views.iterable(mask).cursor();
-		Label label = labeling.addLabel(name);
-		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
-		while (cursor.hasNext()) {
-			boolean value = cursor.next().get();
-			if (value) {
-				ra.setPosition(cursor);
-				ra.get().add(label);
-			}
-		}
+	private static CellGrid grid(RandomAccessibleInterval<?> image) {
+		if (image instanceof AbstractCellImg)
+			return ((AbstractCellImg<?, ?, ?, ?>) image).getCellGrid();
+		return LabkitUtils.suggestGrid(image, false);
 	}
 }
@@ -0,0 +1,35 @@
+
+package net.imglib2.labkit.actions;
+
+import net.imglib2.labkit.Extensible;
+import net.imglib2.labkit.MenuBar;
+import net.imglib2.labkit.labeling.Labeling;
+import net.imglib2.labkit.labeling.LabelingJournal;
+import net.imglib2.labkit.models.ImageLabelingModel;
+
+import java.util.function.Predicate;
+
+/**
+ * Adds "Undo" and "Redo" to the labeling menu.
+ *
+ * @author Matthias Arzt
+ */
+public class UndoAction {
+
+	private final ImageLabelingModel model;
+
+	public UndoAction(Extensible extensible, ImageLabelingModel model) {
+		this.model = model;
+		extensible.addMenuItem(MenuBar.LABELING_MENU, "Undo", 10,
+			ignore -> run(LabelingJournal::undo), null, "ctrl Z");
+		extensible.addMenuItem(MenuBar.LABELING_MENU, "Redo", 11,
+			ignore -> run(LabelingJournal::redo), null, "ctrl shift Z");
+	}
+
+	private void run(Predicate<LabelingJournal> action) {
+		Labeling labeling = model.labeling().get();
+		if (!action.test(labeling.journal())) return;
+		model.labeling().notifier().notifyListeners();
+		model.dataChangedNotifier().notifyListeners(labeling.interval());
+	}
+}
@@ -40,6 +40,12 @@ public interface BdvShowable {
 		return new SourceBdvShowable(source);
 	}
 
+	static BdvShowable wrap(Source<? extends NumericType<?>> source,
+		int numTimepoints)
+	{
+		return new SourceBdvShowable(source, numTimepoints);
+	}
+
 	Interval interval();
 
 	AffineTransform3D transformation();
@@ -14,8 +14,17 @@ class SourceBdvShowable implements BdvShowable {
 
 	private final Source<? extends NumericType<?>> source;
 
+	private final int numTimepoints;
+
 	SourceBdvShowable(Source<? extends NumericType<?>> source) {
+		this(source, 1);
+	}
+
+	SourceBdvShowable(Source<? extends NumericType<?>> source,
+		int numTimepoints)
+	{
 		this.source = source;
+		this.numTimepoints = numTimepoints;
 	}
 
 	@Override
@@ -32,6 +41,6 @@ class SourceBdvShowable implements BdvShowable {
 
 	@Override
 	public BdvSource show(String title, BdvOptions options) {
-		return BdvFunctions.show(source, options);
+		return BdvFunctions.show(source, numTimepoints, options);
 	}
 }
@@ -1,8 +1,10 @@
 
 package net.imglib2.labkit.brush;
 
+import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.hash.TIntIntHashMap;
+import net.imglib2.Interval;
 import net.imglib2.Localizable;
 import net.imglib2.Point;
 import net.imglib2.RandomAccess;
@@ -10,13 +12,18 @@ import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.algorithm.neighborhood.DiamondShape;
 import net.imglib2.labkit.labeling.Label;
+import net.imglib2.labkit.labeling.LabelSetOperation;
+import net.imglib2.labkit.labeling.Labeling;
 import net.imglib2.roi.labeling.LabelingType;
 import net.imglib2.type.Type;
 import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Util;
 import net.imglib2.view.ExtendedRandomAccessibleInterval;
 import net.imglib2.view.Views;
 
+import java.util.HashSet;
 import java.util.Set;
 import java.util.function.BiPredicate;
 import java.util.function.Consumer;
@@ -55,18 +62,56 @@ public class FloodFill {
 			filter, operation);
 	}
 
-	public static void doFloodFillOnActiveLabels(
-		RandomAccessibleInterval<LabelingType<Label>> labeling, Point seed,
-		Consumer<? super LabelingType<Label>> operation)
+	/**
+	 * Applies the operation to the connected component of pixels, that have
+	 * the same visible labels as the seed. Only pixels inside the given region
+	 * are changed. The pixels are changed with
+	 * {@link Labeling#update(Localizable, LabelSetOperation)}, which is atomic,
+	 * as other threads might write to the labeling concurrently.
+	 */
+	public static void doFloodFillOnActiveLabels(Labeling labeling,
+		Interval region, Localizable seed, Consumer<? super Set<Label>> operation)
 	{
-		Set<Label> seedValue = getPixel(labeling, seed).copy();
-		Predicate<LabelingType<Label>> visit = value -> activeLabelsAreEquals(value,
+		if (!Intervals.contains(region, seed)) return;
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		Set<Label> seedValue = new HashSet<>(getPixel(labeling, seed));
+		Predicate<Set<Label>> visit = value -> activeLabelsAreEquals(value,
 			seedValue);
-		cachedFloodFill(labeling, seed, visit, operation);
+		Set<Label> seedValueChanged = new HashSet<>(seedValue);
+		operation.accept(seedValueChanged);
+		if (visit.test(seedValueChanged)) return;
+		LabelSetOperation labelSetOperation = labeling.labelSetOperation(
+			operation);
+		int n = region.numDimensions();
+		long[] min = Intervals.minAsLongArray(region);
+		long[] dimensions = Intervals.dimensionsAsLongArray(region);
+		long[] steps = new long[n];
+		long[] position = new long[n];
+		Point point = new Point(n);
+		steps[0] = 1;
+		for (int d = 1; d < n; d++)
+			steps[d] = steps[d - 1] * dimensions[d - 1];
+		seed.localize(position);
+		TLongArrayList stack = new TLongArrayList();
+		stack.add(IntervalIndexer.positionWithOffsetToIndex(position, dimensions,
+			min));
+		while (!stack.isEmpty()) {
+			long index = stack.removeAt(stack.size() - 1);
+			IntervalIndexer.indexToPositionWithOffset(index, dimensions, min,
+				position);
+			ra.setPosition(position);
+			if (!visit.test(ra.get())) continue;
+			point.setPosition(position);
+			labeling.update(point, labelSetOperation);
+			for (int d = 0; d < n; d++) {
+				if (position[d] > min[d]) stack.add(index - steps[d]);
+				if (position[d] < min[d] + dimensions[d] - 1) stack.add(index +
+					steps[d]);
+			}
+		}
 	}
 
-	private static boolean activeLabelsAreEquals(LabelingType<Label> a,
-		Set<Label> b)
+	private static boolean activeLabelsAreEquals(Set<Label> a, Set<Label> b)
 	{
 		boolean bIsSubSetOfA = b.stream().filter(Label::isVisible).allMatch(
 			a::contains);
@@ -2,15 +2,17 @@
 package net.imglib2.labkit.brush;
 
 import bdv.viewer.ViewerPanel;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.Point;
-import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealLocalizable;
 import net.imglib2.RealPoint;
 import net.imglib2.labkit.ActionsAndBehaviours;
 import net.imglib2.labkit.labeling.Label;
+import net.imglib2.labkit.labeling.Labeling;
+import net.imglib2.labkit.labeling.LabelingJournal;
 import net.imglib2.labkit.models.LabelingModel;
-import net.imglib2.roi.labeling.LabelingType;
-import net.imglib2.view.Views;
+import net.imglib2.util.Intervals;
 import org.scijava.ui.behaviour.ClickBehaviour;
 import org.scijava.ui.behaviour.util.RunnableAction;
 
@@ -104,34 +106,52 @@ public class FloodFillController {
 
 		protected void floodFill(final RealLocalizable coords) {
 			synchronized (viewer) {
-				RandomAccessibleInterval<LabelingType<Label>> labeling1 = labeling();
-				Point seed = roundAndReduceDimension(coords, labeling1.numDimensions());
-				FloodFill.doFloodFillOnActiveLabels(labeling1, seed, operationFactory
-					.get());
+				Labeling labeling = model.labeling().get();
+				LabelingJournal journal = labeling.journal();
+				journal.beginStep();
+				try {
+					Interval region = region(labeling);
+					Point seed = roundAndReduceDimension(coords, region);
+					FloodFill.doFloodFillOnActiveLabels(labeling, region, seed,
+						operationFactory.get());
+				}
+				finally {
+					journal.endStep();
+				}
 			}
 		}
 
 		private Point roundAndReduceDimension(final RealLocalizable realLocalizable,
-			int numDimesions)
+			Interval region)
 		{
-			Point point = new Point(numDimesions);
-			for (int i = 0; i < point.numDimensions(); i++)
+			Point point = new Point(region.numDimensions());
+			int numDimensions = model.isTimeSeries() ? point.numDimensions() - 1
+				: point.numDimensions();
+			for (int i = 0; i < numDimensions; i++)
 				point.setPosition((long) realLocalizable.getDoublePosition(i), i);
+			if (model.isTimeSeries()) point.setPosition(region.min(numDimensions),
+				numDimensions);
 			return point;
 		}
 
 		@Override
 		public void click(int x, int y) {
 			floodFill(displayToImageCoordinates(x, y));
-			model.dataChangedNotifier().notifyListeners();
+			model.dataChangedNotifier().notifyListeners(model.labeling().get()
+				.interval());
 		}
 	}
 
-	private RandomAccessibleInterval<LabelingType<Label>> labeling() {
-		RandomAccessibleInterval<LabelingType<Label>> label = model.labeling()
-			.get();
-		if (model.isTimeSeries()) return Views.hyperSlice(label, label
-			.numDimensions() - 1, viewer.getState().getCurrentTimepoint());
-		return label;
+	/**
+	 * Returns the part of the labeling, that is flood filled. For a time series
+	 * that's the current time point.
+	 */
+	private Interval region(Labeling labeling) {
+		if (!model.isTimeSeries()) return labeling.interval();
+		int t = labeling.numDimensions() - 1;
+		long[] min = Intervals.minAsLongArray(labeling);
+		long[] max = Intervals.maxAsLongArray(labeling);
+		min[t] = max[t] = viewer.getState().getCurrentTimepoint();
+		return new FinalInterval(min, max);
 	}
 }
@@ -3,6 +3,9 @@ package net.imglib2.labkit.brush;
 
 import bdv.util.Affine3DHelpers;
 import bdv.viewer.ViewerPanel;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealLocalizable;
@@ -11,10 +14,13 @@ import net.imglib2.algorithm.neighborhood.Neighborhood;
 import net.imglib2.labkit.ActionsAndBehaviours;
 import net.imglib2.labkit.brush.neighborhood.TransformedSphere;
 import net.imglib2.labkit.labeling.Label;
+import net.imglib2.labkit.labeling.LabelSetOperation;
+import net.imglib2.labkit.labeling.Labeling;
 import net.imglib2.labkit.models.LabelingModel;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.roi.labeling.LabelingType;
 import net.imglib2.ui.TransformEventHandler;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.LinAlgHelpers;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
@@ -25,6 +31,8 @@ import org.scijava.ui.behaviour.util.RunnableAction;
 
 import javax.swing.*;
 import java.awt.*;
+import java.util.Arrays;
+import java.util.Set;
 import java.util.function.Consumer;
 import java.util.stream.IntStream;
 
@@ -111,14 +119,21 @@ public class LabelBrushController {
 
 		private RealPoint before;
 
+		private Labeling labeling;
+
+		private LabelSetOperation operation;
+
+		private Interval changed;
+
 		public PaintBehavior(boolean value) {
 			this.value = value;
 		}
 
 		private void paint(RealLocalizable coords) {
 			synchronized (viewer) {
+				final RandomAccessibleInterval<LabelingType<Label>> slice = slice();
 				final RandomAccessible<LabelingType<Label>> extended =
-					extendLabelingType(slice());
+					extendLabelingType(slice);
 				double brushWidth = getTransformedBrushRadius() * getScale(
 					viewerTransformation());
 				double brushDepth = brushWidth;
@@ -127,23 +142,48 @@ public class LabelBrushController {
 				m.concatenate(D);
 				Neighborhood<LabelingType<Label>> neighborhood = TransformedSphere
 					.asNeighborhood(new long[3], m, extended.randomAccess());
-				neighborhood.forEach(pixelOperation());
+				paint(neighborhood, slice);
+				changed = changed == null ? new FinalInterval(neighborhood) : Intervals
+					.union(changed, neighborhood);
 			}
 
 		}
 
-		private Consumer<LabelingType<Label>> pixelOperation() {
+		/**
+		 * Applies the operation to the pixels of the neighborhood, that are inside
+		 * the slice. Each pixel is changed with {@link Labeling#update}, which is
+		 * atomic, as other threads might write to the labeling concurrently.
+		 */
+		private void paint(Neighborhood<LabelingType<Label>> neighborhood,
+			Interval slice)
+		{
+			int n = slice.numDimensions();
+			Point position = new Point(labeling.numDimensions());
+			if (model.isTimeSeries()) position.setPosition(viewer.getState()
+				.getCurrentTimepoint(), n);
+			net.imglib2.Cursor<LabelingType<Label>> cursor = neighborhood
+				.localizingCursor();
+			while (cursor.hasNext()) {
+				cursor.fwd();
+				if (!Intervals.contains(slice, cursor)) continue;
+				for (int d = 0; d < n; d++)
+					position.setPosition(cursor.getLongPosition(d), d);
+				labeling.update(position, operation);
+			}
+		}
+
+		private Consumer<Set<Label>> setOperation() {
 			Label label = model.selectedLabel().get();
 			if (value && label != null) {
-				if (override) return pixel -> {
-					pixel.clear();
-					pixel.add(label);
+				if (override) return set -> {
+					set.clear();
+					set.add(label);
 				};
-				return pixel -> pixel.add(label);
+				return set -> set.add(label);
 			}
 			else {
-				if (override || label == null) return pixel -> pixel.clear();
-				return pixel -> pixel.remove(label);
+				if (override || label == null) return set -> set.clear();
+				return set -> set.remove(label);
 			}
 		}
 
@@ -208,6 +248,9 @@ public class LabelBrushController {
 		@Override
 		public void init(final int x, final int y) {
 			makeLabelVisible();
+			labeling = model.labeling().get();
+			operation = labeling.labelSetOperation(setOperation());
+			labeling.journal().beginStep();
 			RealPoint coords = new RealPoint(x, y);
 			this.before = coords;
 			paint(coords);
@@ -216,6 +259,12 @@ public class LabelBrushController {
 			fireBitmapChanged();
 		}
 
+		private void fireBitmapChanged() {
+			if (changed == null) return;
+			LabelBrushController.this.fireBitmapChanged(changed);
+			changed = null;
+		}
+
 		@Override
 		public void drag(final int x, final int y) {
 			RealPoint coords = new RealPoint(x, y);
@@ -228,6 +277,12 @@ public class LabelBrushController {
 		@Override
 		public void end(final int x, final int y) {
 			brushOverlay.setFontVisible(true);
+			synchronized (viewer) {
+				labeling.journal().endStep();
+				labeling.compactLabelSetsIfNeeded();
+				labeling = null;
+				operation = null;
+			}
 		}
 	}
 
@@ -257,8 +312,21 @@ public class LabelBrushController {
 		return slice;
 	}
 
-	private void fireBitmapChanged() {
-		model.dataChangedNotifier().notifyListeners();
+	private void fireBitmapChanged(Interval sliceInterval) {
+		Interval interval = sliceInterval;
+		if (model.isTimeSeries()) {
+			long t = viewer.getState().getCurrentTimepoint();
+			int n = sliceInterval.numDimensions();
+			long[] min = Arrays.copyOf(Intervals.minAsLongArray(sliceInterval), n +
+				1);
+			long[] max = Arrays.copyOf(Intervals.maxAsLongArray(sliceInterval), n +
+				1);
+			min[n] = max[n] = t;
+			interval = new FinalInterval(min, max);
+		}
+		interval = Intervals.intersect(interval, model.labeling().get());
+		if (!Intervals.isEmpty(interval)) model.dataChangedNotifier()
+			.notifyListeners(interval);
 	}
 
 	private class ChangeBrushRadius implements ScrollBehaviour {
@@ -0,0 +1,104 @@
+
+package net.imglib2.labkit.labeling;
+
+import java.util.Arrays;
+
+/**
+ * Changes of pixels of a {@link Labeling}, each with the label set index
+ * before and after the change. Consecutive pixels, that changed from the same
+ * to the same label set, are stored as one run. The runs are kept in primitive
+ * arrays. The pixels are identified by their flat index.
+ *
+ * @author Matthias Arzt
+ */
+final class ChangeRuns {
+
+	static final int BYTES_PER_RUN = 8 + 4 + 4 + 4;
+
+	private long[] starts = new long[16];
+
+	private int[] lengths = new int[16];
+
+	private int[] oldValues = new int[16];
+
+	private int[] newValues = new int[16];
+
+	private int size = 0;
+
+	int size() {
+		return size;
+	}
+
+	long start(int run) {
+		return starts[run];
+	}
+
+	int length(int run) {
+		return lengths[run];
+	}
+
+	int oldValue(int run) {
+		return oldValues[run];
+	}
+
+	int newValue(int run) {
+		return newValues[run];
+	}
+
+	long bytes() {
+		return (long) starts.length * BYTES_PER_RUN;
+	}
+
+	void add(long index, int oldValue, int newValue) {
+		add(index, 1, oldValue, newValue);
+	}
+
+	void addAll(ChangeRuns other) {
+		for (int i = 0; i < other.size; i++)
+			add(other.starts[i], other.lengths[i], other.oldValues[i],
+				other.newValues[i]);
+	}
+
+	private void add(long start, int length, int oldValue, int newValue) {
+		int last = size - 1;
+		if (last >= 0 && starts[last] + lengths[last] == start &&
+			oldValues[last] == oldValue && newValues[last] == newValue &&
+			lengths[last] <= Integer.MAX_VALUE - length)
+		{
+			lengths[last] += length;
+			return;
+		}
+		if (size == starts.length) {
+			int capacity = 2 * size;
+			starts = Arrays.copyOf(starts, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			oldValues = Arrays.copyOf(oldValues, capacity);
+			newValues = Arrays.copyOf(newValues, capacity);
+		}
+		starts[size] = start;
+		lengths[size] = length;
+		oldValues[size] = oldValue;
+		newValues[size] = newValue;
+		size++;
+	}
+
+	/**
+	 * Marks the label sets, that are referenced by the runs, as used.
+	 */
+	void markUsed(boolean[] used) {
+		for (int i = 0; i < size; i++) {
+			used[oldValues[i]] = true;
+			used[newValues[i]] = true;
+		}
+	}
+
+	/**
+	 * Replaces the label set indices after the label sets have been renumbered.
+	 */
+	void renumber(int[] table) {
+		for (int i = 0; i < size; i++) {
+			oldValues[i] = table[oldValues[i]];
+			newValues[i] = table[newValues[i]];
+		}
+	}
+}
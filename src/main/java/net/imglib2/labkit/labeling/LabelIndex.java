@@ -0,0 +1,261 @@
+
+package net.imglib2.labkit.labeling;
+
+import gnu.trove.map.hash.TLongObjectHashMap;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.sparse.BitmapIterableRegion;
+import net.imglib2.sparse.CompressedBitmap;
+import net.imglib2.sparse.IntervalIndexer2;
+import net.imglib2.sparse.ValueChangeListener;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inverted index of a {@link Labeling}. It stores the pixels of each label in
+ * a {@link BitmapIterableRegion}, together with the label's bounding box.
+ * Each labeled pixel is therefore stored a second time, besides the index
+ * image, once for each of its labels. The {@link CompressedBitmap} needs about
+ * two bytes per pixel and label for scattered pixels, and one bit for densely
+ * painted regions.
+ * <p>
+ * If the index image reports its changes, the index is updated incrementally.
+ * The writing threads only append the change to a {@link StripedChanges}
+ * buffer, without taking a global lock. The buffered changes are applied, when
+ * the index is read, or when a buffer gets full. Removing pixels can't shrink
+ * a bounding box incrementally, the bounding box is therefore marked as
+ * outdated and recomputed from the label's pixels when it's requested next.
+ * If the index image doesn't report its changes, the regions are computed by
+ * scanning the labeling when requested.
+ *
+ * @author Matthias Arzt
+ */
+class LabelIndex implements ValueChangeListener {
+
+	private static final Label[] NO_LABELS = new Label[0];
+
+	private final Labeling labeling;
+
+	private final Interval interval;
+
+	private final List<Set<Label>> labelSets;
+
+	private final IntervalIndexer2 indexer;
+
+	private final StripedChanges changes = new StripedChanges();
+
+	private final Map<Label, Entry> entries = new HashMap<>();
+
+	private final TLongObjectHashMap<Label[][]> diffs =
+		new TLongObjectHashMap<>();
+
+	private boolean tracked = false;
+
+	LabelIndex(Labeling labeling) {
+		this.labeling = labeling;
+		this.interval = new FinalInterval(labeling);
+		this.labelSets = labeling.getLabelSets();
+		this.indexer = new IntervalIndexer2(labeling);
+	}
+
+	/**
+	 * Computes the index from the current content of the labeling. From then on,
+	 * it must be kept up to date by calls to
+	 * {@link #valueChanged(Localizable, int, int)}.
+	 */
+	synchronized void startTracking() {
+		entries.clear();
+		Cursor<?> cursor = labeling.sparsityCursor();
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			ra.setPosition(cursor);
+			for (Label label : ra.get())
+				entry(label).add(cursor);
+		}
+		tracked = true;
+	}
+
+	synchronized boolean isTracked() {
+		return tracked;
+	}
+
+	/**
+	 * Must be called, whenever the indices of the label sets change. The
+	 * buffered changes must be drained before.
+	 */
+	synchronized void clearCache() {
+		diffs.clear();
+	}
+
+	@Override
+	public void valueChanged(Localizable position, int oldValue, int newValue) {
+		if (changes.add(indexer.positionToIndex(position), oldValue, newValue))
+			drain();
+	}
+
+	/**
+	 * Applies the buffered changes. Must be called before the label sets are
+	 * renumbered, and must not be called while holding the lock of the label
+	 * set mapping.
+	 */
+	synchronized void drain() {
+		changes.drain(this::apply);
+	}
+
+	private void apply(ChangeRuns runs) {
+		Point position = new Point(interval.numDimensions());
+		for (int i = 0; i < runs.size(); i++) {
+			Label[][] diff = diff(runs.oldValue(i), runs.newValue(i));
+			if (diff[0].length == 0 && diff[1].length == 0) continue;
+			long end = runs.start(i) + runs.length(i);
+			for (long index = runs.start(i); index < end; index++) {
+				indexer.indexToPosition(index, position);
+				for (Label label : diff[0])
+					entry(label).add(position);
+				for (Label label : diff[1])
+					entry(label).remove(position);
+			}
+		}
+	}
+
+	synchronized long pixelCount(Label label) {
+		drain();
+		Entry entry = tracked ? entries.get(label) : recompute(label);
+		return entry == null ? 0 : entry.region.size();
+	}
+
+	synchronized Interval boundingBox(Label label) {
+		drain();
+		Entry entry = tracked ? entries.get(label) : recompute(label);
+		if (entry == null || entry.region.size() == 0) return null;
+		if (entry.outdated) entry.recomputeBoundingBox();
+		return new FinalInterval(entry.min, entry.max);
+	}
+
+	/**
+	 * Returns the pixels of the given label. If the index is tracked, this is
+	 * the live region, that changes with the labeling. Otherwise it's computed
+	 * by scanning the labeling.
+	 */
+	synchronized BitmapIterableRegion region(Label label) {
+		drain();
+		return tracked ? entry(label).region : recompute(label).region;
+	}
+
+	/**
+	 * Returns a copy of the pixels of the given label, that is not affected by
+	 * later changes to the labeling.
+	 */
+	synchronized BitmapIterableRegion snapshot(Label label) {
+		if (!tracked) return recompute(label).region;
+		drain();
+		Entry entry = entries.get(label);
+		if (entry == null) return new BitmapIterableRegion(interval);
+		return new BitmapIterableRegion(interval, entry.region.bitmap().copy());
+	}
+
+	/**
+	 * Drops the entry of a label, that is no longer used.
+	 */
+	synchronized void forget(Label label) {
+		drain();
+		Entry entry = entries.get(label);
+		if (entry != null && entry.region.size() == 0) entries.remove(label);
+	}
+
+	private Entry recompute(Label label) {
+		Entry entry = new Entry();
+		Cursor<?> cursor = labeling.sparsityCursor();
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			ra.setPosition(cursor);
+			if (ra.get().contains(label)) entry.add(cursor);
+		}
+		return entry;
+	}
+
+	private Entry entry(Label label) {
+		return entries.computeIfAbsent(label, ignore -> new Entry());
+	}
+
+	/**
+	 * Returns the labels that are added, and the labels that are removed, when
+	 * the label set index changes from old to new.
+	 */
+	private Label[][] diff(int oldValue, int newValue) {
+		long key = ((long) oldValue << 32) | (newValue & 0xffffffffL);
+		Label[][] diff = diffs.get(key);
+		if (diff == null) {
+			Set<Label> oldSet = labelSets.get(oldValue);
+			Set<Label> newSet = labelSets.get(newValue);
+			diff = new Label[][] { difference(newSet, oldSet), difference(oldSet,
+				newSet) };
+			diffs.put(key, diff);
+		}
+		return diff;
+	}
+
+	private static Label[] difference(Set<Label> a, Set<Label> b) {
+		if (a.isEmpty()) return NO_LABELS;
+		return a.stream().filter(label -> !b.contains(label)).toArray(
+			Label[]::new);
+	}
+
+	private class Entry {
+
+		private final BitmapIterableRegion region = new BitmapIterableRegion(
+			interval);
+
+		private long[] min;
+
+		private long[] max;
+
+		private boolean outdated = false;
+
+		private void add(Localizable position) {
+			if (region.size() == 0) {
+				min = new long[position.numDimensions()];
+				max = new long[position.numDimensions()];
+				position.localize(min);
+				position.localize(max);
+			}
+			else include(position);
+			region.add(position);
+		}
+
+		private void remove(Localizable position) {
+			region.remove(position);
+			outdated = region.size() > 0;
+		}
+
+		private void include(Localizable position) {
+			for (int d = 0; d < min.length; d++) {
+				long p = position.getLongPosition(d);
+				if (p < min[d]) min[d] = p;
+				if (p > max[d]) max[d] = p;
+			}
+		}
+
+		private void recomputeBoundingBox() {
+			Cursor<?> cursor = region.cursor();
+			cursor.fwd();
+			cursor.localize(min);
+			cursor.localize(max);
+			while (cursor.hasNext()) {
+				cursor.fwd();
+				include(cursor);
+			}
+			outdated = false;
+		}
+	}
+}
@@ -0,0 +1,77 @@
+
+package net.imglib2.labkit.labeling;
+
+import net.imglib2.AbstractWrappedInterval;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.roi.IterableRegion;
+import net.imglib2.type.logic.BitType;
+
+import java.util.Iterator;
+
+/**
+ * Live view of the pixels of one label of a {@link Labeling}. Iteration uses
+ * the region kept by the {@link LabelIndex}, which is brought up to date when
+ * a cursor is created. Random access reads and writes the labeling itself.
+ * Cursors must not be used while the labeling is modified.
+ *
+ * @author Matthias Arzt
+ */
+class LabelRegion extends AbstractWrappedInterval<Interval> implements
+	IterableRegion<BitType>
+{
+
+	private final LabelIndex index;
+
+	private final Labeling labeling;
+
+	private final Label label;
+
+	LabelRegion(Labeling labeling, Label label, LabelIndex index) {
+		super(labeling);
+		this.index = index;
+		this.labeling = labeling;
+		this.label = label;
+	}
+
+	@Override
+	public Cursor<Void> cursor() {
+		return index.region(label).cursor();
+	}
+
+	@Override
+	public Cursor<Void> localizingCursor() {
+		return index.region(label).localizingCursor();
+	}
+
+	@Override
+	public long size() {
+		return index.region(label).size();
+	}
+
+	@Override
+	public Void firstElement() {
+		return null;
+	}
+
+	@Override
+	public Object iterationOrder() {
+		return null;
+	}
+
+	@Override
+	public Iterator<Void> iterator() {
+		return cursor();
+	}
+
+	@Override
+	public RandomAccess<BitType> randomAccess() {
+		return labeling.getRegion(label).randomAccess();
+	}
+
+	@Override
+	public RandomAccess<BitType> randomAccess(Interval interval) {
+		return randomAccess();
+	}
+}
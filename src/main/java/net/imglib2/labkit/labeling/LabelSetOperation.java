@@ -0,0 +1,89 @@
+
+package net.imglib2.labkit.labeling;
+
+import net.imglib2.roi.labeling.LabelingMapping;
+import net.imglib2.roi.labeling.LabelingType;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * An operation on label sets, that works on the indices of the label sets. It
+ * maps the index of a label set to the index of the label set, that results
+ * from applying the operation.
+ * <p>
+ * The operation is thread-safe. The result for each index is computed only
+ * once, while holding the lock of the {@link LabelingMapping}. Later calls are
+ * answered from a copy-on-write table, without locking. The table is stamped
+ * with the generation of the label set indices, see
+ * {@link Labeling#compactLabelSets()}. It's dropped, when the label sets have
+ * been renumbered since, so the operation stays valid across compactions.
+ *
+ * @author Matthias Arzt
+ * @see Labeling#labelSetOperation(Consumer)
+ */
+public class LabelSetOperation implements IntUnaryOperator {
+
+	private final Labeling labeling;
+
+	private final LabelingMapping<Label> mapping;
+
+	private final LabelingType<Label> variable;
+
+	private final Consumer<? super Set<Label>> operation;
+
+	private volatile Table table = new Table(-1, new int[0]);
+
+	LabelSetOperation(Labeling labeling, LabelingType<Label> type,
+		Consumer<? super Set<Label>> operation)
+	{
+		this.labeling = labeling;
+		this.mapping = type.getMapping();
+		this.variable = type.createVariable();
+		this.operation = operation;
+	}
+
+	@Override
+	public int applyAsInt(int index) {
+		Table table = this.table;
+		if (table.generation == labeling.generation() &&
+			index < table.values.length)
+		{
+			int result = table.values[index];
+			if (result >= 0) return result;
+		}
+		return compute(index);
+	}
+
+	private int compute(int index) {
+		synchronized (mapping) {
+			// NB: The generation doesn't change while the lock is held.
+			int generation = labeling.generation();
+			int[] values = table.generation == generation ? table.values
+				: new int[0];
+			variable.getIndex().setInteger(index);
+			operation.accept(variable);
+			int result = variable.getIndex().getInteger();
+			int[] newValues = Arrays.copyOf(values, Math.max(values.length, index +
+				1));
+			Arrays.fill(newValues, values.length, newValues.length, -1);
+			newValues[index] = result;
+			this.table = new Table(generation, newValues);
+			return result;
+		}
+	}
+
+	private static class Table {
+
+		private final int generation;
+
+		private final int[] values;
+
+		private Table(int generation, int[] values) {
+			this.generation = generation;
+			this.values = values;
+		}
+	}
+}
@@ -2,30 +2,41 @@
 package net.imglib2.labkit.labeling;
 
 import com.google.gson.annotations.JsonAdapter;
+import gnu.trove.list.array.TIntArrayList;
 import net.imagej.axis.CalibratedAxis;
 import net.imagej.axis.DefaultLinearAxis;
 import net.imglib2.*;
 import net.imglib2.RandomAccess;
 import net.imglib2.labkit.utils.ColorSupplier;
 import net.imglib2.labkit.utils.LabkitUtils;
+import net.imglib2.labkit.utils.Notifier;
+import net.imglib2.labkit.utils.ParallelUtils;
 import net.imglib2.converter.Converter;
 import net.imglib2.converter.Converters;
-import net.imglib2.loops.LoopBuilder;
+import net.imglib2.img.cell.CellGrid;
 import net.imglib2.roi.IterableRegion;
 import net.imglib2.roi.labeling.ImgLabeling;
 import net.imglib2.roi.labeling.LabelingMapping;
 import net.imglib2.roi.labeling.LabelingType;
-import net.imglib2.sparse.SparseIterableRegion;
+import net.imglib2.sparse.BitmapIterableRegion;
 import net.imglib2.sparse.SparseRandomAccessIntType;
+import net.imglib2.sparse.ValueChangeListener;
 import net.imglib2.type.BooleanType;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.util.ConstantUtils;
+import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -41,6 +52,19 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 	private List<Label> labels;
 	private List<CalibratedAxis> axes;
 	private ColorSupplier colorSupplier;
+	private final LabelIndex index;
+	private final LabelingJournal journal;
+	private final Supplier<Cursor<?>> sparsity;
+	private final Notifier labelSetsNotifier = new Notifier();
+	private int compactionThreshold = MIN_COMPACTION_THRESHOLD;
+
+	/**
+	 * Incremented before and after the label sets are renumbered. It's odd
+	 * while the renumbering is in progress.
+	 */
+	private volatile int compactions = 0;
+
+	private static final int MIN_COMPACTION_THRESHOLD = 1024;
 
 	public static Labeling createEmpty(List<String> labels, Interval interval) {
 		Labeling result = createEmptyLabels(Collections.emptyList(), interval);
@@ -52,10 +76,24 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 		Interval interval)
 	{
 		final ImgLabeling<Label, IntType> imgLabeling = new ImgLabeling<>(
-			new SparseRandomAccessIntType(interval));
+			createIndexImg(interval));
 		return new Labeling(labels, imgLabeling, new ColorSupplier());
 	}
 
+	/**
+	 * Returns an empty block-sparse index image for a labeling. If the image
+	 * would need more than a quarter of the maximal heap size, when painted
+	 * densely, its dense tiles are stored off-heap.
+	 *
+	 * @see SparseRandomAccessIntType#blockSparseOffHeap(Interval)
+	 */
+	static SparseRandomAccessIntType createIndexImg(Interval interval) {
+		long denseBytes = Intervals.numElements(interval) * Integer.BYTES;
+		if (denseBytes > Runtime.getRuntime().maxMemory() / 4)
+			return SparseRandomAccessIntType.blockSparseOffHeap(interval);
+		return SparseRandomAccessIntType.blockSparse(interval);
+	}
+
 	public static Labeling fromImgLabeling(ImgLabeling<String, ?> imgLabeling) {
 		ColorSupplier colors = new ColorSupplier();
 		ImgLabeling<Label, ?> labelsImgLabeling = Labelings.mapLabels(imgLabeling,
@@ -64,6 +102,16 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 			.getLabels()), labelsImgLabeling, colors);
 	}
 
+	/**
+	 * Returns a labeling with the given labels. The label sets of the image
+	 * labeling must only contain these labels.
+	 */
+	static Labeling fromImgLabeling(List<Label> labels,
+		ImgLabeling<Label, ?> imgLabeling)
+	{
+		return new Labeling(labels, imgLabeling, new ColorSupplier());
+	}
+
 	public static Labeling fromMap(Map<String, IterableRegion<BitType>> regions) {
 		if (regions.isEmpty()) throw new IllegalArgumentException(
 			"Labeling.fromMap: The given map must not be empty.");
@@ -80,8 +128,8 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 		Map<Label, IterableRegion<BitType>> regions)
 	{
 		Interval interval = getInterval(regions.values());
-		ImgLabeling<Label, ?> imgLabeling = new ImgLabeling<>(
-			new SparseRandomAccessIntType(interval));
+		ImgLabeling<Label, ?> imgLabeling = new ImgLabeling<>(createIndexImg(
+			interval));
 		RandomAccess<LabelingType<Label>> ra = imgLabeling.randomAccess();
 		regions.forEach((label, region) -> {
 			Cursor<Void> cursor = region.cursor();
@@ -106,12 +154,38 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 
 	private Labeling(List<Label> labels, ImgLabeling<Label, ?> labeling,
 		ColorSupplier colorSupplier)
+	{
+		this(labels, labeling, colorSupplier, null);
+	}
+
+	private Labeling(List<Label> labels, ImgLabeling<Label, ?> labeling,
+		ColorSupplier colorSupplier, Supplier<Cursor<?>> sparsity)
+	{
+		this(labels, labeling, colorSupplier, sparsity, true);
+	}
+
+	/**
+	 * @param track If false, the label index and the journal are not kept up to
+	 *          date, even if the index image reports its changes.
+	 */
+	private Labeling(List<Label> labels, ImgLabeling<Label, ?> labeling,
+		ColorSupplier colorSupplier, Supplier<Cursor<?>> sparsity, boolean track)
 	{
 		super(labeling);
+		this.sparsity = sparsity;
 		this.imgLabeling = labeling;
 		this.labels = new ArrayList<>(labels);
 		this.colorSupplier = colorSupplier;
 		this.axes = initAxes(labeling.numDimensions());
+		this.index = new LabelIndex(this);
+		this.journal = new LabelingJournal(this);
+		RandomAccessibleInterval<?> indexImg = labeling.getIndexImg();
+		if (track && indexImg instanceof SparseRandomAccessIntType) {
+			index.startTracking();
+			journal.setEnabled(true);
+			addValueChangeListener(index);
+			addValueChangeListener(journal);
+		}
 	}
 
 	private List<CalibratedAxis> initAxes(int i) {
@@ -143,11 +217,71 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 		return slice(imgLabeling, label);
 	}
 
+	/**
+	 * Returns the number of pixels, that carry the given label. For a
+	 * block-sparse or hash map index image, this is a constant time operation,
+	 * answered by the label index, see {@link #liveIterableRegions()}.
+	 */
+	public long getPixelCount(Label label) {
+		return index.pixelCount(label);
+	}
+
+	/**
+	 * Returns the bounding box of all pixels, that carry the given label, or
+	 * null if there are no such pixels. For a block-sparse or hash map index
+	 * image, the bounding box is kept up to date while pixels are labeled. It
+	 * only needs to be recomputed from the pixels of the label, after pixels are
+	 * removed from the label.
+	 */
+	public Interval getBoundingBox(Label label) {
+		return index.boundingBox(label);
+	}
+
+	/**
+	 * Returns a copy of the pixels of each label, that is not affected by later
+	 * changes to the labeling. For a block-sparse or hash map index image, the
+	 * copies are taken from the label index, which costs time proportional to
+	 * the size of the labels. For other index images, they are computed by
+	 * scanning the labeling.
+	 *
+	 * @see #liveIterableRegions()
+	 */
 	public Map<Label, IterableRegion<BitType>> iterableRegions() {
+		if (index.isTracked()) {
+			Map<Label, IterableRegion<BitType>> regions = new LinkedHashMap<>();
+			labels.forEach(label -> regions.put(label, index.snapshot(label)));
+			return Collections.unmodifiableMap(regions);
+		}
+		return scanIterableRegions();
+	}
+
+	/**
+	 * Returns the pixels of each label as live views, that are kept up to date
+	 * while the labeling is modified. Iterating a region takes time proportional
+	 * to the size of the label. Cursors must not be used while the labeling is
+	 * modified, use {@link #iterableRegions()} to get copies instead. Only
+	 * supported for a block-sparse or hash map index image, other index images
+	 * return copies.
+	 * <p>
+	 * The label index, which backs the views, stores each labeled pixel a
+	 * second time, once for each of its labels, in a compressed bitmap. Its
+	 * size is therefore proportional to the number of labeled pixels.
+	 */
+	public Map<Label, IterableRegion<BitType>> liveIterableRegions() {
+		if (index.isTracked()) {
+			Map<Label, IterableRegion<BitType>> regions = new LinkedHashMap<>();
+			labels.forEach(label -> regions.put(label, new LabelRegion(this, label,
+				index)));
+			return Collections.unmodifiableMap(regions);
+		}
+		return scanIterableRegions();
+	}
+
+	private Map<Label, IterableRegion<BitType>> scanIterableRegions() {
 		Cursor<?> cursor = sparsityCursor();
 		RandomAccess<LabelingType<Label>> ra = imgLabeling.randomAccess();
-		Map<Label, SparseIterableRegion> regions = new HashMap<>();
-		labels.forEach(label -> regions.put(label, new SparseIterableRegion(
+		Map<Label, BitmapIterableRegion> regions = new HashMap<>();
+		labels.forEach(label -> regions.put(label, new BitmapIterableRegion(
 			imgLabeling)));
 		while (cursor.hasNext()) {
 			cursor.fwd();
@@ -158,6 +292,7 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 	}
 
 	public Cursor<?> sparsityCursor() {
+		if (sparsity != null) return sparsity.get();
 		RandomAccessibleInterval<?> indexImg = imgLabeling.getIndexImg();
 		if (indexImg instanceof SparseRandomAccessIntType)
 			return ((SparseRandomAccessIntType) indexImg).sparseCursor();
@@ -180,6 +315,69 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 			value));
 	}
 
+	/**
+	 * Returns a view of the hyperslice at the given position of the last
+	 * dimension, for example one time point of a time series. The view shares
+	 * the index image, the label sets and the labels with this labeling, only
+	 * the list of label sets is copied. For a block-sparse index image, the
+	 * sparsity cursor of the view only visits the tiles, that intersect the
+	 * hyperslice.
+	 * <p>
+	 * The view is meant for reading, e.g. for training a segmenter. It must not
+	 * be modified, because label sets, that it creates, would be unknown to this
+	 * labeling. Likewise, label sets that this labeling creates later, are
+	 * unknown to the view.
+	 */
+	public Labeling sliceView(long position) {
+		RandomAccessibleInterval<? extends IntegerType<?>> indexImg = imgLabeling
+			.getIndexImg();
+		ImgLabeling<Label, ?> slice = LabelingSerializer.fromImageAndLabelSets(
+			Views.hyperSlice(indexImg, numDimensions() - 1, position),
+			new ArrayList<>(getLabelSets()));
+		Supplier<Cursor<?>> sparsity = indexImg instanceof SparseRandomAccessIntType
+			? () -> ((SparseRandomAccessIntType) indexImg).sparsityPattern(position)
+				.cursor() : null;
+		return new Labeling(labels, slice, colorSupplier, sparsity);
+	}
+
+	/**
+	 * Returns a copy of this labeling, that doesn't change when this labeling is
+	 * modified, e.g. for training a segmenter in the background, while the user
+	 * continues to paint. For a block-sparse index image, the copy shares the
+	 * tiles of the index image, a tile is only copied when it is modified
+	 * afterwards. Other index images are copied. The labels are shared.
+	 * <p>
+	 * The snapshot is meant for reading. If the label sets are compacted
+	 * meanwhile, the snapshot is taken again.
+	 */
+	public Labeling snapshot() {
+		RandomAccessibleInterval<? extends IntegerType<?>> indexImg = imgLabeling
+			.getIndexImg();
+		SparseRandomAccessIntType copy;
+		List<Set<Label>> labelSets;
+		while (true) {
+			int version = compactions;
+			if ((version & 1) != 0) {
+				// NB: Wait for the compaction to finish, it holds the lock.
+				synchronized (labelSetsLock()) {}
+				continue;
+			}
+			copy = indexImg instanceof SparseRandomAccessIntType
+				? ((SparseRandomAccessIntType) indexImg).snapshot()
+				: LabelingSerializer.toBlockSparse(indexImg);
+			// NB: Label sets are only appended. Copied after the index image, they
+			// contain every index of the snapshot.
+			labelSets = new ArrayList<>(getLabelSets());
+			if (compactions == version) break;
+		}
+		ImgLabeling<Label, ?> labeling = LabelingSerializer.fromImageAndLabelSets(
+			copy, labelSets);
+		Labeling snapshot = new Labeling(labels, labeling, colorSupplier, null,
+			false);
+		snapshot.setAxes(axes);
+		return snapshot;
+	}
+
 	public RandomAccessibleInterval<? extends IntegerType<?>> getIndexImg() {
 		return imgLabeling.getIndexImg();
 	}
@@ -190,16 +388,63 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 
 			@Override
 			public Set<Label> get(int index) {
-				return mapping.labelsAtIndex(index);
+				synchronized (mapping) {
+					return mapping.labelsAtIndex(index);
+				}
 			}
 
 			@Override
 			public int size() {
-				return mapping.numSets();
+				synchronized (mapping) {
+					return mapping.numSets();
+				}
 			}
 		};
 	}
 
+	/**
+	 * Returns a thread-safe operation, that maps the index of a label set to the
+	 * index of the modified label set. The label set mapping is only modified
+	 * while holding its lock, and each label set is only modified once.
+	 *
+	 * @see #update(Localizable, LabelSetOperation)
+	 */
+	public LabelSetOperation labelSetOperation(
+		Consumer<? super Set<Label>> operation)
+	{
+		return new LabelSetOperation(this, Util.getTypeFromInterval(
+			imgLabeling), operation);
+	}
+
+	/**
+	 * Atomically applies the operation to the label set at the given position.
+	 * Concurrent calls from many threads are safe, and don't block each other if
+	 * the index image is block-sparse.
+	 */
+	public void update(Localizable position, LabelSetOperation operation) {
+		update(position, (IntUnaryOperator) operation);
+	}
+
+	/**
+	 * Sets the label set index at the given position.
+	 */
+	void setIndex(Localizable position, int value) {
+		update(position, ignore -> value);
+	}
+
+	private void update(Localizable position, IntUnaryOperator operation) {
+		RandomAccessibleInterval<? extends IntegerType<?>> indexImg =
+			imgLabeling.getIndexImg();
+		if (indexImg instanceof SparseRandomAccessIntType)
+			((SparseRandomAccessIntType) indexImg).update(position, operation);
+		else synchronized (imgLabeling) {
+			RandomAccess<? extends IntegerType<?>> ra = indexImg.randomAccess();
+			ra.setPosition(position);
+			IntegerType<?> index = ra.get();
+			index.setInteger(operation.applyAsInt(index.getInteger()));
+		}
+	}
+
 	public List<CalibratedAxis> axes() {
 		return axes;
 	}
@@ -214,31 +459,422 @@ public class Labeling extends AbstractWrappedInterval<Interval> implements
 	public void addLabel(String newName,
 		RandomAccessibleInterval<? extends BooleanType<?>> bitmap)
 	{
-		Label label = addLabel(newName);
-		LoopBuilder.setImages(bitmap, this).forEachPixel((i, o) -> {
-			if (i.get()) o.add(label);
-		});
+		addLabel(newName, bitmap, LabkitUtils.suggestGrid(bitmap, false));
+	}
+
+	/**
+	 * Adds a new label to all pixels, that are true in the mask. The mask is
+	 * processed cell by cell in parallel. If the mask is a cached cell image,
+	 * the grid should be the grid of the cache, then each cell is computed only
+	 * once, by a single thread. A cell without any true pixel causes no write.
+	 * The true pixels of the other cells are collected first, and then written
+	 * as one batch.
+	 */
+	public void addLabel(String newName,
+		RandomAccessibleInterval<? extends BooleanType<?>> mask, CellGrid grid)
+	{
+		if (!Intervals.equals(mask, this)) throw new IllegalArgumentException(
+			"Interval of the mask must match the interval of the labeling.");
+		journal.beginStep();
+		try {
+			Label label = addLabel(newName);
+			LabelSetOperation operation = labelSetOperation(set -> set.add(label));
+			executeInParallel(ignore -> ParallelUtils.chunkOperation(mask, grid,
+				cell -> addToCell(cell, operation)));
+		}
+		finally {
+			journal.endStep();
+		}
+	}
+
+	/**
+	 * Adds a new label to all pixels of the region. Only the pixels of the
+	 * region are visited, in parallel.
+	 */
+	public void addLabel(String newName,
+		IterableRegion<? extends BooleanType<?>> region)
+	{
+		journal.beginStep();
+		try {
+			Label label = addLabel(newName);
+			LabelSetOperation operation = labelSetOperation(set -> set.add(label));
+			executeInParallel(numChunks -> ParallelUtils.chunkOperation(region,
+				numChunks, cursor -> {
+					while (cursor.hasNext()) {
+						cursor.fwd();
+						update(cursor, operation);
+					}
+				}));
+		}
+		finally {
+			journal.endStep();
+		}
+	}
+
+	private void addToCell(
+		RandomAccessibleInterval<? extends BooleanType<?>> cell,
+		IntUnaryOperator operation)
+	{
+		TIntArrayList offsets = new TIntArrayList();
+		int offset = 0;
+		for (BooleanType<?> pixel : Views.flatIterable(cell)) {
+			if (pixel.get()) offsets.add(offset);
+			offset++;
+		}
+		if (offsets.isEmpty()) return;
+		long[] dimensions = Intervals.dimensionsAsLongArray(cell);
+		long[] min = Intervals.minAsLongArray(cell);
+		long[] position = new long[cell.numDimensions()];
+		Point point = new Point(cell.numDimensions());
+		for (int i = 0; i < offsets.size(); i++) {
+			IntervalIndexer.indexToPositionWithOffset(offsets.get(i), dimensions,
+				min, position);
+			point.setPosition(position);
+			update(point, operation);
+		}
 	}
 
 	public void removeLabel(Label label) {
 		if (!labels.contains(label)) return;
-		labels.remove(label);
-		clearLabel(label);
+		removeLabels(Collections.singleton(label));
+	}
+
+	/**
+	 * Removes the labels from the labeling and from all pixels.
+	 *
+	 * @see #remapLabelSets(Consumer)
+	 */
+	public void removeLabels(Collection<Label> labels) {
+		Set<Label> removed = new HashSet<>(labels);
+		journal.beginStep();
+		try {
+			this.labels.removeAll(removed);
+			clearLabels(removed);
+		}
+		finally {
+			journal.endStep();
+		}
+		removed.forEach(index::forget);
 	}
 
 	public void renameLabel(Label oldLabel, String newLabel) {
 		oldLabel.setName(newLabel);
 	}
 
+	/**
+	 * Adds the target label to all pixels of the source label, and removes the
+	 * source label. This is how a label is renamed into an existing label.
+	 *
+	 * @see #remapLabelSets(Consumer)
+	 */
+	public void mergeLabels(Label source, Label target) {
+		if (source == target) return;
+		journal.beginStep();
+		try {
+			remap(labelSetOperation(set -> {
+				if (set.remove(source)) set.add(target);
+			}), Collections.singleton(source));
+			labels.remove(source);
+		}
+		finally {
+			journal.endStep();
+		}
+		index.forget(source);
+	}
+
+	/**
+	 * Removes the label from all pixels. For a block-sparse or hash map index
+	 * image, only the pixels of the label are visited.
+	 */
 	public void clearLabel(Label label) {
-		Cursor<?> cursor = sparsityCursor();
-		RandomAccess<LabelingType<Label>> ra = randomAccess();
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			ra.setPosition(cursor);
-			Set<Label> set = ra.get();
-			set.remove(label);
+		clearLabels(Collections.singleton(label));
+	}
+
+	/**
+	 * Removes the labels from all pixels.
+	 *
+	 * @see #remapLabelSets(Consumer)
+	 */
+	public void clearLabels(Collection<Label> labels) {
+		Set<Label> cleared = new HashSet<>(labels);
+		remap(labelSetOperation(set -> set.removeAll(cleared)), cleared);
+	}
+
+	/**
+	 * Applies the operation to the label set of every pixel. The operation is
+	 * evaluated only once per distinct label set, the index image is then
+	 * rewritten in parallel, using a lookup table of label set indices. For a
+	 * block-sparse or hash map index image, only the pixels of the labels, that
+	 * are changed by the operation, are visited.
+	 */
+	public void remapLabelSets(Consumer<? super Set<Label>> operation) {
+		remap(labelSetOperation(operation), null);
+	}
+
+	private void remap(LabelSetOperation operation, Set<Label> affected) {
+		int[] table = lookupTable(operation);
+		if (isIdentity(table)) return;
+		// NB: The operation itself maps the pixels, its table stays valid, if the
+		// label sets are compacted meanwhile.
+		journal.beginStep();
+		try {
+			executeInParallel(numChunks -> remapChunks(table[0] != 0,
+				affected == null ? changedLabels(table) : affected, operation,
+				numChunks));
+		}
+		finally {
+			journal.endStep();
 		}
+		compactLabelSetsIfNeeded();
+	}
+
+	private static void executeInParallel(
+		IntFunction<List<Callable<Void>>> chunks)
+	{
+		ParallelUtils.executeInParallel(chunks.apply(4 * ParallelUtils
+			.numThreads()));
+	}
+
+	private List<Callable<Void>> remapChunks(boolean changesEmptySet,
+		Set<Label> affected, IntUnaryOperator map, int numChunks)
+	{
+		if (changesEmptySet || !index.isTracked()) return updateChunks(imgLabeling
+			.getIndexImg(), map, numChunks);
+		BitmapIterableRegion pixels = new BitmapIterableRegion(this);
+		for (Label label : affected)
+			pixels = pixels.union(index.snapshot(label));
+		return ParallelUtils.chunkOperation(pixels, numChunks, cursor -> {
+			while (cursor.hasNext()) {
+				cursor.fwd();
+				update(cursor, map);
+			}
+		});
+	}
+
+	/**
+	 * Splits the pixels of the index image into chunks, that apply the map to
+	 * each pixel. The pixels, that are changed by the map, are updated
+	 * atomically, so that concurrent writes to the labeling are not lost.
+	 */
+	private <T extends IntegerType<?>> List<Callable<Void>> updateChunks(
+		RandomAccessibleInterval<T> indexImg, IntUnaryOperator map, int numChunks)
+	{
+		return ParallelUtils.chunkOperation(Views.iterable(indexImg), numChunks,
+			cursor -> {
+				while (cursor.hasNext()) {
+					int oldIndex = cursor.next().getInteger();
+					if (map.applyAsInt(oldIndex) != oldIndex) update(cursor, map);
+				}
+			});
+	}
+
+	/**
+	 * Same as {@link #updateChunks}, but the chunks don't lock. They must only
+	 * be executed while writes are blocked.
+	 */
+	private static <T extends IntegerType<?>> List<Callable<Void>> remapChunks(
+		RandomAccessibleInterval<T> indexImg, IntUnaryOperator map, int numChunks)
+	{
+		return ParallelUtils.chunkOperation(Views.iterable(indexImg), numChunks,
+			cursor -> {
+				while (cursor.hasNext()) {
+					T value = cursor.next();
+					int oldIndex = value.getInteger();
+					int newIndex = map.applyAsInt(oldIndex);
+					if (newIndex != oldIndex) value.setInteger(newIndex);
+				}
+			});
+	}
+
+	private int[] lookupTable(LabelSetOperation operation) {
+		int[] table = new int[getLabelSets().size()];
+		for (int i = 0; i < table.length; i++)
+			table[i] = operation.applyAsInt(i);
+		return table;
+	}
+
+	private static boolean isIdentity(int[] table) {
+		for (int i = 0; i < table.length; i++)
+			if (table[i] != i) return false;
+		return true;
+	}
+
+	/**
+	 * Removes the label sets, that are no longer used by any pixel, from the
+	 * label set mapping, and renumbers the remaining label sets densely. The
+	 * index image is rewritten in parallel. Writes to the labeling are blocked
+	 * meanwhile. {@link LabelSetOperation}s recompute their cached results
+	 * afterwards.
+	 *
+	 * @return the number of label sets, that were removed.
+	 */
+	public int compactLabelSets() {
+		int[] removed = { 0 };
+		// NB: Writers take the lock of a tile first, and then the lock of the
+		// label set mapping. So do this.
+		withWritesBlocked(() -> {
+			// NB: The buffered changes refer to the old label set indices.
+			index.drain();
+			journal.drain();
+			synchronized (imgLabeling.getMapping()) {
+				removed[0] = compactWhileBlocked();
+			}
+			// NB: Don't take the lock of the index, while holding the lock of the
+			// mapping. The index takes them in the opposite order.
+			if (removed[0] > 0) index.clearCache();
+		});
+		if (removed[0] > 0) labelSetsNotifier.notifyListeners();
+		return removed[0];
+	}
+
+	private int compactWhileBlocked() {
+		LabelingMapping<Label> mapping = imgLabeling.getMapping();
+		int numSets = mapping.numSets();
+		boolean[] used = usedLabelSets(numSets);
+		int[] table = new int[numSets];
+		List<Set<Label>> sets = new ArrayList<>();
+		for (int i = 0; i < numSets; i++)
+			if (i == 0 || used[i]) {
+				table[i] = sets.size();
+				sets.add(mapping.labelsAtIndex(i));
+			}
+		int removed = numSets - sets.size();
+		compactionThreshold = Math.max(MIN_COMPACTION_THRESHOLD, 2 * sets.size());
+		if (removed == 0) return 0;
+		compactions++;
+		try {
+			renumber(table);
+			journal.renumber(table);
+			new LabelingMapping.SerialisationAccess<Label>(mapping) {
+
+				public void run() {
+					setLabelSets(sets);
+				}
+			}.run();
+		}
+		finally {
+			compactions++;
+		}
+		return removed;
+	}
+
+	/**
+	 * Runs the action, while no pixel of the labeling can be written.
+	 */
+	private void withWritesBlocked(Runnable action) {
+		RandomAccessibleInterval<? extends IntegerType<?>> indexImg = imgLabeling
+			.getIndexImg();
+		if (indexImg instanceof SparseRandomAccessIntType)
+			((SparseRandomAccessIntType) indexImg).withWritesBlocked(action);
+		else synchronized (imgLabeling) {
+			action.run();
+		}
+	}
+
+	/**
+	 * Calls {@link #compactLabelSets()}, if the number of label sets has at least
+	 * doubled since the last compaction. The amortized cost is therefore
+	 * proportional to the number of new label sets.
+	 */
+	public void compactLabelSetsIfNeeded() {
+		if (getLabelSets().size() > compactionThreshold) compactLabelSets();
+	}
+
+	/**
+	 * Returns the lock, that is held while label sets are added or renumbered.
+	 * While it's held, the label set indices of the pixels keep their meaning.
+	 */
+	Object labelSetsLock() {
+		return imgLabeling.getMapping();
+	}
+
+	/**
+	 * Returns the generation of the label set indices. It changes, whenever
+	 * the label sets are renumbered, and doesn't change while
+	 * {@link #labelSetsLock()} is held.
+	 */
+	int generation() {
+		return compactions;
+	}
+
+	/**
+	 * Notified after the label sets have been renumbered. Caches that are keyed
+	 * by label set index must be cleared.
+	 */
+	public Notifier labelSetsNotifier() {
+		return labelSetsNotifier;
+	}
+
+	/**
+	 * Returns the journal, that records the edits of this labeling, for undo
+	 * and redo. Edits are only recorded for block-sparse or hash map index
+	 * images.
+	 */
+	public LabelingJournal journal() {
+		return journal;
+	}
+
+	private boolean[] usedLabelSets(int numSets) {
+		boolean[] used = new boolean[numSets];
+		journal.markUsed(used);
+		executeInParallel(numChunks -> storedIndicesChunks(numChunks, value -> {
+			used[value] = true;
+			return value;
+		}));
+		return used;
+	}
+
+	private void renumber(int[] table) {
+		// NB: The label sets don't change, only their indices. The listeners are
+		// not notified, the label index stays valid, and the journal is
+		// renumbered separately.
+		executeInParallel(numChunks -> storedIndicesChunks(numChunks,
+			value -> table[value]));
+	}
+
+	/**
+	 * Adds a listener, that is notified about every change of the index image,
+	 * except for the renumbering by {@link #compactLabelSets()}, which doesn't
+	 * change the label sets of the pixels. Only supported for a block-sparse or
+	 * hash map index image.
+	 */
+	void addValueChangeListener(ValueChangeListener listener) {
+		if (!(getIndexImg() instanceof SparseRandomAccessIntType))
+			throw new UnsupportedOperationException(
+				"The index image doesn't report its changes.");
+		((SparseRandomAccessIntType) getIndexImg()).addValueChangeListener(
+			listener);
+	}
+
+	void removeValueChangeListener(ValueChangeListener listener) {
+		if (getIndexImg() instanceof SparseRandomAccessIntType)
+			((SparseRandomAccessIntType) getIndexImg()).removeValueChangeListener(
+				listener);
+	}
+
+	/**
+	 * Splits the pixels of the index image into chunks, that apply the operator
+	 * to each pixel. For a sparse index image, only the stored pixels are
+	 * visited. The chunks don't lock, they must only be executed while writes
+	 * are blocked.
+	 */
+	private List<Callable<Void>> storedIndicesChunks(int numChunks,
+		IntUnaryOperator operator)
+	{
+		RandomAccessibleInterval<? extends IntegerType<?>> indexImg = imgLabeling
+			.getIndexImg();
+		if (!(indexImg instanceof SparseRandomAccessIntType)) return remapChunks(
+			indexImg, operator, numChunks);
+		return ((SparseRandomAccessIntType) indexImg).remapChunks(operator,
+			numChunks);
+	}
+
+	private Set<Label> changedLabels(int[] table) {
+		List<Set<Label>> labelSets = getLabelSets();
+		Set<Label> result = new HashSet<>();
+		for (int i = 0; i < table.length; i++)
+			if (table[i] != i) result.addAll(labelSets.get(i));
+		return result;
 	}
 
 	public void setLabelOrder(Comparator<? super Label> comparator) {
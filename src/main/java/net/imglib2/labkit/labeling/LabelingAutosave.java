@@ -0,0 +1,538 @@
+
+package net.imglib2.labkit.labeling;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.sparse.IntervalIndexer2;
+import net.imglib2.sparse.SparseRandomAccessIntType;
+import net.imglib2.sparse.ValueChangeListener;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.IntegerType;
+import org.apache.commons.io.FilenameUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Autosave for a {@link Labeling}, that is stored in a binary *.labeling file.
+ * Instead of rewriting the file, the changes are appended to a journal next to
+ * it, see {@link #SUFFIX}. The positions of the changed pixels are collected
+ * while the user paints, in a {@link StripedChanges} buffer that doesn't block
+ * concurrent writes, and written in the background, so the cost of saving
+ * is proportional to the size of the edit, not to the size of the labeling.
+ * <p>
+ * Each record of the journal contains the list of labels, and the label sets
+ * of the changed pixels as runs of consecutive pixels. The records carry a
+ * checksum, a record that was only partially written, when the program
+ * crashed, is ignored. When the journal gets bigger than the labeling file, or
+ * 16 MB, it is compacted: a new *.labeling file is written, and the journal is
+ * started again. A failed compaction is retried, after the journal doubled.
+ * <p>
+ * {@link LabelingSerializer#open(String)} replays the journal on top of the
+ * *.labeling file. The header of the journal records the size and the time of
+ * modification of the *.labeling file, a journal that doesn't belong to the
+ * file is ignored.
+ *
+ * @author Matthias Arzt
+ */
+public class LabelingAutosave implements ValueChangeListener, AutoCloseable {
+
+	/** The suffix, that is appended to the filename of the journal. */
+	public static final String SUFFIX = ".journal";
+
+	/** Milliseconds between two writes to the journal. */
+	public static final long DEFAULT_PERIOD = 10_000;
+
+	/** The ASCII characters "LBKJ", written at the start of the journal. */
+	static final int MAGIC = 0x4C424B4A;
+
+	static final int VERSION = 1;
+
+	private static final long MIN_COMPACTION_BYTES = 16L << 20;
+
+	private final Labeling labeling;
+
+	private final File file;
+
+	private final File journalFile;
+
+	private final IntervalIndexer2 indexer;
+
+	private final ScheduledExecutorService executor;
+
+	/** Guards the journal, the label ids and the writes to the files. */
+	private final Object io = new Object();
+
+	/** Changes, that are not yet moved to {@link #dirty}. */
+	private final StripedChanges changes = new StripedChanges();
+
+	/** Positions of the pixels, that changed since the last write. */
+	private TLongHashSet dirty = new TLongHashSet();
+
+	private final Map<Label, Integer> ids = new IdentityHashMap<>();
+
+	private int nextId = 0;
+
+	private byte[] writtenLabels = new byte[0];
+
+	private FileOutputStream journalStream = null;
+
+	private DataOutputStream journal = null;
+
+	private long journalBytes = 0;
+
+	/**
+	 * Size of the journal, above which it's compacted. Raised after a failed
+	 * compaction, so it isn't retried on every write.
+	 */
+	private long compactionBytes = MIN_COMPACTION_BYTES;
+
+	private LabelingAutosave(Labeling labeling, File file) {
+		this.labeling = labeling;
+		this.file = file.getAbsoluteFile();
+		this.journalFile = new File(this.file.getPath() + SUFFIX);
+		this.indexer = new IntervalIndexer2(labeling);
+		this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "labeling-autosave");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Returns true, if the labeling reports its changes, which is the case for
+	 * block-sparse and hash map index images.
+	 */
+	public static boolean isSupported(Labeling labeling) {
+		return labeling.getIndexImg() instanceof SparseRandomAccessIntType;
+	}
+
+	public static LabelingAutosave start(Labeling labeling, String filename)
+		throws IOException
+	{
+		return start(labeling, filename, DEFAULT_PERIOD);
+	}
+
+	/**
+	 * Saves the labeling to the given *.labeling file, and appends all further
+	 * changes to the journal, every given number of milliseconds.
+	 */
+	public static LabelingAutosave start(Labeling labeling, String filename,
+		long period) throws IOException
+	{
+		if (!isSupported(labeling)) throw new UnsupportedOperationException(
+			"Autosave requires a block-sparse or hash map index image.");
+		if (!FilenameUtils.isExtension(filename, "labeling"))
+			throw new IllegalArgumentException(
+				"Filename must have the extension *.labeling");
+		LabelingAutosave autosave = new LabelingAutosave(labeling, new File(
+			filename));
+		// NB: Listen before the snapshot is taken, so no change is missed.
+		labeling.addValueChangeListener(autosave);
+		try {
+			autosave.compact();
+		}
+		catch (IOException | RuntimeException e) {
+			labeling.removeValueChangeListener(autosave);
+			throw e;
+		}
+		autosave.executor.scheduleWithFixedDelay(autosave::flushQuietly, period,
+			period, TimeUnit.MILLISECONDS);
+		return autosave;
+	}
+
+	public Labeling labeling() {
+		return labeling;
+	}
+
+	public String filename() {
+		return file.getPath();
+	}
+
+	/**
+	 * Returns true, if this autosaves the given labeling to the given file.
+	 */
+	public boolean isAutosaving(Labeling labeling, String filename) {
+		return this.labeling == labeling && file.equals(new File(filename)
+			.getAbsoluteFile());
+	}
+
+	@Override
+	public void valueChanged(Localizable position, int oldValue, int newValue) {
+		if (changes.add(indexer.positionToIndex(position), oldValue, newValue))
+			drain();
+	}
+
+	/**
+	 * Appends the changes since the last write to the journal. Compacts the
+	 * journal, if it got too big.
+	 */
+	public void flush() throws IOException {
+		synchronized (io) {
+			if (journal == null) throw new IllegalStateException(
+				"Autosave is closed.");
+			long[] positions = takeDirty();
+			try {
+				byte[] record = record(positions);
+				if (record != null) append(record);
+			}
+			catch (IOException | RuntimeException e) {
+				putDirty(positions);
+				writtenLabels = new byte[0];
+				throw e;
+			}
+			if (journalBytes > compactionBytes) {
+				// NB: The journal stays valid, if the compaction fails. Retry only
+				// after it doubled.
+				compactionBytes = 2 * journalBytes;
+				compact();
+			}
+		}
+	}
+
+	/**
+	 * Writes a new *.labeling file, and starts a new journal.
+	 */
+	public void compact() throws IOException {
+		synchronized (io) {
+			// NB: The snapshot contains all changes so far. Changes, that happen
+			// while it's taken, might be written again later, which does no harm.
+			long[] positions = takeDirty();
+			try {
+				// NB: The snapshot may contain label sets, that are only kept for
+				// undo, with labels that were removed. They are dropped by
+				// LabelingBinaryFormat.write.
+				Labeling snapshot = labeling.snapshot();
+				writeSnapshot(snapshot);
+				ids.clear();
+				nextId = 0;
+				writtenLabels = labelTable(snapshot.getLabels());
+				startJournal();
+			}
+			catch (IOException | RuntimeException e) {
+				putDirty(positions);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Stops the autosave, after writing the last changes to the journal.
+	 */
+	@Override
+	public void close() throws IOException {
+		executor.shutdown();
+		synchronized (io) {
+			if (journal == null) return;
+			labeling.removeValueChangeListener(this);
+			try {
+				flush();
+			}
+			finally {
+				journal.close();
+				journal = null;
+				journalStream = null;
+			}
+		}
+	}
+
+	private void flushQuietly() {
+		try {
+			synchronized (io) {
+				if (journal != null) flush();
+			}
+		}
+		catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	private synchronized void drain() {
+		changes.drain(runs -> {
+			for (int i = 0; i < runs.size(); i++)
+				for (long j = 0; j < runs.length(i); j++)
+					dirty.add(runs.start(i) + j);
+		});
+	}
+
+	private synchronized long[] takeDirty() {
+		drain();
+		long[] positions = dirty.toArray();
+		dirty = new TLongHashSet();
+		return positions;
+	}
+
+	private synchronized void putDirty(long[] positions) {
+		dirty.addAll(positions);
+	}
+
+	// -- Writing --
+
+	private void writeSnapshot(Labeling snapshot) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		try (OutputStream output = new BufferedOutputStream(new FileOutputStream(
+			tmp)))
+		{
+			LabelingBinaryFormat.write(snapshot, output);
+		}
+		Files.move(tmp.toPath(), file.toPath(),
+			StandardCopyOption.REPLACE_EXISTING);
+		compactionBytes = Math.max(MIN_COMPACTION_BYTES, file.length());
+	}
+
+	/**
+	 * Writes the header of a new journal to a temporary file, and replaces the
+	 * old journal by it. A crash in between leaves an old journal, that doesn't
+	 * belong to the new *.labeling file and is ignored.
+	 */
+	private void startJournal() throws IOException {
+		if (journal != null) journal.close();
+		journal = null;
+		File tmp = new File(journalFile.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(
+			tmp)))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(file.length());
+			out.writeLong(file.lastModified());
+		}
+		Files.move(tmp.toPath(), journalFile.toPath(),
+			StandardCopyOption.REPLACE_EXISTING);
+		journalStream = new FileOutputStream(journalFile, true);
+		journal = new DataOutputStream(new BufferedOutputStream(journalStream));
+		journalBytes = journalFile.length();
+	}
+
+	private void append(byte[] record) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		journal.writeInt(record.length);
+		journal.writeInt((int) crc.getValue());
+		journal.write(record);
+		journal.flush();
+		journalStream.getChannel().force(false);
+		journalBytes += 8 + record.length;
+	}
+
+	/**
+	 * Returns the record for the given changed pixels, or null if neither the
+	 * pixels nor the labels changed.
+	 */
+	private byte[] record(long[] positions) throws IOException {
+		Arrays.sort(positions);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		byte[] labels;
+		// NB: While the lock is held, the label sets are not renumbered.
+		synchronized (labeling.labelSetsLock()) {
+			labels = labelTable(new ArrayList<>(labeling.getLabels()));
+			if (positions.length == 0 && Arrays.equals(labels, writtenLabels))
+				return null;
+			out.write(labels);
+			writeRuns(out, positions);
+		}
+		out.flush();
+		writtenLabels = labels;
+		return bytes.toByteArray();
+	}
+
+	private byte[] labelTable(List<Label> labels) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(labels.size());
+		for (Label label : labels) {
+			out.writeInt(ids.computeIfAbsent(label, ignore -> nextId++));
+			out.writeUTF(label.name());
+			out.writeInt(label.color().get());
+			out.writeBoolean(label.isVisible());
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private void writeRuns(DataOutputStream out, long[] positions)
+		throws IOException
+	{
+		RandomAccess<? extends IntegerType<?>> ra = labeling.getIndexImg()
+			.randomAccess();
+		List<Set<Label>> labelSets = labeling.getLabelSets();
+		TIntIntMap refs = new TIntIntHashMap(10, 0.5f, -1, -1);
+		List<Set<Label>> sets = new ArrayList<>();
+		TLongArrayList starts = new TLongArrayList();
+		TIntArrayList lengths = new TIntArrayList();
+		TIntArrayList values = new TIntArrayList();
+		for (long position : positions) {
+			indexer.indexToPosition(position, ra);
+			int value = ra.get().getInteger();
+			int ref = refs.get(value);
+			if (ref < 0) {
+				ref = sets.size();
+				refs.put(value, ref);
+				sets.add(labelSets.get(value));
+			}
+			int last = starts.size() - 1;
+			if (last >= 0 && starts.get(last) + lengths.get(last) == position &&
+				values.get(last) == ref) lengths.set(last, lengths.get(last) + 1);
+			else {
+				starts.add(position);
+				lengths.add(1);
+				values.add(ref);
+			}
+		}
+		out.writeInt(sets.size());
+		for (Set<Label> set : sets) {
+			// NB: Labels, that are no longer part of the labeling, are dropped.
+			List<Integer> labelIds = new ArrayList<>();
+			for (Label label : set) {
+				Integer id = ids.get(label);
+				if (id != null) labelIds.add(id);
+			}
+			out.writeInt(labelIds.size());
+			for (int id : labelIds)
+				out.writeInt(id);
+		}
+		out.writeInt(starts.size());
+		for (int i = 0; i < starts.size(); i++) {
+			out.writeLong(starts.get(i));
+			out.writeInt(lengths.get(i));
+			out.writeInt(values.get(i));
+		}
+	}
+
+	// -- Replay --
+
+	/**
+	 * Applies the journal, that belongs to the given *.labeling file, to the
+	 * labeling, that was read from the file. Returns false, if there is no
+	 * such journal.
+	 */
+	static boolean replay(Labeling labeling, String filename)
+		throws IOException
+	{
+		File file = new File(filename);
+		File journalFile = new File(filename + SUFFIX);
+		if (!journalFile.exists()) return false;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+			new FileInputStream(journalFile))))
+		{
+			if (!readHeader(in, file)) return false;
+			Map<Integer, Label> labels = new HashMap<>();
+			for (int i = 0; i < labeling.getLabels().size(); i++)
+				labels.put(i, labeling.getLabels().get(i));
+			IntervalIndexer2 indexer = new IntervalIndexer2(labeling);
+			byte[] record;
+			while ((record = readRecord(in)) != null)
+				apply(labeling, indexer, labels, record);
+		}
+		labeling.compactLabelSetsIfNeeded();
+		return true;
+	}
+
+	private static boolean readHeader(DataInputStream in, File file)
+		throws IOException
+	{
+		try {
+			return in.readInt() == MAGIC && in.readInt() == VERSION && in
+				.readLong() == file.length() && in.readLong() == file.lastModified();
+		}
+		catch (EOFException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the next record, or null, if the journal ends, or the record is
+	 * incomplete or corrupted.
+	 */
+	private static byte[] readRecord(DataInputStream in) throws IOException {
+		try {
+			int length = in.readInt();
+			int checksum = in.readInt();
+			if (length < 0) return null;
+			byte[] record = new byte[length];
+			in.readFully(record);
+			CRC32 crc = new CRC32();
+			crc.update(record);
+			return (int) crc.getValue() == checksum ? record : null;
+		}
+		catch (EOFException e) {
+			return null;
+		}
+	}
+
+	private static void apply(Labeling labeling, IntervalIndexer2 indexer,
+		Map<Integer, Label> labels, byte[] record) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+			record));
+		int numLabels = in.readInt();
+		List<Label> list = new ArrayList<>(numLabels);
+		for (int i = 0; i < numLabels; i++) {
+			int id = in.readInt();
+			String name = in.readUTF();
+			ARGBType color = new ARGBType(in.readInt());
+			Label label = labels.computeIfAbsent(id, ignore -> new Label(name,
+				color));
+			label.setName(name);
+			label.setColor(color);
+			label.setVisible(in.readBoolean());
+			list.add(label);
+		}
+		labeling.getLabels().clear();
+		labeling.getLabels().addAll(list);
+		int numSets = in.readInt();
+		LabelSetOperation[] operations = new LabelSetOperation[numSets];
+		for (int i = 0; i < numSets; i++) {
+			int size = in.readInt();
+			Set<Label> set = new HashSet<>();
+			for (int j = 0; j < size; j++)
+				set.add(labels.get(in.readInt()));
+			operations[i] = labeling.labelSetOperation(labelSet -> {
+				labelSet.clear();
+				labelSet.addAll(set);
+			});
+		}
+		int numRuns = in.readInt();
+		Point position = new Point(labeling.numDimensions());
+		for (int i = 0; i < numRuns; i++) {
+			long start = in.readLong();
+			int length = in.readInt();
+			LabelSetOperation operation = operations[in.readInt()];
+			for (long index = start; index < start + length; index++) {
+				indexer.indexToPosition(index, position);
+				labeling.update(position, operation);
+			}
+		}
+	}
+}
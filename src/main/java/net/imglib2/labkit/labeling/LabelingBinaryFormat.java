@@ -0,0 +1,400 @@
+
+package net.imglib2.labkit.labeling;
+
+import net.imagej.axis.Axes;
+import net.imagej.axis.CalibratedAxis;
+import net.imagej.axis.DefaultLinearAxis;
+import net.imagej.axis.LinearAxis;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.labkit.utils.LabkitUtils;
+import net.imglib2.labkit.utils.ParallelUtils;
+import net.imglib2.roi.labeling.ImgLabeling;
+import net.imglib2.sparse.SparseRandomAccessIntType;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Binary file format for a {@link Labeling}. The file contains a header with
+ * the interval, the pixel sizes, the labels and the table of label sets,
+ * followed by the index image, chunk by chunk. Each chunk is run-length
+ * encoded and deflate compressed on its own, so the chunks are encoded and
+ * decoded in parallel. Only a batch of chunks is held in memory at a time.
+ * <p>
+ * All numbers in the header are big-endian, as written by
+ * {@link DataOutputStream}. Within a chunk, the pixels are visited in flat
+ * iteration order, each run is stored as two variable-length integers: the
+ * length of the run and the label set index.
+ *
+ * @author Matthias Arzt
+ */
+final class LabelingBinaryFormat {
+
+	/** The ASCII characters "LBKT", written at the start of the file. */
+	static final int MAGIC = 0x4C424B54;
+
+	static final int VERSION = 1;
+
+	private LabelingBinaryFormat() {
+		// prevent from instantiation
+	}
+
+	/**
+	 * Returns true, if the stream starts like a file written by
+	 * {@link #write(Labeling, OutputStream)}.
+	 */
+	static boolean isBinary(InputStream input) throws IOException {
+		try {
+			return new DataInputStream(input).readInt() == MAGIC;
+		}
+		catch (EOFException e) {
+			return false;
+		}
+	}
+
+	static void write(Labeling labeling, OutputStream output)
+		throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(output);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		writeInterval(out, labeling);
+		writeAxes(out, labeling.axes());
+		writeLabels(out, labeling.getLabels());
+		writeLabelSets(out, labeling.getLabels(), labeling.getLabelSets());
+		RandomAccessibleInterval<? extends IntegerType<?>> indexImg = labeling
+			.getIndexImg();
+		int[] cellDimensions = new int[indexImg.numDimensions()];
+		LabkitUtils.suggestGrid(indexImg, false).cellDimensions(cellDimensions);
+		for (int size : cellDimensions)
+			out.writeInt(size);
+		forEachBatch(indexImg, cellDimensions, (cells, chunks) -> {
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (int i = 0; i < cells.size(); i++) {
+				int j = i;
+				tasks.add(() -> {
+					chunks[j] = encode(Views.interval(indexImg, cells.get(j)));
+					return null;
+				});
+			}
+			return tasks;
+		}, chunks -> {
+			for (byte[] chunk : chunks) {
+				out.writeInt(chunk.length);
+				out.write(chunk);
+			}
+		});
+		out.flush();
+	}
+
+	static Labeling read(InputStream input) throws IOException {
+		DataInputStream in = new DataInputStream(input);
+		if (in.readInt() != MAGIC) throw new IOException(
+			"Not a binary labeling file.");
+		int version = in.readInt();
+		if (version != VERSION) throw new IOException(
+			"Unsupported version of the binary labeling file: " + version);
+		Interval interval = readInterval(in);
+		List<CalibratedAxis> axes = readAxes(in, interval.numDimensions());
+		List<Label> labels = readLabels(in);
+		List<Set<Label>> labelSets = readLabelSets(in, labels);
+		int[] cellDimensions = new int[interval.numDimensions()];
+		for (int d = 0; d < cellDimensions.length; d++)
+			cellDimensions[d] = in.readInt();
+		SparseRandomAccessIntType indexImg = Labeling.createIndexImg(interval);
+		forEachBatch(interval, cellDimensions, (cells, chunks) -> {
+			for (int i = 0; i < chunks.length; i++) {
+				chunks[i] = new byte[in.readInt()];
+				in.readFully(chunks[i]);
+			}
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (int i = 0; i < cells.size(); i++) {
+				int j = i;
+				tasks.add(() -> {
+					decode(chunks[j], Views.interval(indexImg, cells.get(j)));
+					return null;
+				});
+			}
+			return tasks;
+		}, chunks -> {});
+		ImgLabeling<Label, ?> imgLabeling = LabelingSerializer
+			.fromImageAndLabelSets(indexImg, labelSets);
+		Labeling labeling = Labeling.fromImgLabeling(labels, imgLabeling);
+		labeling.setAxes(axes);
+		return labeling;
+	}
+
+	// -- Header --
+
+	private static void writeInterval(DataOutputStream out, Interval interval)
+		throws IOException
+	{
+		out.writeInt(interval.numDimensions());
+		for (int d = 0; d < interval.numDimensions(); d++) {
+			out.writeLong(interval.min(d));
+			out.writeLong(interval.max(d));
+		}
+	}
+
+	private static Interval readInterval(DataInputStream in) throws IOException {
+		int n = in.readInt();
+		long[] min = new long[n];
+		long[] max = new long[n];
+		for (int d = 0; d < n; d++) {
+			min[d] = in.readLong();
+			max[d] = in.readLong();
+		}
+		return new FinalInterval(min, max);
+	}
+
+	private static void writeAxes(DataOutputStream out,
+		List<CalibratedAxis> axes) throws IOException
+	{
+		for (CalibratedAxis axis : axes) {
+			boolean linear = axis instanceof LinearAxis;
+			String unit = linear ? axis.unit() : "unknown";
+			out.writeDouble(linear ? ((LinearAxis) axis).scale() : 1);
+			out.writeUTF(unit == null ? "" : unit);
+		}
+	}
+
+	private static List<CalibratedAxis> readAxes(DataInputStream in, int n)
+		throws IOException
+	{
+		List<CalibratedAxis> axes = new ArrayList<>();
+		for (int d = 0; d < n; d++) {
+			double scale = in.readDouble();
+			String unit = in.readUTF();
+			axes.add(new DefaultLinearAxis(Axes.unknown(), unit.isEmpty() ? null
+				: unit, scale));
+		}
+		return axes;
+	}
+
+	private static void writeLabels(DataOutputStream out, List<Label> labels)
+		throws IOException
+	{
+		out.writeInt(labels.size());
+		for (Label label : labels) {
+			out.writeUTF(label.name());
+			out.writeInt(label.color().get());
+			out.writeBoolean(label.isVisible());
+		}
+	}
+
+	private static List<Label> readLabels(DataInputStream in)
+		throws IOException
+	{
+		int size = in.readInt();
+		List<Label> labels = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			String name = in.readUTF();
+			Label label = new Label(name, new ARGBType(in.readInt()));
+			label.setVisible(in.readBoolean());
+			labels.add(label);
+		}
+		return labels;
+	}
+
+	private static void writeLabelSets(DataOutputStream out, List<Label> labels,
+		List<Set<Label>> labelSets) throws IOException
+	{
+		Map<Label, Integer> indices = new IdentityHashMap<>();
+		for (int i = 0; i < labels.size(); i++)
+			indices.put(labels.get(i), i);
+		out.writeInt(labelSets.size());
+		for (Set<Label> set : labelSets) {
+			// NB: Labels, that are no longer part of the labeling, are dropped.
+			// Unused label sets, that are kept for undo, may still contain them.
+			List<Integer> labelIndices = new ArrayList<>();
+			for (Label label : set) {
+				Integer index = indices.get(label);
+				if (index != null) labelIndices.add(index);
+			}
+			out.writeInt(labelIndices.size());
+			for (int index : labelIndices)
+				out.writeInt(index);
+		}
+	}
+
+	private static List<Set<Label>> readLabelSets(DataInputStream in,
+		List<Label> labels) throws IOException
+	{
+		int numSets = in.readInt();
+		List<Set<Label>> labelSets = new ArrayList<>(numSets);
+		for (int i = 0; i < numSets; i++) {
+			int size = in.readInt();
+			Set<Label> set = new HashSet<>();
+			for (int j = 0; j < size; j++)
+				set.add(labels.get(in.readInt()));
+			labelSets.add(set);
+		}
+		return labelSets;
+	}
+
+	// -- Chunks --
+
+	private static byte[] encode(
+		RandomAccessibleInterval<? extends IntegerType<?>> chunk)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try (OutputStream out = new DeflaterOutputStream(bytes, deflater)) {
+			Cursor<? extends IntegerType<?>> cursor = Views.flatIterable(chunk)
+				.cursor();
+			int value = 0;
+			long length = 0;
+			while (cursor.hasNext()) {
+				int next = cursor.next().getInteger();
+				if (next != value && length > 0) {
+					writeVarLong(out, length);
+					writeVarLong(out, value);
+					length = 0;
+				}
+				value = next;
+				length++;
+			}
+			writeVarLong(out, length);
+			writeVarLong(out, value);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		finally {
+			deflater.end();
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void decode(byte[] bytes,
+		RandomAccessibleInterval<IntType> chunk) throws IOException
+	{
+		try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(
+			bytes)))
+		{
+			Cursor<IntType> cursor = Views.flatIterable(chunk).cursor();
+			long remaining = Intervals.numElements(chunk);
+			while (remaining > 0) {
+				long length = readVarLong(in);
+				int value = (int) readVarLong(in);
+				if (length <= 0 || length > remaining) throw new IOException(
+					"Corrupted chunk in binary labeling file.");
+				remaining -= length;
+				if (value == 0) cursor.jumpFwd(length);
+				else for (long i = 0; i < length; i++)
+					cursor.next().set(value);
+			}
+		}
+	}
+
+	private static void writeVarLong(OutputStream out, long value)
+		throws IOException
+	{
+		while ((value & ~0x7fL) != 0) {
+			out.write((int) (value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+
+	private static long readVarLong(InputStream in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.read();
+			if (b < 0) throw new EOFException(
+				"Unexpected end of chunk in binary labeling file.");
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new IOException("Corrupted chunk in binary labeling file.");
+	}
+
+	// -- Batches --
+
+	/**
+	 * Splits the interval into cells of the given size, and processes the cells
+	 * in batches. For each batch, the tasks returned by the factory are
+	 * executed in parallel, then the chunks are passed to the consumer in the
+	 * order of the cells.
+	 */
+	private static void forEachBatch(Interval interval, int[] cellDimensions,
+		BatchTasks factory, BatchConsumer consumer) throws IOException
+	{
+		CellGrid grid = new CellGrid(Intervals.dimensionsAsLongArray(interval),
+			cellDimensions);
+		long[] offset = Intervals.minAsLongArray(interval);
+		int batchSize = 4 * ParallelUtils.numThreads();
+		long numCells = Intervals.numElements(grid.getGridDimensions());
+		try {
+			for (long first = 0; first < numCells; first += batchSize) {
+				int size = (int) Math.min(batchSize, numCells - first);
+				List<Interval> cells = new ArrayList<>(size);
+				for (long i = first; i < first + size; i++)
+					cells.add(cell(grid, i, offset));
+				byte[][] chunks = new byte[size][];
+				ParallelUtils.executeInParallel(factory.tasks(cells, chunks));
+				consumer.accept(chunks);
+			}
+		}
+		catch (RuntimeException e) {
+			// NB: Unwrap the IOException of a task, it's wrapped into an
+			// ExecutionException and a RuntimeException.
+			Throwable cause = e.getCause() == null ? null : e.getCause().getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the cell with the given index, translated by the given offset.
+	 */
+	private static Interval cell(CellGrid grid, long index, long[] offset) {
+		int n = grid.numDimensions();
+		long[] min = new long[n];
+		int[] size = new int[n];
+		grid.getCellDimensions(index, min, size);
+		long[] max = new long[n];
+		for (int d = 0; d < n; d++) {
+			min[d] += offset[d];
+			max[d] = min[d] + size[d] - 1;
+		}
+		return new FinalInterval(min, max);
+	}
+
+	private interface BatchTasks {
+
+		List<Callable<Void>> tasks(List<Interval> cells, byte[][] chunks)
+			throws IOException;
+	}
+
+	private interface BatchConsumer {
+
+		void accept(byte[][] chunks) throws IOException;
+	}
+}
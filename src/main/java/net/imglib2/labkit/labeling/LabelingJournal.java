@@ -0,0 +1,359 @@
+
+package net.imglib2.labkit.labeling;
+
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+import net.imglib2.sparse.IntervalIndexer2;
+import net.imglib2.sparse.ValueChangeListener;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Undo and redo for the edits of a {@link Labeling}. For each step, the
+ * journal records the pixels that changed, together with the label set index
+ * before and after the change. Consecutive pixels, that changed from the same
+ * to the same label set, are stored as one run, see {@link ChangeRuns}. The
+ * writing threads only append the change to a {@link StripedChanges} buffer,
+ * without taking a global lock, the buffer is moved into the step when the
+ * step ends.
+ * <p>
+ * Edits are grouped into steps by {@link #beginStep()} and {@link #endStep()}.
+ * Steps may be nested, only the outermost step is recorded. Changes outside
+ * of a step are not recorded. Undo and redo are only possible, while no step
+ * is open, and a step only begins after a running undo or redo finished. The
+ * memory used by the journal is bounded: the oldest steps are dropped, when
+ * the limit is exceeded, and a step that alone exceeds the limit clears the
+ * journal.
+ * <p>
+ * The journal only records changes, if the index image of the labeling
+ * reports them, which is the case for block-sparse and hash map index images.
+ *
+ * @author Matthias Arzt
+ */
+public class LabelingJournal implements ValueChangeListener {
+
+	public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+	private final Labeling labeling;
+
+	private final IntervalIndexer2 indexer;
+
+	private final StripedChanges changes = new StripedChanges();
+
+	private final Deque<Step> undoSteps = new ArrayDeque<>();
+
+	private final Deque<Step> redoSteps = new ArrayDeque<>();
+
+	private long maxBytes = DEFAULT_MAX_BYTES;
+
+	private long bytes = 0;
+
+	private int depth = 0;
+
+	private Step current = null;
+
+	private boolean replaying = false;
+
+	private boolean enabled = false;
+
+	/** True, while changes are recorded, i.e. current is set and no replay. */
+	private volatile boolean recording = false;
+
+	LabelingJournal(Labeling labeling) {
+		this.labeling = labeling;
+		this.indexer = new IntervalIndexer2(labeling);
+	}
+
+	void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Sets the maximal number of bytes, that the recorded steps may use.
+	 */
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		trim();
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Returns the number of bytes, that the recorded steps currently use.
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Begins a step. Waits, while an undo or redo is running, otherwise the
+	 * changes of the step would neither be recorded, nor be ordered with the
+	 * replayed changes.
+	 */
+	public synchronized void beginStep() {
+		awaitReplay();
+		if (depth++ == 0 && enabled) {
+			// NB: Drop changes of writes, that raced with the end of the last step.
+			changes.clear();
+			current = new Step(labeling.getLabels());
+			updateRecording();
+		}
+	}
+
+	public synchronized void endStep() {
+		if (depth == 0) throw new IllegalStateException(
+			"endStep() called without beginStep().");
+		if (--depth > 0) return;
+		drain();
+		Step step = current;
+		current = null;
+		updateRecording();
+		if (step == null) return;
+		step.finish(labeling.getLabels());
+		if (step.isEmpty()) return;
+		redoSteps.forEach(s -> bytes -= s.bytes());
+		redoSteps.clear();
+		undoSteps.push(step);
+		bytes += step.bytes();
+		trim();
+	}
+
+	public synchronized boolean canUndo() {
+		return depth == 0 && !undoSteps.isEmpty();
+	}
+
+	public synchronized boolean canRedo() {
+		return depth == 0 && !redoSteps.isEmpty();
+	}
+
+	/**
+	 * Reverts the last recorded step. Returns false, if there is nothing to
+	 * undo.
+	 */
+	public boolean undo() {
+		Step step;
+		synchronized (this) {
+			if (!canUndo()) return false;
+			step = undoSteps.pop();
+			replaying = true;
+			updateRecording();
+		}
+		// NB: Don't hold the lock of the journal while writing pixels, a write
+		// takes the lock of the journal after the lock of the tile, when the
+		// buffer is full.
+		try {
+			step.undo();
+		}
+		finally {
+			synchronized (this) {
+				replaying = false;
+				updateRecording();
+				redoSteps.push(step);
+				notifyAll();
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Repeats the last undone step. Returns false, if there is nothing to redo.
+	 */
+	public boolean redo() {
+		Step step;
+		synchronized (this) {
+			if (!canRedo()) return false;
+			step = redoSteps.pop();
+			replaying = true;
+			updateRecording();
+		}
+		try {
+			step.redo();
+		}
+		finally {
+			synchronized (this) {
+				replaying = false;
+				updateRecording();
+				undoSteps.push(step);
+				notifyAll();
+			}
+		}
+		return true;
+	}
+
+	public synchronized void clear() {
+		undoSteps.clear();
+		redoSteps.clear();
+		bytes = 0;
+	}
+
+	@Override
+	public void valueChanged(Localizable position, int oldValue, int newValue) {
+		if (!recording) return;
+		if (changes.add(indexer.positionToIndex(position), oldValue, newValue))
+			drain();
+	}
+
+	/**
+	 * Moves the buffered changes into the current step. Must be called before
+	 * the label sets are renumbered. Clears the journal, if the step exceeds the
+	 * limit.
+	 */
+	synchronized void drain() {
+		changes.drain(runs -> {
+			if (current != null) current.runs.addAll(runs);
+		});
+		if (current != null && current.bytes() > maxBytes) {
+			current = null;
+			updateRecording();
+			changes.clear();
+			clear();
+		}
+	}
+
+	private void awaitReplay() {
+		boolean interrupted = false;
+		while (replaying) {
+			try {
+				wait();
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	private void updateRecording() {
+		recording = current != null && !replaying;
+	}
+
+	/**
+	 * Marks the label sets, that are referenced by the journal, as used.
+	 */
+	synchronized void markUsed(boolean[] used) {
+		for (Step step : undoSteps)
+			step.markUsed(used);
+		for (Step step : redoSteps)
+			step.markUsed(used);
+		if (current != null) current.markUsed(used);
+	}
+
+	/**
+	 * Replaces the recorded label set indices after the label sets have been
+	 * renumbered.
+	 */
+	synchronized void renumber(int[] table) {
+		for (Step step : undoSteps)
+			step.renumber(table);
+		for (Step step : redoSteps)
+			step.renumber(table);
+		if (current != null) current.renumber(table);
+	}
+
+	private void trim() {
+		while (bytes > maxBytes && !undoSteps.isEmpty())
+			bytes -= undoSteps.removeLast().bytes();
+		while (bytes > maxBytes && !redoSteps.isEmpty())
+			bytes -= redoSteps.removeLast().bytes();
+	}
+
+	private class Step {
+
+		private final List<Label> labelsBefore;
+
+		private final ChangeRuns runs = new ChangeRuns();
+
+		private List<Label> addedLabels;
+
+		private List<Label> removedLabels;
+
+		/** Indices of the added labels, in the list of labels after the step. */
+		private int[] addedIndices;
+
+		/** Indices of the removed labels, in the list of labels before. */
+		private int[] removedIndices;
+
+		private Step(List<Label> labels) {
+			this.labelsBefore = new ArrayList<>(labels);
+		}
+
+		private void finish(List<Label> labels) {
+			addedLabels = new ArrayList<>(labels);
+			addedLabels.removeAll(labelsBefore);
+			removedLabels = new ArrayList<>(labelsBefore);
+			removedLabels.removeAll(labels);
+			addedIndices = addedLabels.stream().mapToInt(labels::indexOf).toArray();
+			removedIndices = removedLabels.stream().mapToInt(labelsBefore::indexOf)
+				.toArray();
+		}
+
+		private boolean isEmpty() {
+			return runs.size() == 0 && addedLabels.isEmpty() && removedLabels
+				.isEmpty();
+		}
+
+		private long bytes() {
+			return runs.bytes();
+		}
+
+		private void undo() {
+			List<Label> labels = labeling.getLabels();
+			insertLabels(removedLabels, removedIndices, addedLabels);
+			Point position = new Point(labeling.numDimensions());
+			for (int i = runs.size() - 1; i >= 0; i--)
+				for (long index = runs.start(i) + runs.length(i) - 1; index >= runs
+					.start(i); index--)
+					write(position, index, runs.oldValue(i));
+			labels.removeAll(addedLabels);
+		}
+
+		private void redo() {
+			List<Label> labels = labeling.getLabels();
+			insertLabels(addedLabels, addedIndices, removedLabels);
+			Point position = new Point(labeling.numDimensions());
+			for (int i = 0; i < runs.size(); i++)
+				for (long index = runs.start(i); index < runs.start(i) + runs.length(
+					i); index++)
+					write(position, index, runs.newValue(i));
+			labels.removeAll(removedLabels);
+		}
+
+		/**
+		 * Inserts the labels at the given indices, which must be ascending. The
+		 * labels, that are removed after the pixels are written, are moved to the
+		 * end of the list meanwhile, so they don't shift the inserted labels.
+		 */
+		private void insertLabels(List<Label> inserted, int[] indices,
+			List<Label> removedLater)
+		{
+			List<Label> labels = labeling.getLabels();
+			List<Label> result = new ArrayList<>(labels);
+			result.removeAll(inserted);
+			result.removeAll(removedLater);
+			for (int i = 0; i < inserted.size(); i++)
+				result.add(Math.min(indices[i], result.size()), inserted.get(i));
+			for (Label label : removedLater)
+				if (labels.contains(label)) result.add(label);
+			labels.clear();
+			labels.addAll(result);
+		}
+
+		private void write(Point position, long index, int value) {
+			indexer.indexToPosition(index, position);
+			labeling.setIndex(position, value);
+		}
+
+		private void markUsed(boolean[] used) {
+			runs.markUsed(used);
+		}
+
+		private void renumber(int[] table) {
+			runs.renumber(table);
+		}
+	}
+}
@@ -4,9 +4,10 @@ package net.imglib2.labkit.labeling;
 import com.google.gson.*;
 import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.google.gson.stream.JsonWriter;
+import io.scif.config.SCIFIOConfig;
 import io.scif.services.DatasetIOService;
-import net.imagej.DatasetService;
 import net.imagej.axis.Axes;
 import net.imagej.axis.CalibratedAxis;
 import net.imagej.axis.DefaultLinearAxis;
@@ -15,23 +16,37 @@ import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.Point;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.labkit.utils.LabkitUtils;
+import net.imglib2.labkit.utils.ParallelUtils;
+import net.imglib2.labkit.utils.TiledTiffWriter;
 import net.imglib2.img.Img;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
 import net.imglib2.roi.IterableRegion;
 import net.imglib2.roi.labeling.ImgLabeling;
 import net.imglib2.roi.labeling.LabelingMapping;
-import net.imglib2.sparse.SparseIterableRegion;
+import net.imglib2.sparse.SparseRandomAccessIntType;
 import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.view.Views;
 import org.apache.commons.io.FilenameUtils;
 import org.scijava.Context;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.lang.reflect.Type;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -40,7 +55,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
@@ -56,15 +72,39 @@ public class LabelingSerializer {
 		this.context = context;
 	}
 
+	/**
+	 * Opens a labeling from a TIFF file, a JSON file or a binary labeling file.
+	 * A *.labeling file is read as binary labeling file, if it starts like one,
+	 * and as JSON file otherwise, which is the format of older files. The
+	 * journal of a binary labeling file, written by {@link LabelingAutosave},
+	 * is replayed.
+	 */
 	public Labeling open(String filename) throws IOException {
 		if (FilenameUtils.isExtension(filename, new String[] { "tif", "tiff" }))
 			return openFromTiff(filename);
 		if (FilenameUtils.isExtension(filename, new String[] { "labeling",
-			"json" })) return openFromJson(filename);
+			"json" })) return isBinary(filename) ? openFromBinary(filename)
+				: openFromJson(filename);
 		throw new IllegalArgumentException(
 			"Filename must have supported extension (*.labeling, *.tif, *.tiff)");
 	}
 
+	private boolean isBinary(String filename) throws IOException {
+		try (InputStream input = new FileInputStream(filename)) {
+			return LabelingBinaryFormat.isBinary(input);
+		}
+	}
+
+	private Labeling openFromBinary(String filename) throws IOException {
+		try (InputStream input = new BufferedInputStream(new FileInputStream(
+			filename)))
+		{
+			Labeling labeling = LabelingBinaryFormat.read(input);
+			LabelingAutosave.replay(labeling, filename);
+			return labeling;
+		}
+	}
+
 	private Labeling openFromJson(String filename) throws IOException {
 		try (FileReader reader = new FileReader(filename)) {
 			Labeling result = new Gson().fromJson(reader, Labeling.class);
@@ -79,13 +119,70 @@ public class LabelingSerializer {
 		return Labeling.fromImgLabeling(imgLabeling);
 	}
 
+	/**
+	 * Opens the TIFF file as cell image, whose cells are read on demand, and
+	 * copies it into a block-sparse index image, chunk by chunk in parallel.
+	 * Without a .labels file, the label sets are derived from the maximal value,
+	 * which is found during the copy.
+	 */
 	public ImgLabeling<String, ?> openImgLabelingFromTiff(String filename)
 		throws IOException
 	{
 		Img<? extends IntegerType<?>> img = openImageFromTiff(filename);
 		LabelsMetaData meta = (new File(filename + ".labels").exists())
-			? openMetaData(filename + ".labels") : new LabelsMetaData(img);
-		return fromImageAndLabelSets(img, meta.asLabelSets());
+			? openMetaData(filename + ".labels") : null;
+		SparseRandomAccessIntType indexImg = Labeling.createIndexImg(img);
+		int max = copyInParallel(img, indexImg);
+		if (meta == null) meta = new LabelsMetaData(max);
+		return fromImageAndLabelSets(indexImg, meta.asLabelSets());
+	}
+
+	/**
+	 * Copies the index image into a block-sparse image. Empty tiles take no
+	 * memory at all, and densely filled tiles no more than the dense image.
+	 */
+	static SparseRandomAccessIntType toBlockSparse(
+		RandomAccessibleInterval<? extends IntegerType<?>> img)
+	{
+		SparseRandomAccessIntType result = Labeling.createIndexImg(img);
+		copyInParallel(img, result);
+		return result;
+	}
+
+	/**
+	 * Copies the non-zero pixels, in parallel chunks. For a cell image, the
+	 * chunks are its cells, so each cell is read once, by one thread. Returns
+	 * the maximal value.
+	 */
+	private static <T extends IntegerType<?>> int copyInParallel(
+		RandomAccessibleInterval<T> img, SparseRandomAccessIntType result)
+	{
+		CellGrid grid = img instanceof AbstractCellImg
+			? ((AbstractCellImg<?, ?, ?, ?>) img).getCellGrid() : LabkitUtils
+				.suggestGrid(img, false);
+		AtomicInteger max = new AtomicInteger(0);
+		List<Callable<Void>> chunks = ParallelUtils.chunkOperation(img, grid,
+			chunk -> max.accumulateAndGet(copy(chunk, result), Math::max));
+		ParallelUtils.executeInParallel(chunks);
+		return max.get();
+	}
+
+	private static int copy(
+		RandomAccessibleInterval<? extends IntegerType<?>> img,
+		SparseRandomAccessIntType result)
+	{
+		int max = 0;
+		RandomAccess<IntType> ra = result.randomAccess();
+		Cursor<? extends IntegerType<?>> cursor = Views.flatIterable(img)
+			.localizingCursor();
+		while (cursor.hasNext()) {
+			int value = cursor.next().getInteger();
+			if (value == 0) continue;
+			max = Math.max(max, value);
+			ra.setPosition(cursor);
+			ra.get().set(value);
+		}
+		return max;
 	}
 
 	// TODO make part of imglib2-roi
@@ -108,7 +205,10 @@ public class LabelingSerializer {
 		throws IOException
 	{
 		DatasetIOService io = context.service(DatasetIOService.class);
-		return LabkitUtils.uncheckedCast(io.open(filename).getImgPlus().getImg());
+		SCIFIOConfig config = new SCIFIOConfig().imgOpenerSetImgModes(
+			SCIFIOConfig.ImgMode.CELL);
+		return LabkitUtils.uncheckedCast(io.open(filename, config).getImgPlus()
+			.getImg());
 	}
 
 	private LabelsMetaData openMetaData(String filename) throws IOException {
@@ -117,20 +217,43 @@ public class LabelingSerializer {
 		}
 	}
 
+	/**
+	 * Saves the labeling. A *.labeling file is written in the binary format,
+	 * see {@link LabelingBinaryFormat}, a *.json file as JSON.
+	 */
 	public void save(Labeling labeling, String filename) throws IOException {
 		if (FilenameUtils.isExtension(filename, new String[] { "tif", "tiff" }))
 			saveAsTiff(labeling, filename);
-		else if (FilenameUtils.isExtension(filename, new String[] { "labeling",
-			"json" })) saveAsJson(labeling, filename);
+		else if (FilenameUtils.isExtension(filename, "labeling")) saveAsBinary(
+			labeling, filename);
+		else if (FilenameUtils.isExtension(filename, "json")) saveAsJson(labeling,
+			filename);
 		else throw new IllegalArgumentException(
 			"Filename must have supported extension (*.labeling, *.tif, *.tiff)");
 	}
 
+	private void saveAsBinary(Labeling labeling, String filename)
+		throws IOException
+	{
+		// NB: Don't write unused label sets.
+		labeling.compactLabelSets();
+		final String tmpFilename = filename + ".tmp";
+		try (OutputStream output = new BufferedOutputStream(new FileOutputStream(
+			tmpFilename)))
+		{
+			LabelingBinaryFormat.write(labeling, output);
+		}
+		Files.move(Paths.get(tmpFilename), Paths.get(filename),
+			StandardCopyOption.REPLACE_EXISTING);
+		// NB: The journal of an earlier autosave doesn't belong to the new file.
+		Files.deleteIfExists(Paths.get(filename + LabelingAutosave.SUFFIX));
+	}
+
 	private void saveAsJson(Labeling labeling, String filename)
 		throws IOException
 	{
 		final String tmpFilename = filename + ".tmp";
-		try (FileWriter writer = new FileWriter(tmpFilename)) {
+		try (Writer writer = new BufferedWriter(new FileWriter(tmpFilename))) {
 			new Gson().toJson(labeling, Labeling.class, writer);
 		}
 		// Rename the file at the end, ensures to not corrupt an existing file,
@@ -139,30 +262,28 @@ public class LabelingSerializer {
 			StandardCopyOption.REPLACE_EXISTING);
 	}
 
-	private <I extends IntegerType<I>> void saveAsTiff(Labeling labeling,
-		String filename) throws IOException
+	private void saveAsTiff(Labeling labeling, String filename)
+		throws IOException
 	{
+		// NB: Don't write unused label sets to the .labels file.
+		labeling.compactLabelSets();
 		LabelsMetaData meta = new LabelsMetaData(labeling.getLabelSets());
 		try (FileWriter writer = new FileWriter(filename + ".labels")) {
 			new Gson().toJson(meta, writer);
 		}
-		DatasetIOService io = context.service(DatasetIOService.class);
-		DatasetService ds = context.service(DatasetService.class);
-		RandomAccessibleInterval<I> imgPlus = LabkitUtils.uncheckedCast(labeling
-			.getIndexImg());
-		io.save(ds.create(imgPlus), filename);
+		RandomAccessibleInterval<? extends IntegerType<?>> indexImg = labeling
+			.getIndexImg();
+		// NB: Only the tiles that contain labeled pixels are computed.
+		TiledTiffWriter.write(indexImg, labeling.sparsityCursor(),
+			TiledTiffWriter.PixelType.INT32, filename);
 	}
 
 	private static class LabelsMetaData {
 
 		List<Set<String>> labelSets;
 
-		public LabelsMetaData(Img<? extends IntegerType<?>> img) {
-			IntType max = new IntType(0);
-			img.forEach(x -> {
-				if (max.get() < x.getInteger()) max.set(x.getInteger());
-			});
-			labelSets = IntStream.rangeClosed(0, max.get()).mapToObj(i -> i == 0
+		public LabelsMetaData(int max) {
+			labelSets = IntStream.rangeClosed(0, max).mapToObj(i -> i == 0
 				? Collections.<String> emptySet() : Collections.singleton(Integer
 					.toString(i))).collect(Collectors.toList());
 		}
@@ -177,29 +298,43 @@ public class LabelingSerializer {
 		}
 	}
 
+	/**
+	 * Reads and writes a labeling as JSON. Both directions stream: the
+	 * coordinates are written straight from the cursors of the label regions
+	 * and read straight into the index image of the labeling, no JSON tree is
+	 * built for them.
+	 */
 	public static class Adapter extends TypeAdapter<Labeling> {
 
-		private static final Type regionType =
-			new TypeToken<IterableRegion<BitType>>()
-			{}.getType();
-
 		private static final Type mapType =
-			new TypeToken<Map<String, IterableRegion<BitType>>>()
+			new TypeToken<Map<String, long[][]>>()
 			{}.getType();
 
 		@Override
-		public void write(JsonWriter jsonWriter, Labeling labeling)
+		public void write(JsonWriter writer, Labeling labeling)
 			throws IOException
 		{
+			if (labeling == null) {
+				writer.nullValue();
+				return;
+			}
 			Gson gson = new Gson();
-			JsonObject jsonLabeling = new JsonObject();
-			jsonLabeling.add("interval", gson.toJsonTree(new FinalInterval(labeling),
-				FinalInterval.class));
-			jsonLabeling.add("pixelSizes", gson.toJsonTree(getPixelSize(labeling),
-				PixelSize[].class));
-			jsonLabeling.add("labels", regionsToJson(labeling.iterableRegions(),
-				gson));
-			gson.toJson(jsonLabeling, jsonWriter);
+			writer.beginObject();
+			writer.name("interval");
+			gson.toJson(new FinalInterval(labeling), FinalInterval.class, writer);
+			writer.name("pixelSizes");
+			gson.toJson(getPixelSize(labeling), PixelSize[].class, writer);
+			writer.name("labels");
+			writer.beginObject();
+			for (Map.Entry<Label, IterableRegion<BitType>> entry : labeling
+				.iterableRegions().entrySet())
+			{
+				writer.name(entry.getKey().name());
+				SparseIterableRegionSerializer.writeCoordinates(writer, entry
+					.getValue().cursor());
+			}
+			writer.endObject();
+			writer.endObject();
 		}
 
 		private PixelSize[] getPixelSize(Labeling labeling) {
@@ -214,81 +349,87 @@ public class LabelingSerializer {
 			return new PixelSize(linear.scale(), linear.unit());
 		}
 
-		private JsonObject regionsToJson(
-			Map<Label, ? extends IterableRegion<BitType>> regions, Gson gson)
-		{
-			JsonObject map = new JsonObject();
-			regions.forEach((label, region) -> map.add(label.name(), regionToJson(
-				gson, region)));
-			return map;
+		@Override
+		public Labeling read(JsonReader reader) throws IOException {
+			if (reader.peek() == JsonToken.NULL) {
+				reader.nextNull();
+				return null;
+			}
+			Gson gson = new Gson();
+			Interval interval = null;
+			PixelSize[] pixelSizes = null;
+			Labeling labeling = null;
+			Map<String, long[][]> buffered = null;
+			reader.beginObject();
+			while (reader.hasNext()) {
+				switch (reader.nextName()) {
+					case "interval":
+						interval = gson.fromJson(reader, FinalInterval.class);
+						break;
+					case "pixelSizes":
+						pixelSizes = gson.fromJson(reader, PixelSize[].class);
+						break;
+					case "labels":
+						// NB: The interval is needed to stream the coordinates. It's
+						// written first, otherwise the labels are buffered.
+						if (interval == null) buffered = gson.fromJson(reader, mapType);
+						else labeling = readLabels(reader, interval);
+						break;
+					default:
+						reader.skipValue();
+				}
+			}
+			reader.endObject();
+			if (interval == null) throw new JsonParseException(
+				"Labeling has no interval.");
+			if (labeling == null) labeling = Labeling.createEmpty(Collections
+				.emptyList(), interval);
+			if (buffered != null) addLabels(labeling, buffered);
+			if (pixelSizes != null) labeling.setAxes(pixelSizesToAxes(pixelSizes));
+			return labeling;
 		}
 
-		private JsonElement regionToJson(Gson gson,
-			IterableRegion<BitType> region)
+		private Labeling readLabels(JsonReader reader, Interval interval)
+			throws IOException
 		{
-			JsonArray result = new JsonArray();
-			Cursor<Void> cursor = region.cursor();
-			long[] coords = new long[cursor.numDimensions()];
-			while (cursor.hasNext()) {
-				cursor.fwd();
-				cursor.localize(coords);
-				result.add(gson.toJsonTree(coords, long[].class));
+			Labeling labeling = Labeling.createEmpty(Collections.emptyList(),
+				interval);
+			Point point = new Point(interval.numDimensions());
+			reader.beginObject();
+			while (reader.hasNext()) {
+				LabelSetOperation operation = addOperation(labeling, reader
+					.nextName());
+				SparseIterableRegionSerializer.readCoordinates(reader, point,
+					position -> labeling.update(position, operation));
 			}
-			return result;
+			reader.endObject();
+			return labeling;
 		}
 
-		@Override
-		public Labeling read(JsonReader jsonReader) throws IOException {
-			Gson gson = new GsonBuilder().registerTypeAdapter(Labeling.class,
-				new MyDeserializer()).create();
-			return gson.fromJson(jsonReader, Labeling.class);
+		private void addLabels(Labeling labeling, Map<String, long[][]> labels) {
+			Point point = new Point(labeling.numDimensions());
+			labels.forEach((name, coordinates) -> {
+				LabelSetOperation operation = addOperation(labeling, name);
+				for (long[] position : coordinates) {
+					point.setPosition(position);
+					labeling.update(point, operation);
+				}
+			});
 		}
 
-		private static class MyDeserializer implements JsonDeserializer<Labeling> {
-
-			@Override
-			public Labeling deserialize(JsonElement json, Type typeOfT,
-				JsonDeserializationContext context) throws JsonParseException
-			{
-				JsonObject object = json.getAsJsonObject();
-				Interval interval = context.deserialize(object.get("interval"),
-					FinalInterval.class);
-				PixelSize[] axes = context.deserialize(object.get("pixelSizes"),
-					PixelSize[].class);
-				Map<String, IterableRegion<BitType>> regions = new TreeMap<>();
-				object.getAsJsonObject("labels").entrySet().forEach(entry -> regions
-					.put(entry.getKey(), regionFromJson(context, interval, entry
-						.getValue())));
-				Labeling labeling = regions.isEmpty() ? Labeling.createEmptyLabels(
-					Collections.emptyList(), interval) : Labeling.fromMap(regions);
-				labeling.setAxes(pixelSizesToAxes(axes));
-				return labeling;
-			}
-
-			private List<CalibratedAxis> pixelSizesToAxes(PixelSize[] axes) {
-				return Stream.of(axes).map(this::pixelSizeToAxis).collect(Collectors
-					.toList());
-			}
+		private LabelSetOperation addOperation(Labeling labeling, String name) {
+			Label label = labeling.addLabel(name);
+			return labeling.labelSetOperation(set -> set.add(label));
+		}
 
-			private LinearAxis pixelSizeToAxis(PixelSize pixelSize) {
-				return new DefaultLinearAxis(Axes.unknown(), pixelSize.unit,
-					pixelSize.size);
-			}
+		private List<CalibratedAxis> pixelSizesToAxes(PixelSize[] axes) {
+			return Stream.of(axes).map(this::pixelSizeToAxis).collect(Collectors
+				.toList());
+		}
 
-			private SparseIterableRegion regionFromJson(
-				JsonDeserializationContext context, Interval interval,
-				JsonElement jsonCoords)
-			{
-				SparseIterableRegion result = new SparseIterableRegion(interval);
-				JsonArray array = jsonCoords.getAsJsonArray();
-				Point point = new Point(interval.numDimensions());
-				for (JsonElement item : array) {
-					long[] coords = context.deserialize(item, long[].class);
-					point.setPosition(coords);
-					result.add(point);
-				}
-				return result;
-			}
+		private LinearAxis pixelSizeToAxis(PixelSize pixelSize) {
+			return new DefaultLinearAxis(Axes.unknown(), pixelSize.unit,
+				pixelSize.size);
 		}
 
 		private static class PixelSize {
@@ -1,15 +1,11 @@
 
 package net.imglib2.labkit.labeling;
 
-import net.imglib2.Cursor;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccess;
-import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.roi.labeling.ImgLabeling;
 import net.imglib2.roi.labeling.LabelingMapping;
-import net.imglib2.labkit.utils.DimensionUtils;
 import net.imglib2.roi.labeling.LabelingType;
-import net.imglib2.view.Views;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -18,38 +14,20 @@ import java.util.Map;
 import java.util.Set;
 import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 
 public class Labelings {
 
+	/**
+	 * Returns a view for each hyperslice of the last dimension.
+	 *
+	 * @see Labeling#sliceView(long)
+	 */
 	public static List<Labeling> slices(Labeling labeling) {
 		int sliceDimension = labeling.numDimensions() - 1;
-		Interval sliceInterval = DimensionUtils.removeLastDimension(labeling);
-		List<Label> labels = labeling.getLabels();
-		List<Labeling> slices = IntStream.range(0, Math.toIntExact(labeling
-			.dimension(sliceDimension))).mapToObj(ignore -> Labeling
-				.createEmptyLabels(labels, sliceInterval)).collect(Collectors.toList());
-		sparseCopy(labeling, Views.stack(slices));
-		return slices;
-	}
-
-	private static void sparseCopy(Labeling labeling,
-		RandomAccessibleInterval<LabelingType<Label>> target)
-	{
-		Cursor<?> cursor = labeling.sparsityCursor();
-		RandomAccess<LabelingType<Label>> out = target.randomAccess();
-		RandomAccess<LabelingType<Label>> in = labeling.randomAccess();
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			in.setPosition(cursor);
-			out.setPosition(cursor);
-			copy(in.get(), out.get());
-		}
-	}
-
-	private static <T> void copy(Set<T> in, Set<T> out) {
-		out.clear();
-		out.addAll(in);
+		return LongStream.rangeClosed(labeling.min(sliceDimension), labeling.max(
+			sliceDimension)).mapToObj(labeling::sliceView).collect(Collectors
+				.toList());
 	}
 
 	public static Labeling singleton(Interval interval, String labelName,
@@ -1,8 +1,8 @@
 
 package net.imglib2.labkit.labeling;
 
-import gnu.trove.map.TIntObjectMap;
-import gnu.trove.map.hash.TIntObjectHashMap;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.Converters;
 import net.imglib2.labkit.bdv.BdvLayer;
@@ -12,12 +12,16 @@ import net.imglib2.labkit.models.LabelingModel;
 import net.imglib2.labkit.utils.ARGBVector;
 import net.imglib2.labkit.utils.Notifier;
 import net.imglib2.labkit.utils.RandomAccessibleContainer;
+import net.imglib2.sparse.SparseRandomAccessIntType;
+import net.imglib2.sparse.ValueChangeListener;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.view.Views;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * @author Matthias Arzt
@@ -28,57 +32,131 @@ public class LabelsLayer implements BdvLayer {
 
 	private final LabelingModel model;
 
-	private final RandomAccessibleInterval<ARGBType> view;
+	private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+		Runtime.getRuntime().availableProcessors(), runnable -> {
+			Thread thread = new Thread(runnable, "labels-pyramid");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+	private final LabelsSource source;
 
 	private final Notifier listeners = new Notifier();
 
-	private final ARGBType BLACK = new ARGBType(0);
+	private final Runnable onLabelSetsChanged = this::updateView;
+
+	private final ValueChangeListener onPixelChanged = (position, oldValue,
+		newValue) -> invalidate(position);
+
+	private Labeling labeling;
 
 	public LabelsLayer(LabelingModel model) {
 		this.model = model;
 		RandomAccessibleInterval<ARGBType> view = colorView();
 		container = new RandomAccessibleContainer<>(view);
-		this.view = Views.interval(container, view);
+		this.source = new LabelsSource(Views.interval(container, view), model
+			.labelTransformation(), model.isTimeSeries(), EXECUTOR,
+			listeners::notifyListeners);
 		model.labeling().notifier().add(this::updateView);
-		model.dataChangedNotifier().add(() -> listeners.notifyListeners());
+		model.dataChangedNotifier().add(this::onDataChanged);
 	}
 
 	private void updateView() {
 		container.setSource(colorView());
+		source.invalidateAll();
 		listeners.notifyListeners();
 	}
 
+	private void onDataChanged(Interval interval) {
+		// NB: A sparse index image reports every changed pixel, the pyramid cells
+		// of these pixels are already invalidated. The viewer repaints the
+		// changed interval itself.
+		if (sparseIndexImg(labeling) == null) source.invalidate(interval);
+	}
+
+	private void invalidate(Localizable position) {
+		source.invalidate(position);
+	}
+
+	private static SparseRandomAccessIntType sparseIndexImg(Labeling labeling) {
+		RandomAccessibleInterval<?> indexImg = labeling.getIndexImg();
+		return indexImg instanceof SparseRandomAccessIntType
+			? (SparseRandomAccessIntType) indexImg : null;
+	}
+
 	private RandomAccessibleInterval<ARGBType> colorView() {
 		Labeling labeling = model.labeling().get();
-		List<Set<Label>> labelSets = labeling.getLabelSets();
-		TIntObjectMap<ARGBType> colors = new TIntObjectHashMap<>();
-
-		return Converters.convert(labeling.getIndexImg(), (in, out) -> {
-			int i = in.getInteger();
-			ARGBType c = colors.get(i);
-			if (c == null) {
-				c = getColor(labelSets.get(i));
-				synchronized (colors) {
-					colors.put(i, c);
-				}
+		if (labeling != this.labeling) {
+			// NB: The color cache is keyed by label set index, it's rebuilt
+			// whenever the label sets are renumbered.
+			if (this.labeling != null) {
+				this.labeling.labelSetsNotifier().remove(onLabelSetsChanged);
+				SparseRandomAccessIntType indexImg = sparseIndexImg(this.labeling);
+				if (indexImg != null) indexImg.removeValueChangeListener(
+					onPixelChanged);
 			}
-			out.set(c);
-		}, new ARGBType());
+			labeling.labelSetsNotifier().add(onLabelSetsChanged);
+			SparseRandomAccessIntType indexImg = sparseIndexImg(labeling);
+			if (indexImg != null) indexImg.addValueChangeListener(onPixelChanged);
+			this.labeling = labeling;
+		}
+		ColorTable colors = new ColorTable(labeling.getLabelSets());
+		return Converters.convert(labeling.getIndexImg(), (in, out) -> out.set(
+			colors.get(in.getInteger())), new ARGBType());
 	}
 
-	private ARGBType getColor(Set<Label> set) {
-		List<Label> visible = set.stream().filter(Label::isVisible).collect(
-			Collectors.toList());
-		if (visible.isEmpty()) return BLACK;
+	private static int getColor(Set<Label> set) {
 		ARGBVector collector = new ARGBVector();
-		visible.forEach(label -> collector.add(label.color()));
-		collector.div(visible.size());
-		return collector.get();
+		int count = 0;
+		for (Label label : set)
+			if (label.isVisible()) {
+				collector.add(label.color());
+				count++;
+			}
+		if (count == 0) return 0;
+		collector.div(count);
+		return collector.getAsint();
+	}
+
+	/**
+	 * Lookup table from label set index to color. It's filled when it's
+	 * created, a new table is created whenever the colors or the visibility of
+	 * the labels change. Label sets that are added later are appended, by
+	 * replacing the array.
+	 */
+	private static class ColorTable {
+
+		private final List<Set<Label>> labelSets;
+
+		private volatile int[] colors;
+
+		private ColorTable(List<Set<Label>> labelSets) {
+			this.labelSets = labelSets;
+			this.colors = colors(new int[0], labelSets.size());
+		}
+
+		private int get(int index) {
+			int[] colors = this.colors;
+			return index < colors.length ? colors[index] : grow(index);
+		}
+
+		private synchronized int grow(int index) {
+			if (index >= colors.length) colors = colors(colors, Math.max(index + 1,
+				labelSets.size()));
+			return colors[index];
+		}
+
+		private int[] colors(int[] known, int size) {
+			int[] colors = Arrays.copyOf(known, size);
+			for (int i = known.length; i < size; i++)
+				colors[i] = getColor(labelSets.get(i));
+			return colors;
+		}
 	}
 
 	@Override
 	public BdvShowable image() {
-		return BdvShowable.wrap(view, model.labelTransformation());
+		return BdvShowable.wrap(source, source.numTimepoints());
 	}
 
 	@Override
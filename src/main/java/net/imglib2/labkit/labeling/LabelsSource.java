@@ -0,0 +1,369 @@
+
+package net.imglib2.labkit.labeling;
+
+import bdv.util.AbstractSource;
+import bdv.viewer.Interpolation;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.IntArray;
+import net.imglib2.img.basictypeaccess.volatiles.array.VolatileIntArray;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.LazyCellImg;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.iterator.LocalizingIntervalIterator;
+import net.imglib2.labkit.utils.ARGBVector;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.volatiles.VolatileARGBType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Resolution pyramid of the label colors, as a {@link bdv.viewer.Source}. The
+ * first level is the full resolution color view of the labeling. Each further
+ * level halves the spatial dimensions of the level before. Its pixels are the
+ * average of the colored pixels, that they cover, so thin labels stay visible
+ * when zoomed out. The levels are computed lazily, cell by cell, and the cells
+ * are softly cached.
+ * <p>
+ * The source is volatile. A cell that is not yet computed is returned as
+ * invalid, and is computed by the executor. BigDataViewer shows a coarser
+ * level meanwhile, so rendering never waits for the computation. An outdated
+ * cell is shown until it has been recomputed. The given callback is run
+ * whenever a cell has been computed.
+ * <p>
+ * {@link #invalidate(Localizable)} marks only the cells, that contain the
+ * given pixel, to be recomputed when they are requested next.
+ *
+ * @author Matthias Arzt
+ */
+class LabelsSource extends AbstractSource<VolatileARGBType> {
+
+	private static final int MAX_LEVELS = 8;
+
+	private static final int MIN_SIZE = 256;
+
+	private final RandomAccessibleInterval<ARGBType> fullResolution;
+
+	private final AffineTransform3D labelTransformation;
+
+	private final int spatialDimensions;
+
+	private final long[] offset;
+
+	private final List<Level> levels = new ArrayList<>();
+
+	private final Executor executor;
+
+	private final Runnable onCellComputed;
+
+	/**
+	 * @param fullResolution Color view of the labeling.
+	 * @param labelTransformation Transformation of the labeling, it's read
+	 *          whenever BigDataViewer asks for the source transform.
+	 * @param isTimeSeries True if the last dimension is time.
+	 * @param executor Computes the cells of the downsampled levels.
+	 * @param onCellComputed Called when a cell has been computed.
+	 */
+	LabelsSource(RandomAccessibleInterval<ARGBType> fullResolution,
+		AffineTransform3D labelTransformation, boolean isTimeSeries,
+		Executor executor, Runnable onCellComputed)
+	{
+		super(new VolatileARGBType(), "Labeling");
+		this.fullResolution = fullResolution;
+		this.labelTransformation = labelTransformation;
+		this.executor = executor;
+		this.onCellComputed = onCellComputed;
+		this.spatialDimensions = fullResolution.numDimensions() - (isTimeSeries
+			? 1 : 0);
+		this.offset = Intervals.minAsLongArray(fullResolution);
+		RandomAccessibleInterval<ARGBType> previous = Views.zeroMin(
+			fullResolution);
+		while (levels.size() + 1 < MAX_LEVELS && maxSpatialSize(
+			previous) > MIN_SIZE)
+		{
+			Level level = new Level(levels.size() + 1, previous);
+			levels.add(level);
+			previous = level.image;
+		}
+	}
+
+	int numTimepoints() {
+		int n = fullResolution.numDimensions();
+		return spatialDimensions < n ? (int) fullResolution.dimension(n - 1) : 1;
+	}
+
+	/**
+	 * Marks the cells of all downsampled levels, that contain the given pixel,
+	 * as outdated.
+	 */
+	void invalidate(Localizable position) {
+		for (Level level : levels)
+			level.invalidate(position);
+	}
+
+	/**
+	 * Marks the cells of all downsampled levels, that overlap the given
+	 * interval, as outdated.
+	 */
+	void invalidate(Interval interval) {
+		for (Level level : levels)
+			level.invalidate(interval);
+	}
+
+	/**
+	 * Marks all cells as outdated.
+	 */
+	void invalidateAll() {
+		for (Level level : levels)
+			level.invalidateAll();
+	}
+
+	@Override
+	public RandomAccessibleInterval<VolatileARGBType> getSource(int t,
+		int level)
+	{
+		RandomAccessibleInterval<VolatileARGBType> image = level == 0
+			? Converters.convert(Views.zeroMin(fullResolution), (in, out) -> {
+				out.set(in.get());
+				out.setValid(true);
+			}, new VolatileARGBType()) : levels.get(level - 1).volatileImage;
+		if (spatialDimensions < image.numDimensions()) image = Views.hyperSlice(
+			image, spatialDimensions, t);
+		if (spatialDimensions == 2) image = Views.addDimension(image, 0, 0);
+		return image;
+	}
+
+	@Override
+	public RealRandomAccessible<VolatileARGBType> getInterpolatedSource(int t,
+		int level, Interpolation method)
+	{
+		// NB: Pixels outside of the labeling must be valid, otherwise the viewer
+		// would repaint forever.
+		VolatileARGBType outside = new VolatileARGBType(0);
+		outside.setValid(true);
+		return Views.interpolate(Views.extendValue(getSource(t, level), outside),
+			method == Interpolation.NLINEAR ? new NLinearInterpolatorFactory<>()
+				: new NearestNeighborInterpolatorFactory<>());
+	}
+
+	@Override
+	public int getNumMipmapLevels() {
+		return levels.size() + 1;
+	}
+
+	@Override
+	public void getSourceTransform(int t, int level,
+		AffineTransform3D transform)
+	{
+		AffineTransform3D scaling = new AffineTransform3D();
+		double scale = 1 << level;
+		for (int d = 0; d < 3; d++) {
+			boolean scaled = d < spatialDimensions;
+			double min = d < spatialDimensions ? offset[d] : 0;
+			scaling.set(scaled ? scale : 1, d, d);
+			scaling.set(min + (scaled ? 0.5 * (scale - 1) : 0), d, 3);
+		}
+		transform.set(labelTransformation);
+		transform.concatenate(scaling);
+	}
+
+	private long maxSpatialSize(RandomAccessibleInterval<?> image) {
+		long max = 0;
+		for (int d = 0; d < spatialDimensions; d++)
+			max = Math.max(max, image.dimension(d));
+		return max;
+	}
+
+	private class Level implements LazyCellImg.Get<Cell<IntArray>> {
+
+		private final int level;
+
+		private final RandomAccessibleInterval<ARGBType> previous;
+
+		private final CellGrid grid;
+
+		private final long[] gridDimensions;
+
+		private final int[] cellDimensions;
+
+		private final LazyCellImg<ARGBType, IntArray> image;
+
+		private final LazyCellImg<VolatileARGBType, VolatileIntArray> volatileImage;
+
+		private final VolatileIntArray invalid;
+
+		private final ConcurrentHashMap<Long, Tile> tiles =
+			new ConcurrentHashMap<>();
+
+		private Level(int level, RandomAccessibleInterval<ARGBType> previous) {
+			this.level = level;
+			this.previous = previous;
+			int n = previous.numDimensions();
+			long[] dimensions = new long[n];
+			this.cellDimensions = new int[n];
+			for (int d = 0; d < n; d++) {
+				boolean spatial = d < spatialDimensions;
+				dimensions[d] = spatial ? (previous.dimension(d) + 1) / 2 : previous
+					.dimension(d);
+				cellDimensions[d] = spatial ? (spatialDimensions == 2 ? 64 : 32) : 1;
+			}
+			this.grid = new CellGrid(dimensions, cellDimensions);
+			this.gridDimensions = grid.getGridDimensions();
+			this.image = new LazyCellImg<>(grid, new ARGBType(), this);
+			this.volatileImage = new LazyCellImg<>(grid, new VolatileARGBType(),
+				this::volatileGet);
+			this.invalid = new VolatileIntArray((int) Intervals.numElements(
+				cellDimensions), false);
+		}
+
+		private void invalidate(Localizable position) {
+			long index = 0;
+			long step = 1;
+			for (int d = 0; d < gridDimensions.length; d++) {
+				long p = position.getLongPosition(d) - offset[d];
+				if (d < spatialDimensions) p >>= level;
+				index += p / cellDimensions[d] * step;
+				step *= gridDimensions[d];
+			}
+			Tile tile = tiles.get(index);
+			if (tile != null) tile.dirty = true;
+		}
+
+		private void invalidate(Interval interval) {
+			int n = gridDimensions.length;
+			long[] min = new long[n];
+			long[] max = new long[n];
+			for (int d = 0; d < n; d++) {
+				int shift = d < spatialDimensions ? level : 0;
+				min[d] = Math.max(0, ((interval.min(d) - offset[d]) >> shift) /
+					cellDimensions[d]);
+				max[d] = Math.min(gridDimensions[d] - 1, ((interval.max(d) -
+					offset[d]) >> shift) / cellDimensions[d]);
+				if (min[d] > max[d]) return;
+			}
+			LocalizingIntervalIterator cells = new LocalizingIntervalIterator(min,
+				max);
+			long[] cell = new long[n];
+			while (cells.hasNext()) {
+				cells.fwd();
+				cells.localize(cell);
+				Tile tile = tiles.get(IntervalIndexer.positionToIndex(cell,
+					gridDimensions));
+				if (tile != null) tile.dirty = true;
+			}
+		}
+
+		private void invalidateAll() {
+			for (Tile tile : tiles.values())
+				tile.dirty = true;
+		}
+
+		@Override
+		public Cell<IntArray> get(long index) {
+			Tile tile = tiles.computeIfAbsent(index, ignore -> new Tile());
+			Cell<IntArray> cell = tile.cell.get();
+			if (cell == null || tile.dirty) {
+				// NB: Clear the flag before computing, a pixel that changes in the
+				// meantime marks the tile as outdated again.
+				tile.dirty = false;
+				cell = compute(index);
+				tile.cell = new SoftReference<>(cell);
+			}
+			return cell;
+		}
+
+		private Cell<VolatileIntArray> volatileGet(long index) {
+			Tile tile = tiles.computeIfAbsent(index, ignore -> new Tile());
+			if ((tile.cell.get() == null || tile.dirty) && tile.pending
+				.compareAndSet(false, true))
+			{
+				executor.execute(() -> {
+					try {
+						get(index);
+					}
+					finally {
+						tile.pending.set(false);
+					}
+					onCellComputed.run();
+				});
+			}
+			int n = grid.numDimensions();
+			long[] min = new long[n];
+			int[] dimensions = new int[n];
+			grid.getCellDimensions(index, min, dimensions);
+			Cell<IntArray> cell = tile.cell.get();
+			VolatileIntArray data = cell == null ? invalid : new VolatileIntArray(
+				cell.getData().getCurrentStorageArray(), true);
+			return new Cell<>(dimensions, min, data);
+		}
+
+		private Cell<IntArray> compute(long index) {
+			int n = grid.numDimensions();
+			long[] min = new long[n];
+			int[] dimensions = new int[n];
+			grid.getCellDimensions(index, min, dimensions);
+			ArrayImg<ARGBType, IntArray> cell = ArrayImgs.argbs(Arrays.stream(
+				dimensions).asLongStream().toArray());
+			RandomAccess<ARGBType> ra = Views.extendBorder(previous).randomAccess();
+			long[] position = new long[n];
+			Cursor<ARGBType> cursor = Views.translate(cell, min).localizingCursor();
+			while (cursor.hasNext()) {
+				cursor.fwd();
+				cursor.localize(position);
+				cursor.get().set(average(ra, position));
+			}
+			return new Cell<>(dimensions, min, cell.update(null));
+		}
+
+		/**
+		 * Returns the average of the colored pixels of the previous level, that
+		 * are covered by the given pixel of this level.
+		 */
+		private int average(RandomAccess<ARGBType> ra, long[] position) {
+			ARGBVector sum = new ARGBVector();
+			int count = 0;
+			int corners = 1 << spatialDimensions;
+			for (int corner = 0; corner < corners; corner++) {
+				for (int d = 0; d < position.length; d++)
+					ra.setPosition(d < spatialDimensions ? 2 * position[d] + ((corner >>
+						d) & 1) : position[d], d);
+				ARGBType color = ra.get();
+				if (color.get() == 0) continue;
+				sum.add(color);
+				count++;
+			}
+			if (count == 0) return 0;
+			sum.div(count);
+			return sum.getAsint();
+		}
+	}
+
+	private static class Tile {
+
+		private volatile boolean dirty = true;
+
+		private volatile SoftReference<Cell<IntArray>> cell =
+			new SoftReference<>(null);
+
+		private final AtomicBoolean pending = new AtomicBoolean();
+	}
+}
@@ -2,11 +2,12 @@
 package net.imglib2.labkit.labeling;
 
 import com.google.gson.*;
-import com.google.gson.reflect.TypeToken;
 import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.google.gson.stream.JsonWriter;
 import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
+import net.imglib2.Point;
 import net.imglib2.RandomAccess;
 import net.imglib2.roi.IterableRegion;
 import net.imglib2.sparse.SparseIterableRegion;
@@ -14,30 +15,103 @@ import net.imglib2.type.logic.BitType;
 
 import java.io.IOException;
 import java.lang.reflect.Type;
+import java.util.function.Consumer;
 
 /**
  * @author Matthias Arzt
  */
 public class SparseIterableRegionSerializer {
 
+	/**
+	 * Reads and writes a region as JSON. The coordinates are streamed, written
+	 * straight from the cursor and read straight into the
+	 * {@link SparseIterableRegion}.
+	 */
 	public static class Adapter extends TypeAdapter<IterableRegion<BitType>> {
 
 		@Override
 		public void write(JsonWriter writer, IterableRegion<BitType> roi)
 			throws IOException
 		{
-			Type type = new TypeToken<IterableRegion<BitType>>() {}.getType();
-			Gson gson = new GsonBuilder().registerTypeAdapter(type, new Serializer())
-				.create();
-			gson.toJson(roi, type, writer);
+			if (roi == null) {
+				writer.nullValue();
+				return;
+			}
+			writer.beginObject();
+			writer.name("interval");
+			new Gson().toJson(new FinalInterval(roi), FinalInterval.class, writer);
+			writer.name("coordinates");
+			writeCoordinates(writer, roi.localizingCursor());
+			writer.endObject();
 		}
 
 		@Override
 		public IterableRegion<BitType> read(JsonReader reader) throws IOException {
-			Gson gson = new GsonBuilder().registerTypeHierarchyAdapter(
-				IterableRegion.class, new Deserializer()).create();
-			return gson.fromJson(reader, IterableRegion.class);
+			if (reader.peek() == JsonToken.NULL) {
+				reader.nextNull();
+				return null;
+			}
+			Gson gson = new Gson();
+			SparseIterableRegion roi = null;
+			long[][] buffered = null;
+			reader.beginObject();
+			while (reader.hasNext()) {
+				switch (reader.nextName()) {
+					case "interval":
+						roi = new SparseIterableRegion(gson.fromJson(reader,
+							FinalInterval.class));
+						break;
+					case "coordinates":
+						// NB: Coordinates can only be streamed, if the interval is known.
+						if (roi == null) buffered = gson.fromJson(reader, long[][].class);
+						else readCoordinates(reader, new Point(roi.numDimensions()),
+							roi::add);
+						break;
+					default:
+						reader.skipValue();
+				}
+			}
+			reader.endObject();
+			if (roi == null) throw new JsonParseException("Region has no interval.");
+			if (buffered != null) for (long[] position : buffered)
+				roi.add(Point.wrap(position));
+			return roi;
+		}
+	}
+
+	/**
+	 * Writes the positions of the cursor as JSON array of coordinate arrays.
+	 */
+	static void writeCoordinates(JsonWriter writer, Cursor<?> cursor)
+		throws IOException
+	{
+		writer.beginArray();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			writer.beginArray();
+			for (int d = 0; d < cursor.numDimensions(); d++)
+				writer.value(cursor.getLongPosition(d));
+			writer.endArray();
+		}
+		writer.endArray();
+	}
+
+	/**
+	 * Reads a JSON array of coordinate arrays. The given point is set to each
+	 * position in turn, and passed to the action.
+	 */
+	static void readCoordinates(JsonReader reader, Point point,
+		Consumer<? super Point> action) throws IOException
+	{
+		reader.beginArray();
+		while (reader.hasNext()) {
+			reader.beginArray();
+			for (int d = 0; d < point.numDimensions(); d++)
+				point.setPosition(reader.nextLong(), d);
+			reader.endArray();
+			action.accept(point);
 		}
+		reader.endArray();
 	}
 
 	public static class Serializer implements
@@ -0,0 +1,82 @@
+
+package net.imglib2.labkit.labeling;
+
+import java.util.function.Consumer;
+
+/**
+ * Buffer for the changes of the pixels of a {@link Labeling}, which are
+ * reported concurrently by the threads that write. The changes are
+ * distributed over {@link #STRIPES} buffers by the flat index of the pixel,
+ * each buffer is guarded by its own lock. Threads that write to different
+ * tiles therefore rarely block each other. All changes of one pixel go to the
+ * same buffer, in the order of the writes.
+ * <p>
+ * The owner of the buffer applies the changes, when it's read, by calling
+ * {@link #drain(Consumer)}, or when a buffer gets full.
+ *
+ * @author Matthias Arzt
+ */
+final class StripedChanges {
+
+	private static final int STRIPES = 64;
+
+	/** Number of runs, above which {@link #add} reports a full buffer. */
+	private static final int MAX_RUNS = 4096;
+
+	private final Object[] locks = new Object[STRIPES];
+
+	private final ChangeRuns[] stripes = new ChangeRuns[STRIPES];
+
+	StripedChanges() {
+		for (int i = 0; i < STRIPES; i++) {
+			locks[i] = new Object();
+			stripes[i] = new ChangeRuns();
+		}
+	}
+
+	/**
+	 * Buffers the change. Returns true, if the buffer is full and should be
+	 * drained.
+	 */
+	boolean add(long index, int oldValue, int newValue) {
+		int stripe = stripe(index);
+		synchronized (locks[stripe]) {
+			ChangeRuns runs = stripes[stripe];
+			runs.add(index, oldValue, newValue);
+			return runs.size() > MAX_RUNS;
+		}
+	}
+
+	/**
+	 * Passes the buffered changes to the consumer, buffer by buffer, and
+	 * empties the buffers. The consumer is called without holding the lock of
+	 * the buffer. Calls of this method must therefore be synchronized by the
+	 * owner, otherwise the changes of one pixel might be applied out of order.
+	 */
+	void drain(Consumer<ChangeRuns> consumer) {
+		for (int i = 0; i < STRIPES; i++) {
+			ChangeRuns runs;
+			synchronized (locks[i]) {
+				runs = stripes[i];
+				if (runs.size() == 0) continue;
+				stripes[i] = new ChangeRuns();
+			}
+			consumer.accept(runs);
+		}
+	}
+
+	/**
+	 * Drops the buffered changes.
+	 */
+	void clear() {
+		drain(ignore -> {});
+	}
+
+	/**
+	 * Returns the buffer for the given flat index. Runs of 64 pixels share a
+	 * buffer, so consecutive changes are still merged into runs.
+	 */
+	private static int stripe(long index) {
+		return (int) (((index >>> 6) * 0x9E3779B97F4A7C15L) >>> 58);
+	}
+}
@@ -1,15 +1,11 @@
 
 package net.imglib2.labkit.models;
 
-import net.imglib2.Cursor;
-import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.labkit.labeling.Label;
 import net.imglib2.labkit.labeling.Labeling;
 import net.imglib2.labkit.utils.Notifier;
-import net.imglib2.roi.IterableRegion;
 import net.imglib2.labkit.utils.DimensionUtils;
-import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.ARGBType;
 
 import java.util.ArrayList;
@@ -66,8 +62,22 @@ public class ColoredLabelsModel {
 		fireLabelsChanged();
 	}
 
+	public void removeAllLabels() {
+		Labeling labeling = model.labeling().get();
+		labeling.removeLabels(new ArrayList<>(labeling.getLabels()));
+		fireLabelsChanged();
+	}
+
 	public void renameLabel(Label label, String newLabel) {
-		model.labeling().get().renameLabel(label, newLabel);
+		Labeling labeling = model.labeling().get();
+		Label existing = labeling.getLabels().stream().filter(l -> l != label && l
+			.name().equals(newLabel)).findFirst().orElse(null);
+		if (existing == null) labeling.renameLabel(label, newLabel);
+		else {
+			labeling.mergeLabels(label, existing);
+			if (model.selectedLabel().get() == label) model.selectedLabel().set(
+				existing);
+		}
 		fireLabelsChanged();
 	}
 
@@ -94,33 +104,12 @@ public class ColoredLabelsModel {
 	}
 
 	public void localizeLabel(final Label label) {
-		Interval labelBox = getBoundingBox(model.labeling().get().iterableRegions()
-			.get(label));
+		Interval labelBox = model.labeling().get().getBoundingBox(label);
 		if (labelBox == null) return;
 		model.transformationModel().transformToShowInterval(labelBox, model
 			.labelTransformation());
 	}
 
-	private static Interval getBoundingBox(IterableRegion<BitType> region) {
-		int numDimensions = region.numDimensions();
-		Cursor<?> cursor = region.cursor();
-		if (!cursor.hasNext()) return null;
-		long[] min = new long[numDimensions];
-		long[] max = new long[numDimensions];
-		cursor.fwd();
-		cursor.localize(min);
-		cursor.localize(max);
-		while (cursor.hasNext()) {
-			cursor.fwd();
-			for (int i = 0; i < numDimensions; i++) {
-				int pos = cursor.getIntPosition(i);
-				min[i] = Math.min(min[i], pos);
-				max[i] = Math.max(max[i], pos);
-			}
-		}
-		return new FinalInterval(min, max);
-	}
-
 	public void clearLabel(Label selected) {
 		model.labeling().get().clearLabel(selected);
 		fireLabelsChanged();
@@ -133,8 +133,9 @@ public class DefaultSegmentationModel implements SegmentationModel,
 		progressWriter.setProgressBarVisible(false);
 		progressWriter.setDetailsVisible(false);
 		try {
-			item.train(Collections.singletonList(new ValuePair<>(image(),
-				labeling())));
+			// NB: Train on a snapshot, the labeling may be modified meanwhile.
+			item.train(Collections.singletonList(new ValuePair<>(image(), labeling()
+				.snapshot())));
 		}
 		catch (CancellationException e) {
 			progressWriter.setVisible(false);
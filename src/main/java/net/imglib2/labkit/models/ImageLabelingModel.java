@@ -7,7 +7,7 @@ import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.labkit.bdv.BdvShowable;
 import net.imglib2.labkit.labeling.Label;
-import net.imglib2.labkit.utils.Notifier;
+import net.imglib2.labkit.utils.IntervalNotifier;
 import net.imglib2.labkit.labeling.Labeling;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.NumericType;
@@ -21,7 +21,7 @@ public class ImageLabelingModel implements LabelingModel {
 
 	private Holder<Labeling> labelingHolder;
 
-	private Notifier dataChangedNotifier = new Notifier();
+	private IntervalNotifier dataChangedNotifier = new IntervalNotifier();
 
 	private Holder<Label> selectedLabelHolder;
 
@@ -107,7 +107,7 @@ public class ImageLabelingModel implements LabelingModel {
 	}
 
 	@Override
-	public Notifier dataChangedNotifier() {
+	public IntervalNotifier dataChangedNotifier() {
 		return dataChangedNotifier;
 	}
 
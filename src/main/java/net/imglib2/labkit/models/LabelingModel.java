@@ -2,7 +2,7 @@
 package net.imglib2.labkit.models;
 
 import net.imglib2.labkit.labeling.Label;
-import net.imglib2.labkit.utils.Notifier;
+import net.imglib2.labkit.utils.IntervalNotifier;
 import net.imglib2.labkit.labeling.Labeling;
 import net.imglib2.realtransform.AffineTransform3D;
 
@@ -12,7 +12,11 @@ public interface LabelingModel {
 
 	Holder<Labeling> labeling();
 
-	Notifier dataChangedNotifier();
+	/**
+	 * Notified when pixels of the labeling are modified. The listeners receive
+	 * the bounding interval of the modified pixels.
+	 */
+	IntervalNotifier dataChangedNotifier();
 
 	boolean isTimeSeries();
 
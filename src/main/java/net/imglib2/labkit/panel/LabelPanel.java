@@ -16,7 +16,6 @@ import java.awt.*;
 import java.awt.event.ItemEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -95,8 +94,7 @@ public class LabelPanel {
 	}
 
 	private void removeAllLabels() {
-		List<Label> items = new ArrayList<>(model.items());
-		items.forEach(model::removeLabel);
+		model.removeAllLabels();
 	}
 
 	private void renameLabel(Label label) {
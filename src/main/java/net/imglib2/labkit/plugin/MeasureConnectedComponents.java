@@ -87,8 +87,8 @@ public class MeasureConnectedComponents implements Command {
 	static List<Long> connectedComponetsSizes(IterableRegion<BitType> region) {
 		List<Long> sizes = new ArrayList<>();
 		Cursor<Void> cursor = region.cursor();
-		SparseRandomAccessIntType visitedImage = new SparseRandomAccessIntType(
-			region);
+		SparseRandomAccessIntType visitedImage = SparseRandomAccessIntType
+			.blockSparse(region);
 		RandomAccess<IntType> visited = visitedImage.randomAccess();
 		int currentIndex = 0;
 		while (cursor.hasNext()) {
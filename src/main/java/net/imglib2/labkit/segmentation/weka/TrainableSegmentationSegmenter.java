@@ -212,8 +212,8 @@ public class TrainableSegmentationSegmenter implements Segmenter {
 	private SparseRandomAccessIntType getClassIndices(Labeling labeling,
 		List<String> classes)
 	{
-		SparseRandomAccessIntType result = new SparseRandomAccessIntType(labeling,
-			-1);
+		SparseRandomAccessIntType result = SparseRandomAccessIntType.blockSparse(
+			labeling, -1);
 		Map<Set<Label>, Integer> classIndices = new HashMap<>();
 		Function<Set<Label>, Integer> compute = set -> set.stream().mapToInt(
 			label -> classes.indexOf(label.name())).filter(i -> i >= 0).min().orElse(
@@ -0,0 +1,32 @@
+
+package net.imglib2.labkit.utils;
+
+import net.imglib2.Interval;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Like {@link Notifier}, but the listeners receive the interval, that has
+ * changed.
+ *
+ * @author Matthias Arzt
+ */
+public class IntervalNotifier {
+
+	private final List<Consumer<Interval>> listeners =
+		new CopyOnWriteArrayList<>();
+
+	public void notifyListeners(Interval interval) {
+		listeners.forEach(listener -> listener.accept(interval));
+	}
+
+	public void add(Consumer<Interval> listener) {
+		listeners.add(listener);
+	}
+
+	public void remove(Consumer<Interval> listener) {
+		listeners.remove(listener);
+	}
+}
@@ -2,11 +2,14 @@
 package net.imglib2.labkit.utils;
 
 import bdv.export.ProgressWriter;
+import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
+import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.cell.CellGrid;
+import net.imglib2.sparse.SubCursor;
 import net.imglib2.type.BooleanType;
 import net.imglib2.type.logic.BoolType;
 import net.imglib2.util.Intervals;
@@ -15,9 +18,11 @@ import net.imglib2.view.Views;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
@@ -30,12 +35,70 @@ import java.util.stream.Stream;
  */
 public class ParallelUtils {
 
+	private static final int NUM_THREADS = Runtime.getRuntime()
+		.availableProcessors();
+
+	private static final AtomicInteger threadCount = new AtomicInteger();
+
+	/**
+	 * Shared thread pool, for tasks that are executed in parallel and waited
+	 * for, see {@link #executeInParallel(List)}. The threads are daemon threads,
+	 * and they are kept alive, so no pool is created per operation.
+	 */
+	private static final ExecutorService SHARED = Executors.newFixedThreadPool(
+		NUM_THREADS, runnable -> {
+			Thread thread = new Thread(runnable, "labkit-parallel-" +
+				threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+	/**
+	 * Returns the number of threads of the shared thread pool.
+	 */
+	public static int numThreads() {
+		return NUM_THREADS;
+	}
+
 	public static <T> List<Callable<Void>> chunkOperation(Img<T> image,
 		int[] cellDimensions, Consumer<RandomAccessibleInterval<T>> operation)
 	{
-		return getCells(new CellGrid(Intervals.dimensionsAsLongArray(image),
-			cellDimensions)).map(interval -> (Callable<Void>) (() -> {
-				operation.accept(Views.interval(image, interval));
+		return chunkOperation(image, new CellGrid(Intervals.dimensionsAsLongArray(
+			image), cellDimensions), operation);
+	}
+
+	/**
+	 * Splits the image into the cells of the given grid, one chunk per cell. The
+	 * grid is relative to the min corner of the image.
+	 */
+	public static <T> List<Callable<Void>> chunkOperation(
+		RandomAccessibleInterval<T> image, CellGrid grid,
+		Consumer<RandomAccessibleInterval<T>> operation)
+	{
+		long[] offset = Intervals.minAsLongArray(image);
+		return getCells(grid).map(cell -> (Callable<Void>) (() -> {
+			long[] min = Intervals.minAsLongArray(cell);
+			long[] max = Intervals.maxAsLongArray(cell);
+			for (int d = 0; d < offset.length; d++) {
+				min[d] += offset[d];
+				max[d] += offset[d];
+			}
+			operation.accept(Views.interval(image, min, max));
+			return null;
+		})).collect(Collectors.toList());
+	}
+
+	/**
+	 * Splits the iteration over the given iterable interval into chunks of
+	 * roughly equal numbers of elements. Each chunk gets its own
+	 * {@link SubCursor}. For sparse regions, only the stored pixels are split.
+	 */
+	public static <T> List<Callable<Void>> chunkOperation(
+		IterableInterval<T> image, int numChunks, Consumer<Cursor<T>> operation)
+	{
+		return SubCursor.split(image.cursor(), image.size(), numChunks).stream()
+			.map(cursor -> (Callable<Void>) (() -> {
+				operation.accept(cursor);
 				return null;
 			})).collect(Collectors.toList());
 	}
@@ -87,6 +150,52 @@ public class ParallelUtils {
 		});
 	}
 
+	/**
+	 * Executes the tasks on the shared thread pool, and waits until all are
+	 * done. The calling thread runs the tasks, that are not yet started by the
+	 * pool. An exception of a task is wrapped into an
+	 * {@link ExecutionException} and a {@link RuntimeException}.
+	 *
+	 * @see #submit(Callable)
+	 */
+	public static void executeInParallel(List<Callable<Void>> tasks) {
+		List<Future<Void>> futures = tasks.stream().map(ParallelUtils::submit)
+			.collect(Collectors.toList());
+		// NB: Wait for all tasks, before reporting the first failure.
+		ExecutionException failure = null;
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			}
+			catch (ExecutionException e) {
+				if (failure == null) failure = e;
+			}
+			catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		if (failure != null) throw new RuntimeException(failure);
+	}
+
+	/**
+	 * Submits the task to the shared thread pool. If no thread of the pool has
+	 * started the task yet, {@link Future#get()} runs it in the calling thread.
+	 * So waiting for the task always makes progress, even if it's called from a
+	 * thread of the pool, or while all threads of the pool are busy or blocked.
+	 */
+	public static <T> Future<T> submit(Callable<T> task) {
+		FutureTask<T> future = new FutureTask<T>(task) {
+
+			@Override
+			public T get() throws InterruptedException, ExecutionException {
+				run();
+				return super.get();
+			}
+		};
+		SHARED.execute(future);
+		return future;
+	}
+
 	public static void runInOtherThread(Runnable action) {
 		ExecutorService executer = Executors.newSingleThreadExecutor();
 		executer.submit(() -> {
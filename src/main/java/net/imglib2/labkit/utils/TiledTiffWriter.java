@@ -0,0 +1,449 @@
+
+package net.imglib2.labkit.utils;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an integer image as tiled, deflate compressed BigTIFF. The first two
+ * dimensions are split into tiles, each plane of the remaining dimensions is
+ * written as one page. An ImageJ description records the number of slices and
+ * frames, for three- and four-dimensional images.
+ * <p>
+ * The tiles are filled and compressed in parallel, and written in order, while
+ * the following tiles are still being computed. If the positions of the
+ * non-zero pixels are given, as for a sparse labeling, only the tiles, that
+ * contain any of them, are computed. All other tiles refer to one compressed
+ * empty tile, that is written once.
+ *
+ * @author Matthias Arzt
+ */
+public class TiledTiffWriter {
+
+	public enum PixelType {
+			UINT8(8, 1), INT32(32, 2);
+
+		private final int bits;
+
+		private final int sampleFormat;
+
+		PixelType(int bits, int sampleFormat) {
+			this.bits = bits;
+			this.sampleFormat = sampleFormat;
+		}
+	}
+
+	private static final int TILE_SIZE = 256;
+
+	private static final short BIG_ENDIAN = 0x4D4D;
+
+	private static final short BIG_TIFF = 43;
+
+	private static final short SHORT = 3;
+
+	private static final short ASCII = 2;
+
+	private static final short LONG = 4;
+
+	private static final short LONG8 = 16;
+
+	private static final short DEFLATE = 8;
+
+	private final RandomAccessibleInterval<? extends IntegerType<?>> image;
+
+	private final PixelType pixelType;
+
+	private final int tilesX;
+
+	private final int tilesY;
+
+	private final int tilesPerPlane;
+
+	private final long numPlanes;
+
+	private final String description;
+
+	private TiledTiffWriter(
+		RandomAccessibleInterval<? extends IntegerType<?>> image,
+		PixelType pixelType)
+	{
+		if (image.numDimensions() < 2) throw new IllegalArgumentException(
+			"The image must have at least two dimensions.");
+		this.image = image;
+		this.pixelType = pixelType;
+		this.tilesX = (int) divideRoundUp(image.dimension(0), TILE_SIZE);
+		this.tilesY = (int) divideRoundUp(image.dimension(1), TILE_SIZE);
+		this.tilesPerPlane = tilesX * tilesY;
+		this.numPlanes = Intervals.numElements(planeDimensions());
+		this.description = imageJDescription();
+	}
+
+	/**
+	 * Writes the image to the given file. If the cursor is not null, it must
+	 * visit all non-zero pixels of the image, only the tiles that contain
+	 * these pixels are computed.
+	 */
+	public static void write(
+		RandomAccessibleInterval<? extends IntegerType<?>> image,
+		Cursor<?> nonZeroPixels, PixelType pixelType, String filename)
+		throws IOException
+	{
+		new TiledTiffWriter(image, pixelType).write(nonZeroPixels, filename);
+	}
+
+	private void write(Cursor<?> nonZeroPixels, String filename)
+		throws IOException
+	{
+		long numTiles = numPlanes * tilesPerPlane;
+		if (numTiles > Integer.MAX_VALUE) throw new IllegalArgumentException(
+			"The image is too big.");
+		BitSet nonEmpty = nonEmptyTiles(nonZeroPixels, (int) numTiles);
+		long[] offsets = new long[(int) numTiles];
+		long[] byteCounts = new long[(int) numTiles];
+		// NB: Write to a temporary file first, so that a failed export doesn't
+		// destroy an existing file.
+		Path tmp = Paths.get(filename + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			CountingOutput out = new CountingOutput(channel);
+			out.writeShort(BIG_ENDIAN);
+			out.writeShort(BIG_TIFF);
+			out.writeShort(8);
+			out.writeShort(0);
+			out.writeLong(0); // first IFD, patched at the end
+			writeTiles(out, nonEmpty, offsets, byteCounts);
+			long firstIfd = writeIfds(out, offsets, byteCounts);
+			out.flush();
+			channel.write(ByteBuffer.allocate(8).putLong(0, firstIfd), 8);
+		}
+		catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		}
+		Files.move(tmp, Paths.get(filename), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private BitSet nonEmptyTiles(Cursor<?> nonZeroPixels, int numTiles) {
+		BitSet nonEmpty = new BitSet(numTiles);
+		if (nonZeroPixels == null) {
+			nonEmpty.set(0, numTiles);
+			return nonEmpty;
+		}
+		long[] planeMin = planeMin();
+		long[] planeDimensions = planeDimensions();
+		long[] planePosition = new long[planeMin.length];
+		while (nonZeroPixels.hasNext()) {
+			nonZeroPixels.fwd();
+			if (!Intervals.contains(image, nonZeroPixels)) continue;
+			nonEmpty.set(tileIndex(nonZeroPixels, planeMin, planeDimensions,
+				planePosition));
+		}
+		return nonEmpty;
+	}
+
+	private int tileIndex(Localizable position, long[] planeMin,
+		long[] planeDimensions, long[] planePosition)
+	{
+		for (int d = 0; d < planePosition.length; d++)
+			planePosition[d] = position.getLongPosition(d + 2) - planeMin[d];
+		// NB: A two-dimensional image has a single plane. IntervalIndexer doesn't
+		// support zero dimensions.
+		long plane = planePosition.length == 0 ? 0 : IntervalIndexer
+			.positionToIndex(planePosition, planeDimensions);
+		int tx = (int) ((position.getLongPosition(0) - image.min(0)) / TILE_SIZE);
+		int ty = (int) ((position.getLongPosition(1) - image.min(1)) / TILE_SIZE);
+		return (int) (plane * tilesPerPlane + ty * tilesX + tx);
+	}
+
+	/**
+	 * Computes the non-empty tiles in parallel, and writes each, as soon as it
+	 * and all tiles before it are done. Only a bounded number of tiles is kept
+	 * in memory.
+	 */
+	private void writeTiles(CountingOutput out, BitSet nonEmpty, long[] offsets,
+		long[] byteCounts) throws IOException
+	{
+		byte[] empty = compress(new int[TILE_SIZE * TILE_SIZE]);
+		long emptyOffset = out.position();
+		out.write(empty);
+		int window = 4 * ParallelUtils.numThreads();
+		Deque<Integer> tiles = new ArrayDeque<>();
+		Deque<Future<byte[]>> futures = new ArrayDeque<>();
+		try {
+			for (int tile = 0; tile < offsets.length; tile++) {
+				if (!nonEmpty.get(tile)) {
+					offsets[tile] = emptyOffset;
+					byteCounts[tile] = empty.length;
+					continue;
+				}
+				int index = tile;
+				tiles.add(tile);
+				futures.add(ParallelUtils.submit(() -> compress(readTile(index))));
+				if (futures.size() >= window) writeTile(out, tiles.poll(), futures
+					.poll(), offsets, byteCounts);
+			}
+			while (!futures.isEmpty())
+				writeTile(out, tiles.poll(), futures.poll(), offsets, byteCounts);
+		}
+		finally {
+			// NB: The pool is shared, don't leave tiles of a failed write in it.
+			futures.forEach(future -> future.cancel(true));
+		}
+	}
+
+	private void writeTile(CountingOutput out, int tile, Future<byte[]> future,
+		long[] offsets, long[] byteCounts) throws IOException
+	{
+		byte[] bytes;
+		try {
+			bytes = future.get();
+		}
+		catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof UncheckedIOException)
+				throw ((UncheckedIOException) cause).getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			throw new IOException(cause);
+		}
+		offsets[tile] = out.position();
+		byteCounts[tile] = bytes.length;
+		out.write(bytes);
+	}
+
+	private int[] readTile(int tile) {
+		int[] values = new int[TILE_SIZE * TILE_SIZE];
+		Interval interval = tileInterval(tile);
+		int width = (int) interval.dimension(0);
+		Cursor<? extends IntegerType<?>> cursor = Views.flatIterable(Views
+			.interval(image, interval)).cursor();
+		for (int i = 0; cursor.hasNext(); i++)
+			values[(i / width) * TILE_SIZE + i % width] = cursor.next()
+				.getInteger();
+		return values;
+	}
+
+	private Interval tileInterval(int tile) {
+		int n = image.numDimensions();
+		long[] min = new long[n];
+		long[] max = new long[n];
+		int inPlane = tile % tilesPerPlane;
+		min[0] = image.min(0) + (long) (inPlane % tilesX) * TILE_SIZE;
+		min[1] = image.min(1) + (long) (inPlane / tilesX) * TILE_SIZE;
+		max[0] = Math.min(min[0] + TILE_SIZE - 1, image.max(0));
+		max[1] = Math.min(min[1] + TILE_SIZE - 1, image.max(1));
+		long[] planePosition = new long[n - 2];
+		if (n > 2) IntervalIndexer.indexToPosition(tile / tilesPerPlane,
+			planeDimensions(), planePosition);
+		for (int d = 2; d < n; d++)
+			min[d] = max[d] = image.min(d) + planePosition[d - 2];
+		return new FinalInterval(min, max);
+	}
+
+	private byte[] compress(int[] values) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(
+			bytes, deflater)))
+		{
+			for (int value : values)
+				if (pixelType == PixelType.UINT8) out.writeByte(value);
+				else out.writeInt(value);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		finally {
+			deflater.end();
+		}
+		return bytes.toByteArray();
+	}
+
+	// -- Image file directories --
+
+	/**
+	 * Writes one image file directory per plane, each preceded by its tile
+	 * offsets and byte counts. Returns the offset of the first directory.
+	 */
+	private long writeIfds(CountingOutput out, long[] offsets,
+		long[] byteCounts) throws IOException
+	{
+		if (out.position() % 2 != 0) out.writeByte(0);
+		byte[] descriptionBytes = (description + "\0").getBytes(
+			StandardCharsets.US_ASCII);
+		long descriptionOffset = out.position();
+		out.write(descriptionBytes);
+		if (out.position() % 2 != 0) out.writeByte(0);
+		boolean inlineArrays = tilesPerPlane == 1;
+		long arrayBytes = inlineArrays ? 0 : 16L * tilesPerPlane;
+		long firstIfd = -1;
+		for (long plane = 0; plane < numPlanes; plane++) {
+			int first = (int) (plane * tilesPerPlane);
+			long offsetsOffset = out.position();
+			long byteCountsOffset = offsetsOffset + 8L * tilesPerPlane;
+			if (!inlineArrays) {
+				for (int i = 0; i < tilesPerPlane; i++)
+					out.writeLong(offsets[first + i]);
+				for (int i = 0; i < tilesPerPlane; i++)
+					out.writeLong(byteCounts[first + i]);
+			}
+			if (firstIfd < 0) firstIfd = out.position();
+			boolean withDescription = plane == 0;
+			int numEntries = withDescription ? 13 : 12;
+			long ifdBytes = 8 + 20L * numEntries + 8;
+			long next = plane + 1 < numPlanes ? out.position() + ifdBytes +
+				arrayBytes : 0;
+			out.writeLong(numEntries);
+			writeLongEntry(out, 256, image.dimension(0));
+			writeLongEntry(out, 257, image.dimension(1));
+			writeShortEntry(out, 258, pixelType.bits);
+			writeShortEntry(out, 259, DEFLATE);
+			writeShortEntry(out, 262, 1); // black is zero
+			if (withDescription) writeEntry(out, 270, ASCII,
+				descriptionBytes.length, descriptionOffset);
+			writeShortEntry(out, 277, 1);
+			writeShortEntry(out, 284, 1);
+			writeLongEntry(out, 322, TILE_SIZE);
+			writeLongEntry(out, 323, TILE_SIZE);
+			writeEntry(out, 324, LONG8, tilesPerPlane, inlineArrays ? offsets[first]
+				: offsetsOffset);
+			writeEntry(out, 325, LONG8, tilesPerPlane, inlineArrays
+				? byteCounts[first] : byteCountsOffset);
+			writeShortEntry(out, 339, pixelType.sampleFormat);
+			out.writeLong(next);
+		}
+		return firstIfd;
+	}
+
+	private void writeShortEntry(CountingOutput out, int tag, int value)
+		throws IOException
+	{
+		out.writeShort(tag);
+		out.writeShort(SHORT);
+		out.writeLong(1);
+		// NB: A value, that fits, is stored left-aligned in the 8 bytes.
+		out.writeShort(value);
+		out.writeShort(0);
+		out.writeInt(0);
+	}
+
+	private void writeLongEntry(CountingOutput out, int tag, long value)
+		throws IOException
+	{
+		out.writeShort(tag);
+		out.writeShort(LONG);
+		out.writeLong(1);
+		out.writeInt((int) value);
+		out.writeInt(0);
+	}
+
+	private void writeEntry(CountingOutput out, int tag, short type, long count,
+		long value) throws IOException
+	{
+		out.writeShort(tag);
+		out.writeShort(type);
+		out.writeLong(count);
+		out.writeLong(value);
+	}
+
+	// -- Helper methods --
+
+	private long[] planeMin() {
+		long[] min = new long[image.numDimensions() - 2];
+		for (int d = 0; d < min.length; d++)
+			min[d] = image.min(d + 2);
+		return min;
+	}
+
+	private long[] planeDimensions() {
+		long[] dimensions = new long[image.numDimensions() - 2];
+		for (int d = 0; d < dimensions.length; d++)
+			dimensions[d] = image.dimension(d + 2);
+		return dimensions;
+	}
+
+	private String imageJDescription() {
+		StringBuilder text = new StringBuilder("ImageJ=1.52a\n");
+		text.append("images=").append(numPlanes).append("\n");
+		int n = image.numDimensions();
+		if (n == 3 || n == 4) text.append("slices=").append(image.dimension(2))
+			.append("\n");
+		if (n == 4) text.append("frames=").append(image.dimension(3)).append(
+			"\nhyperstack=true\n");
+		return text.toString();
+	}
+
+	private static long divideRoundUp(long a, long b) {
+		return (a + b - 1) / b;
+	}
+
+	/**
+	 * Big-endian output, that knows its position in the file.
+	 */
+	private static class CountingOutput extends DataOutputStream {
+
+		private CountingOutput(FileChannel channel) {
+			super(new CountingStream(new BufferedOutputStream(Channels
+				.newOutputStream(channel), 1 << 16)));
+		}
+
+		private long position() {
+			return ((CountingStream) out).count;
+		}
+	}
+
+	private static class CountingStream extends FilterOutputStream {
+
+		private long count = 0;
+
+		private CountingStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
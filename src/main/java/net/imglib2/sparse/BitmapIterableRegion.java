@@ -0,0 +1,250 @@
+
+package net.imglib2.sparse;
+
+import net.imglib2.AbstractCursor;
+import net.imglib2.AbstractWrappedInterval;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.Sampler;
+import net.imglib2.img.basictypeaccess.array.LongArray;
+import net.imglib2.roi.IterableRegion;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.util.Intervals;
+
+import java.util.Iterator;
+
+/**
+ * Variant of {@link SparseIterableRegion} that is backed by a
+ * {@link CompressedBitmap} of linear indices. It needs much less memory per
+ * pixel, and supports union, intersection and difference of regions as
+ * word-level bitmap operations.
+ * <p>
+ * Adding and removing pixels is thread-safe. Cursors must not be used while
+ * pixels are added or removed.
+ *
+ * @author Matthias Arzt
+ */
+public class BitmapIterableRegion extends AbstractWrappedInterval<Interval>
+	implements IterableRegion<BitType>
+{
+
+	final private CompressedBitmap codes;
+
+	final private IntervalIndexer2 indexer;
+
+	public BitmapIterableRegion(Interval interval) {
+		this(interval, new CompressedBitmap());
+	}
+
+	public BitmapIterableRegion(Interval interval, CompressedBitmap codes) {
+		super(interval);
+		this.codes = codes;
+		this.indexer = new IntervalIndexer2(interval);
+	}
+
+	public CompressedBitmap bitmap() {
+		return codes;
+	}
+
+	public void add(Localizable position) {
+		long index = indexer.positionToIndex(position);
+		synchronized (codes) {
+			codes.add(index);
+		}
+	}
+
+	public void remove(Localizable position) {
+		long index = indexer.positionToIndex(position);
+		synchronized (codes) {
+			codes.remove(index);
+		}
+	}
+
+	private boolean contains(Localizable position) {
+		long index = indexer.positionToIndex(position);
+		synchronized (codes) {
+			return codes.contains(index);
+		}
+	}
+
+	public BitmapIterableRegion union(BitmapIterableRegion other) {
+		return new BitmapIterableRegion(this, CompressedBitmap.union(codes,
+			compatibleCodes(other)));
+	}
+
+	public BitmapIterableRegion intersection(BitmapIterableRegion other) {
+		return new BitmapIterableRegion(this, CompressedBitmap.intersection(codes,
+			compatibleCodes(other)));
+	}
+
+	public BitmapIterableRegion difference(BitmapIterableRegion other) {
+		return new BitmapIterableRegion(this, CompressedBitmap.difference(codes,
+			compatibleCodes(other)));
+	}
+
+	private CompressedBitmap compatibleCodes(BitmapIterableRegion other) {
+		if (!Intervals.equals(this, other)) throw new IllegalArgumentException(
+			"Intervals must match");
+		return other.codes;
+	}
+
+	@Override
+	public Cursor<Void> cursor() {
+		return new BitmapCursor();
+	}
+
+	@Override
+	public Cursor<Void> localizingCursor() {
+		return cursor();
+	}
+
+	@Override
+	public long size() {
+		return codes.cardinality();
+	}
+
+	@Override
+	public Void firstElement() {
+		return null;
+	}
+
+	@Override
+	public Object iterationOrder() {
+		return null;
+	}
+
+	@Override
+	public Iterator<Void> iterator() {
+		return cursor();
+	}
+
+	@Override
+	public RandomAccess<BitType> randomAccess() {
+		return new BitmapRandomAccess();
+	}
+
+	@Override
+	public RandomAccess<BitType> randomAccess(Interval interval) {
+		return randomAccess();
+	}
+
+	private class BitmapCursor extends AbstractCursor<Void> {
+
+		private final CompressedBitmap.Iterator iterator;
+		private final long[] position;
+		private long index;
+
+		private BitmapCursor() {
+			super(BitmapIterableRegion.this.numDimensions());
+			position = new long[BitmapIterableRegion.this.numDimensions()];
+			iterator = codes.iterator();
+			index = -1;
+		}
+
+		private BitmapCursor(BitmapCursor other) {
+			super(other.numDimensions());
+			position = other.position.clone();
+			iterator = other.iterator.copy();
+			index = other.index;
+		}
+
+		@Override
+		public Void get() {
+			return null;
+		}
+
+		@Override
+		public AbstractCursor<Void> copy() {
+			return new BitmapCursor(this);
+		}
+
+		@Override
+		public AbstractCursor<Void> copyCursor() {
+			return copy();
+		}
+
+		@Override
+		public void jumpFwd(long steps) {
+			if (steps <= 0) return;
+			if (steps > 1) {
+				iterator.skip(steps - 1);
+				index = -1;
+			}
+			fwd();
+		}
+
+		@Override
+		public void fwd() {
+			long next = iterator.next();
+			if (index < 0) indexer.indexToPosition(next, position);
+			else indexer.advance(position, next - index);
+			index = next;
+		}
+
+		@Override
+		public void reset() {
+			iterator.reset();
+			index = -1;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return iterator.hasNext();
+		}
+
+		@Override
+		public void localize(long[] position) {
+			System.arraycopy(this.position, 0, position, 0, n);
+		}
+
+		@Override
+		public long getLongPosition(int d) {
+			return position[d];
+		}
+	}
+
+	private class BitmapRandomAccess extends Point implements
+		RandomAccess<BitType>
+	{
+
+		private BitType value = new BitType(new LongArray(1)) {
+
+			@Override
+			public void set(boolean value) {
+				if (value) BitmapIterableRegion.this.add(BitmapRandomAccess.this);
+				else remove(BitmapRandomAccess.this);
+			}
+
+			@Override
+			public boolean get() {
+				return contains(BitmapRandomAccess.this);
+			}
+		};
+
+		private BitmapRandomAccess() {
+			super(BitmapIterableRegion.this.numDimensions());
+		}
+
+		private BitmapRandomAccess(Localizable localizable) {
+			super(localizable);
+		}
+
+		@Override
+		public RandomAccess<BitType> copyRandomAccess() {
+			return new BitmapRandomAccess(this);
+		}
+
+		@Override
+		public BitType get() {
+			return value;
+		}
+
+		@Override
+		public Sampler<BitType> copy() {
+			return copyRandomAccess();
+		}
+	}
+}
@@ -0,0 +1,552 @@
+
+package net.imglib2.sparse;
+
+import java.util.Arrays;
+
+/**
+ * A compressed bitmap of non-negative long values, similar to a roaring
+ * bitmap.
+ * <p>
+ * The values are grouped by their upper bits into containers of 2^16 values.
+ * A container with few values stores them as a sorted char array, a container
+ * with many values stores them as a plain bitmap of 1024 long words. Union,
+ * intersection and difference are computed container by container, mostly as
+ * word-level operations. Iteration visits the values in ascending order.
+ *
+ * @author Matthias Arzt
+ */
+public class CompressedBitmap {
+
+	private static final int ARRAY_MAX = 4096;
+
+	private static final int WORDS = 1024;
+
+	private long[] keys;
+
+	private Container[] containers;
+
+	private int numContainers;
+
+	private long cardinality;
+
+	public CompressedBitmap() {
+		this(4);
+	}
+
+	private CompressedBitmap(int capacity) {
+		keys = new long[capacity];
+		containers = new Container[capacity];
+		numContainers = 0;
+		cardinality = 0;
+	}
+
+	public long cardinality() {
+		return cardinality;
+	}
+
+	public boolean isEmpty() {
+		return cardinality == 0;
+	}
+
+	public boolean contains(long value) {
+		int i = indexOfKey(value >>> 16);
+		return i >= 0 && containers[i].contains((char) value);
+	}
+
+	/**
+	 * Adds the value. Returns true if the bitmap didn't contain the value before.
+	 */
+	public boolean add(long value) {
+		if (value < 0) throw new IllegalArgumentException(
+			"Value must not be negative.");
+		long key = value >>> 16;
+		int i = indexOfKey(key);
+		if (i < 0) {
+			i = -i - 1;
+			insertContainer(i, key, new ArrayContainer());
+		}
+		Container container = containers[i];
+		int before = container.cardinality();
+		containers[i] = container.add((char) value);
+		if (containers[i].cardinality() == before) return false;
+		cardinality++;
+		return true;
+	}
+
+	/**
+	 * Removes the value. Returns true if the bitmap contained the value.
+	 */
+	public boolean remove(long value) {
+		int i = indexOfKey(value >>> 16);
+		if (i < 0) return false;
+		Container container = containers[i];
+		int before = container.cardinality();
+		container = container.remove((char) value);
+		if (container.cardinality() == before) return false;
+		cardinality--;
+		if (container.cardinality() == 0) removeContainer(i);
+		else containers[i] = container;
+		return true;
+	}
+
+	public void clear() {
+		Arrays.fill(containers, 0, numContainers, null);
+		numContainers = 0;
+		cardinality = 0;
+	}
+
+	public CompressedBitmap copy() {
+		CompressedBitmap result = new CompressedBitmap(Math.max(4, numContainers));
+		for (int i = 0; i < numContainers; i++)
+			result.appendContainer(keys[i], containers[i].copy());
+		return result;
+	}
+
+	/**
+	 * Returns a new bitmap, that contains all values of a and b.
+	 */
+	public static CompressedBitmap union(CompressedBitmap a, CompressedBitmap b) {
+		CompressedBitmap result = new CompressedBitmap(Math.max(4, a.numContainers +
+			b.numContainers));
+		int i = 0, j = 0;
+		while (i < a.numContainers || j < b.numContainers) {
+			long keyA = i < a.numContainers ? a.keys[i] : Long.MAX_VALUE;
+			long keyB = j < b.numContainers ? b.keys[j] : Long.MAX_VALUE;
+			if (keyA < keyB) result.appendContainer(keyA, a.containers[i++].copy());
+			else if (keyB < keyA) result.appendContainer(keyB, b.containers[j++]
+				.copy());
+			else result.appendContainer(keyA, a.containers[i++].or(b.containers[j++]));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a new bitmap, that contains the values that are in a and in b.
+	 */
+	public static CompressedBitmap intersection(CompressedBitmap a,
+		CompressedBitmap b)
+	{
+		CompressedBitmap result = new CompressedBitmap(Math.max(4, Math.min(
+			a.numContainers, b.numContainers)));
+		int i = 0, j = 0;
+		while (i < a.numContainers && j < b.numContainers) {
+			long keyA = a.keys[i];
+			long keyB = b.keys[j];
+			if (keyA < keyB) i++;
+			else if (keyB < keyA) j++;
+			else result.appendContainer(keyA, a.containers[i++].and(b.containers[j++]));
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a new bitmap, that contains the values that are in a but not in b.
+	 */
+	public static CompressedBitmap difference(CompressedBitmap a,
+		CompressedBitmap b)
+	{
+		CompressedBitmap result = new CompressedBitmap(Math.max(4,
+			a.numContainers));
+		int j = 0;
+		for (int i = 0; i < a.numContainers; i++) {
+			long key = a.keys[i];
+			while (j < b.numContainers && b.keys[j] < key)
+				j++;
+			if (j < b.numContainers && b.keys[j] == key) result.appendContainer(key,
+				a.containers[i].andNot(b.containers[j]));
+			else result.appendContainer(key, a.containers[i].copy());
+		}
+		return result;
+	}
+
+	public Iterator iterator() {
+		return new Iterator();
+	}
+
+	// -- Helper methods --
+
+	private int indexOfKey(long key) {
+		if (numContainers > 0 && keys[numContainers - 1] == key)
+			return numContainers - 1;
+		return Arrays.binarySearch(keys, 0, numContainers, key);
+	}
+
+	private void appendContainer(long key, Container container) {
+		if (container.cardinality() == 0) return;
+		insertContainer(numContainers, key, container);
+	}
+
+	private void insertContainer(int i, long key, Container container) {
+		if (numContainers == keys.length) {
+			keys = Arrays.copyOf(keys, numContainers * 2);
+			containers = Arrays.copyOf(containers, numContainers * 2);
+		}
+		System.arraycopy(keys, i, keys, i + 1, numContainers - i);
+		System.arraycopy(containers, i, containers, i + 1, numContainers - i);
+		keys[i] = key;
+		containers[i] = container;
+		numContainers++;
+		cardinality += container.cardinality();
+	}
+
+	private void removeContainer(int i) {
+		System.arraycopy(keys, i + 1, keys, i, numContainers - i - 1);
+		System.arraycopy(containers, i + 1, containers, i, numContainers - i - 1);
+		numContainers--;
+		containers[numContainers] = null;
+	}
+
+	// -- Helper classes --
+
+	private static abstract class Container {
+
+		abstract int cardinality();
+
+		abstract boolean contains(char value);
+
+		abstract Container add(char value);
+
+		abstract Container remove(char value);
+
+		abstract Container copy();
+
+		abstract BitmapContainer toBitmap();
+
+		Container or(Container other) {
+			return toBitmap().orInPlace(other.toBitmap()).optimize();
+		}
+
+		Container and(Container other) {
+			return toBitmap().andInPlace(other.toBitmap()).optimize();
+		}
+
+		Container andNot(Container other) {
+			return toBitmap().andNotInPlace(other.toBitmap()).optimize();
+		}
+	}
+
+	private static class ArrayContainer extends Container {
+
+		private char[] values;
+
+		private int cardinality;
+
+		private ArrayContainer() {
+			this(new char[4], 0);
+		}
+
+		private ArrayContainer(char[] values, int cardinality) {
+			this.values = values;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		boolean contains(char value) {
+			return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+		}
+
+		@Override
+		Container add(char value) {
+			int pos = Arrays.binarySearch(values, 0, cardinality, value);
+			if (pos >= 0) return this;
+			if (cardinality == ARRAY_MAX) return toBitmap().add(value);
+			pos = -pos - 1;
+			if (cardinality == values.length) values = Arrays.copyOf(values, Math
+				.min(ARRAY_MAX, cardinality * 2));
+			System.arraycopy(values, pos, values, pos + 1, cardinality - pos);
+			values[pos] = value;
+			cardinality++;
+			return this;
+		}
+
+		@Override
+		Container remove(char value) {
+			int pos = Arrays.binarySearch(values, 0, cardinality, value);
+			if (pos < 0) return this;
+			System.arraycopy(values, pos + 1, values, pos, cardinality - pos - 1);
+			cardinality--;
+			return this;
+		}
+
+		@Override
+		Container copy() {
+			return new ArrayContainer(Arrays.copyOf(values, Math.max(4,
+				cardinality)), cardinality);
+		}
+
+		@Override
+		BitmapContainer toBitmap() {
+			BitmapContainer result = new BitmapContainer();
+			for (int i = 0; i < cardinality; i++)
+				result.add(values[i]);
+			return result;
+		}
+
+		@Override
+		Container or(Container other) {
+			if (!(other instanceof ArrayContainer)) return super.or(other);
+			ArrayContainer o = (ArrayContainer) other;
+			char[] result = new char[cardinality + o.cardinality];
+			int i = 0, j = 0, k = 0;
+			while (i < cardinality && j < o.cardinality) {
+				char a = values[i], b = o.values[j];
+				if (a < b) result[k++] = values[i++];
+				else if (b < a) result[k++] = o.values[j++];
+				else {
+					result[k++] = a;
+					i++;
+					j++;
+				}
+			}
+			while (i < cardinality)
+				result[k++] = values[i++];
+			while (j < o.cardinality)
+				result[k++] = o.values[j++];
+			return new ArrayContainer(result, k).optimize();
+		}
+
+		@Override
+		Container and(Container other) {
+			char[] result = new char[cardinality];
+			int k = 0;
+			for (int i = 0; i < cardinality; i++)
+				if (other.contains(values[i])) result[k++] = values[i];
+			return new ArrayContainer(result, k);
+		}
+
+		@Override
+		Container andNot(Container other) {
+			char[] result = new char[cardinality];
+			int k = 0;
+			for (int i = 0; i < cardinality; i++)
+				if (!other.contains(values[i])) result[k++] = values[i];
+			return new ArrayContainer(result, k);
+		}
+
+		private Container optimize() {
+			return cardinality > ARRAY_MAX ? toBitmap() : this;
+		}
+	}
+
+	private static class BitmapContainer extends Container {
+
+		private final long[] words;
+
+		private int cardinality;
+
+		private BitmapContainer() {
+			this(new long[WORDS], 0);
+		}
+
+		private BitmapContainer(long[] words, int cardinality) {
+			this.words = words;
+			this.cardinality = cardinality;
+		}
+
+		@Override
+		int cardinality() {
+			return cardinality;
+		}
+
+		@Override
+		boolean contains(char value) {
+			return (words[value >>> 6] & (1L << value)) != 0;
+		}
+
+		@Override
+		Container add(char value) {
+			long word = words[value >>> 6];
+			long bit = 1L << value;
+			if ((word & bit) == 0) {
+				words[value >>> 6] = word | bit;
+				cardinality++;
+			}
+			return this;
+		}
+
+		@Override
+		Container remove(char value) {
+			long word = words[value >>> 6];
+			long bit = 1L << value;
+			if ((word & bit) == 0) return this;
+			words[value >>> 6] = word & ~bit;
+			cardinality--;
+			return optimize();
+		}
+
+		@Override
+		Container copy() {
+			return new BitmapContainer(words.clone(), cardinality);
+		}
+
+		@Override
+		BitmapContainer toBitmap() {
+			return new BitmapContainer(words.clone(), cardinality);
+		}
+
+		private BitmapContainer orInPlace(BitmapContainer other) {
+			for (int i = 0; i < WORDS; i++)
+				words[i] |= other.words[i];
+			return updateCardinality();
+		}
+
+		private BitmapContainer andInPlace(BitmapContainer other) {
+			for (int i = 0; i < WORDS; i++)
+				words[i] &= other.words[i];
+			return updateCardinality();
+		}
+
+		private BitmapContainer andNotInPlace(BitmapContainer other) {
+			for (int i = 0; i < WORDS; i++)
+				words[i] &= ~other.words[i];
+			return updateCardinality();
+		}
+
+		private BitmapContainer updateCardinality() {
+			int sum = 0;
+			for (long word : words)
+				sum += Long.bitCount(word);
+			cardinality = sum;
+			return this;
+		}
+
+		private Container optimize() {
+			if (cardinality > ARRAY_MAX) return this;
+			char[] values = new char[Math.max(4, cardinality)];
+			int k = 0;
+			for (int i = 0; i < WORDS; i++) {
+				long word = words[i];
+				while (word != 0) {
+					values[k++] = (char) ((i << 6) + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			return new ArrayContainer(values, k);
+		}
+	}
+
+	/**
+	 * Iterates over the values of a {@link CompressedBitmap} in ascending order.
+	 */
+	public class Iterator {
+
+		private int container;
+
+		private int position;
+
+		private int wordIndex;
+
+		private long word;
+
+		private long next;
+
+		private boolean hasNext;
+
+		private Iterator() {
+			reset();
+		}
+
+		private Iterator(Iterator other) {
+			container = other.container;
+			position = other.position;
+			wordIndex = other.wordIndex;
+			word = other.word;
+			next = other.next;
+			hasNext = other.hasNext;
+		}
+
+		public Iterator copy() {
+			return new Iterator(this);
+		}
+
+		public void reset() {
+			container = 0;
+			position = 0;
+			wordIndex = -1;
+			word = 0;
+			findNext();
+		}
+
+		public boolean hasNext() {
+			return hasNext;
+		}
+
+		public long next() {
+			long result = next;
+			findNext();
+			return result;
+		}
+
+		/**
+		 * Skips the given number of values, same as calling {@link #next()} that
+		 * many times. Containers that are skipped completely are not visited
+		 * value by value.
+		 */
+		public void skip(long steps) {
+			while (steps > 0 && hasNext) {
+				long remaining = remainingInContainer();
+				if (steps < remaining) {
+					for (; steps > 0; steps--)
+						findNext();
+					return;
+				}
+				steps -= remaining;
+				container++;
+				position = 0;
+				wordIndex = -1;
+				word = 0;
+				findNext();
+			}
+		}
+
+		/**
+		 * Returns the number of values in the current container, that are not yet
+		 * returned by {@link #next()}. This includes the next value.
+		 */
+		private long remainingInContainer() {
+			Container c = containers[container];
+			if (c instanceof ArrayContainer) return ((ArrayContainer) c).cardinality -
+				position + 1;
+			long[] words = ((BitmapContainer) c).words;
+			long count = 1 + Long.bitCount(word);
+			for (int i = wordIndex + 1; i < WORDS; i++)
+				count += Long.bitCount(words[i]);
+			return count;
+		}
+
+		private void findNext() {
+			for (; container < numContainers; container++, position = 0,
+				wordIndex = -1, word = 0)
+			{
+				long high = keys[container] << 16;
+				Container c = containers[container];
+				if (c instanceof ArrayContainer) {
+					ArrayContainer array = (ArrayContainer) c;
+					if (position < array.cardinality) {
+						next = high | array.values[position++];
+						hasNext = true;
+						return;
+					}
+				}
+				else {
+					long[] words = ((BitmapContainer) c).words;
+					while (word == 0 && wordIndex + 1 < WORDS)
+						word = words[++wordIndex];
+					if (word != 0) {
+						next = high | ((long) wordIndex << 6) | Long
+							.numberOfTrailingZeros(word);
+						word &= word - 1;
+						hasNext = true;
+						return;
+					}
+				}
+			}
+			hasNext = false;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+
+package net.imglib2.sparse;
+
+import net.imglib2.Localizable;
+import net.imglib2.Point;
+
+/**
+ * A {@link Point} that reports every change of a coordinate to
+ * {@link #moved(int, long)}. Subclasses use this to keep a linear index up to
+ * date incrementally, instead of recomputing it from all coordinates on every
+ * access.
+ *
+ * @author Matthias Arzt
+ */
+abstract class IncrementalPoint extends Point {
+
+	IncrementalPoint(int n) {
+		super(n);
+	}
+
+	IncrementalPoint(Localizable localizable) {
+		super(localizable);
+	}
+
+	/**
+	 * Called after coordinate d has been changed by the given distance.
+	 */
+	abstract void moved(int d, long distance);
+
+	@Override
+	public void fwd(final int d) {
+		++position[d];
+		moved(d, 1);
+	}
+
+	@Override
+	public void bck(final int d) {
+		--position[d];
+		moved(d, -1);
+	}
+
+	@Override
+	public void move(final int distance, final int d) {
+		move((long) distance, d);
+	}
+
+	@Override
+	public void move(final long distance, final int d) {
+		position[d] += distance;
+		moved(d, distance);
+	}
+
+	@Override
+	public void move(final Localizable localizable) {
+		for (int d = 0; d < n; d++)
+			move(localizable.getLongPosition(d), d);
+	}
+
+	@Override
+	public void move(final int[] distance) {
+		for (int d = 0; d < n; d++)
+			move((long) distance[d], d);
+	}
+
+	@Override
+	public void move(final long[] distance) {
+		for (int d = 0; d < n; d++)
+			move(distance[d], d);
+	}
+
+	@Override
+	public void setPosition(final Localizable localizable) {
+		for (int d = 0; d < n; d++)
+			setPosition(localizable.getLongPosition(d), d);
+	}
+
+	@Override
+	public void setPosition(final int[] position) {
+		for (int d = 0; d < n; d++)
+			setPosition((long) position[d], d);
+	}
+
+	@Override
+	public void setPosition(final long[] position) {
+		for (int d = 0; d < n; d++)
+			setPosition(position[d], d);
+	}
+
+	@Override
+	public void setPosition(final int position, final int d) {
+		setPosition((long) position, d);
+	}
+
+	@Override
+	public void setPosition(final long position, final int d) {
+		long distance = position - this.position[d];
+		if (distance == 0) return;
+		this.position[d] = position;
+		moved(d, distance);
+	}
+}
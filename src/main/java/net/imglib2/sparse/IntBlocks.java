@@ -0,0 +1,938 @@
+
+package net.imglib2.sparse;
+
+import gnu.trove.list.array.TLongArrayList;
+import net.imglib2.AbstractCursor;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.util.Intervals;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Block-sparse storage of int values. The interval is divided into tiles of
+ * fixed size. A tile is a primitive int array, it is only allocated when a
+ * value different from the no entry value is written into it, and it's freed
+ * as soon as it contains nothing but the no entry value.
+ * <p>
+ * Tile sizes are powers of two, the position within a tile is computed with
+ * shifts and masks only.
+ * <p>
+ * Each tile switches its representation depending on how much of it is
+ * filled. A tile with few entries stores sorted pairs of position and value.
+ * Once the fraction of filled pixels exceeds the dense threshold, the tile is
+ * converted to a plain int array, and it is converted back when the fill
+ * drops below half of the threshold. Memory use therefore stays proportional to
+ * the number of stored values, for sparse as well as for densely painted
+ * regions.
+ * <p>
+ * The storage is thread-safe. Writes are synchronized on one of
+ * {@link #STRIPES} locks, which is chosen by the tile index, so writes to
+ * different tiles rarely block each other. Reads are lock-free.
+ * <p>
+ * {@link #snapshot()} returns a copy, that shares the tiles with this storage.
+ * Each tile remembers the storage that owns it, a tile that isn't owned is
+ * copied before it is written.
+ * <p>
+ * Optionally, the dense tiles are stored off-heap, in the pages of a
+ * {@link MappedIntPages}. The sparse tiles stay on the heap, they are small.
+ *
+ * @author Matthias Arzt
+ */
+final class IntBlocks {
+
+	private static final int PAGE_BITS = 10;
+
+	private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+
+	private static final int DEFAULT_BITS_PER_BLOCK = 12;
+
+	private static final int STRIPES = 64;
+
+	static final double DEFAULT_DENSE_THRESHOLD = 0.125;
+
+	private final int n;
+
+	private final long[] min;
+
+	private final int[] blockShift;
+
+	private final int[] blockMask;
+
+	private final int[] innerShift;
+
+	private final long[] gridDimensions;
+
+	private final long[] gridSteps;
+
+	private final int blockLength;
+
+	private final long numBlocks;
+
+	private final int noEntryValue;
+
+	private final int denseLimit;
+
+	private final int sparseLimit;
+
+	private final Block[][] pages;
+
+	/** Off-heap storage for the dense tiles, or null. */
+	private final MappedIntPages store;
+
+	private final Object[] locks = new Object[STRIPES];
+
+	private final LongAdder size = new LongAdder();
+
+	private volatile ValueChangeListener listener = null;
+
+	/**
+	 * Identifies the tiles, that this storage may modify in place. It's
+	 * replaced when a snapshot is taken.
+	 */
+	private volatile Object owner = new Object();
+
+	IntBlocks(Interval interval, int noEntryValue, int[] blockSize) {
+		this(interval, noEntryValue, blockSize, DEFAULT_DENSE_THRESHOLD);
+	}
+
+	/**
+	 * @param denseThreshold Fraction of filled pixels, above which a tile is
+	 *          stored as a plain array. Zero means, all tiles are dense.
+	 */
+	IntBlocks(Interval interval, int noEntryValue, int[] blockSize,
+		double denseThreshold)
+	{
+		this(interval, noEntryValue, blockSize, denseThreshold, false);
+	}
+
+	/**
+	 * @param offHeap Store the dense tiles off-heap, in memory-mapped scratch
+	 *          files, see {@link MappedIntPages}.
+	 */
+	IntBlocks(Interval interval, int noEntryValue, int[] blockSize,
+		double denseThreshold, boolean offHeap)
+	{
+		if (!(denseThreshold >= 0 && denseThreshold <= 1))
+			throw new IllegalArgumentException(
+				"Dense threshold must be between zero and one, but is " +
+					denseThreshold);
+		this.n = interval.numDimensions();
+		if (blockSize.length != n) throw new IllegalArgumentException(
+			"Block size must have the same number of dimensions as the interval.");
+		this.min = Intervals.minAsLongArray(interval);
+		this.noEntryValue = noEntryValue;
+		this.blockShift = new int[n];
+		this.blockMask = new int[n];
+		this.innerShift = new int[n];
+		this.gridDimensions = new long[n];
+		this.gridSteps = new long[n];
+		int bits = 0;
+		long numBlocks = 1;
+		for (int d = 0; d < n; d++) {
+			if (blockSize[d] <= 0 || Integer.bitCount(blockSize[d]) != 1)
+				throw new IllegalArgumentException(
+					"Block size must be a power of two, but is " + blockSize[d]);
+			blockShift[d] = Integer.numberOfTrailingZeros(blockSize[d]);
+			blockMask[d] = blockSize[d] - 1;
+			innerShift[d] = bits;
+			bits += blockShift[d];
+			gridSteps[d] = numBlocks;
+			gridDimensions[d] = (interval.dimension(d) + blockMask[d]) >>
+				blockShift[d];
+			numBlocks *= gridDimensions[d];
+		}
+		if (bits > 30) throw new IllegalArgumentException("Block size too big.");
+		this.blockLength = 1 << bits;
+		this.denseLimit = (int) (blockLength * denseThreshold);
+		this.sparseLimit = denseLimit / 2;
+		this.numBlocks = numBlocks;
+		this.pages = new Block[Math.toIntExact((numBlocks + PAGE_MASK) >>
+			PAGE_BITS)][];
+		this.store = offHeap ? new MappedIntPages(blockLength) : null;
+		for (int i = 0; i < STRIPES; i++)
+			locks[i] = new Object();
+	}
+
+	/**
+	 * Copy constructor, the copy shares all tiles with the original. Must be
+	 * called while holding all locks of the original.
+	 */
+	private IntBlocks(IntBlocks other) {
+		this.n = other.n;
+		this.min = other.min;
+		this.noEntryValue = other.noEntryValue;
+		this.blockShift = other.blockShift;
+		this.blockMask = other.blockMask;
+		this.innerShift = other.innerShift;
+		this.gridDimensions = other.gridDimensions;
+		this.gridSteps = other.gridSteps;
+		this.blockLength = other.blockLength;
+		this.denseLimit = other.denseLimit;
+		this.sparseLimit = other.sparseLimit;
+		this.numBlocks = other.numBlocks;
+		this.pages = new Block[other.pages.length][];
+		this.store = other.store;
+		for (int p = 0; p < pages.length; p++)
+			if (other.pages[p] != null) pages[p] = other.pages[p].clone();
+		for (int i = 0; i < STRIPES; i++)
+			locks[i] = new Object();
+		size.add(other.size());
+		other.owner = new Object();
+	}
+
+	/**
+	 * Returns a block size, with roughly 4096 pixels per block, that is a power
+	 * of two in each dimension and not bigger than needed for the given
+	 * interval.
+	 */
+	static int[] defaultBlockSize(Interval interval) {
+		int n = interval.numDimensions();
+		int bits = Math.max(1, DEFAULT_BITS_PER_BLOCK / Math.max(1, n));
+		int[] blockSize = new int[n];
+		for (int d = 0; d < n; d++) {
+			int needed = 64 - Long.numberOfLeadingZeros(interval.dimension(d) - 1);
+			blockSize[d] = 1 << Math.min(bits, needed);
+		}
+		return blockSize;
+	}
+
+	int noEntryValue() {
+		return noEntryValue;
+	}
+
+	boolean isOffHeap() {
+		return store != null;
+	}
+
+	/**
+	 * Returns a copy of this storage. The copy shares the tiles with this
+	 * storage, taking it costs one reference per tile. A shared tile is copied
+	 * by the first of the two storages, that writes to it. So neither sees the
+	 * writes of the other.
+	 */
+	IntBlocks snapshot() {
+		IntBlocks[] copy = { null };
+		withAllLocks(() -> copy[0] = new IntBlocks(this));
+		return copy[0];
+	}
+
+	/**
+	 * Runs the action while holding all locks, so that no value is written
+	 * meanwhile. Reads are not blocked.
+	 */
+	void withAllLocks(Runnable action) {
+		withAllLocks(0, action);
+	}
+
+	private void withAllLocks(int stripe, Runnable action) {
+		if (stripe == STRIPES) action.run();
+		else synchronized (locks[stripe]) {
+			withAllLocks(stripe + 1, action);
+		}
+	}
+
+	/**
+	 * Returns tasks, that replace every stored value by the result of the
+	 * operator. Each task covers a range of tiles, the tasks may be executed in
+	 * parallel. They don't lock, they must therefore be executed within
+	 * {@link #withAllLocks(Runnable)}. The operator must not map a stored value
+	 * to the no entry value. The listener is not notified.
+	 */
+	List<Callable<Void>> remapChunks(IntUnaryOperator operator, int numChunks) {
+		TLongArrayList allocated = new TLongArrayList();
+		for (long b = nextBlock(0); b >= 0; b = nextBlock(b + 1))
+			allocated.add(b);
+		int size = allocated.size();
+		int chunks = Math.max(1, Math.min(numChunks, size));
+		List<Callable<Void>> tasks = new ArrayList<>(chunks);
+		for (int c = 0; c < chunks; c++) {
+			int from = (int) ((long) size * c / chunks);
+			int to = (int) ((long) size * (c + 1) / chunks);
+			tasks.add(() -> {
+				for (int i = from; i < to; i++) {
+					long b = allocated.get(i);
+					Block block = block(b);
+					Block replacement = remap(block, operator);
+					if (replacement != block) setBlock(b, replacement);
+				}
+				return null;
+			});
+		}
+		return tasks;
+	}
+
+	/**
+	 * Applies the operator to the stored values of the block. Returns the block
+	 * itself, or a copy that is owned by this storage, if the block is shared
+	 * with a snapshot.
+	 */
+	private Block remap(Block block, IntUnaryOperator operator) {
+		if (block instanceof MappedBlock) return ((MappedBlock) block).remap(
+			operator);
+		int[] values = block instanceof DenseBlock ? ((DenseBlock) block).values
+			: ((SparseBlock) block).values;
+		int[] result = null;
+		for (int i = 0; i < values.length; i++) {
+			int old = values[i];
+			if (old == noEntryValue) continue;
+			int value = operator.applyAsInt(old);
+			if (value == old) continue;
+			if (value == noEntryValue) throw new IllegalArgumentException(
+				"A stored value must not be mapped to the no entry value.");
+			if (result == null) result = block.owner == owner ? values : values
+				.clone();
+			result[i] = value;
+		}
+		if (result == null || result == values) return block;
+		if (block instanceof DenseBlock) return new DenseBlock(result,
+			block.count());
+		return new SparseBlock(((SparseBlock) block).keys, result);
+	}
+
+	/**
+	 * Sets the listener, that is notified about every changed value. It's
+	 * called while the lock of the tile is held, so the notifications for one
+	 * pixel arrive in the order of the writes.
+	 */
+	void setListener(ValueChangeListener listener) {
+		this.listener = listener;
+	}
+
+	long size() {
+		return size.sum();
+	}
+
+	long allocatedBlocks() {
+		long count = 0;
+		for (long b = nextBlock(0); b >= 0; b = nextBlock(b + 1))
+			count++;
+		return count;
+	}
+
+	long denseBlocks() {
+		long count = 0;
+		for (long b = nextBlock(0); b >= 0; b = nextBlock(b + 1))
+			if (block(b) instanceof DenseBlock || block(b) instanceof MappedBlock)
+				count++;
+		return count;
+	}
+
+	int get(Localizable position) {
+		return get(blockIndex(position), innerIndex(position));
+	}
+
+	int get(long blockIndex, int innerIndex) {
+		Block block = block(blockIndex);
+		return block == null ? noEntryValue : block.get(innerIndex);
+	}
+
+	void set(Localizable position, int value) {
+		set(position, blockIndex(position), innerIndex(position), value);
+	}
+
+	/**
+	 * Writes the value. The position must match the block index and inner
+	 * index, it's passed to the listener.
+	 */
+	private void set(Localizable position, long blockIndex, int innerIndex,
+		int value)
+	{
+		synchronized (lock(blockIndex)) {
+			Block block = block(blockIndex);
+			int old = block == null ? noEntryValue : block.get(innerIndex);
+			write(position, blockIndex, block, innerIndex, old, value);
+		}
+	}
+
+	/**
+	 * Atomically replaces the value at the given position by the result of the
+	 * operator. Returns the new value.
+	 */
+	int update(Localizable position, IntUnaryOperator operator) {
+		long blockIndex = blockIndex(position);
+		int innerIndex = innerIndex(position);
+		synchronized (lock(blockIndex)) {
+			Block block = block(blockIndex);
+			int old = block == null ? noEntryValue : block.get(innerIndex);
+			int value = operator.applyAsInt(old);
+			write(position, blockIndex, block, innerIndex, old, value);
+			return value;
+		}
+	}
+
+	/**
+	 * Must be called while holding the lock of the block.
+	 */
+	private void write(Localizable position, long blockIndex, Block block,
+		int innerIndex, int old, int value)
+	{
+		if (old == value) return;
+		if (block != null && block.owner != owner) {
+			block = copy(block);
+			setBlock(blockIndex, block);
+		}
+		if (old == noEntryValue) size.increment();
+		else if (value == noEntryValue) size.decrement();
+		Block replacement = block == null ? new SparseBlock(innerIndex, value)
+			.optimize() : block.write(innerIndex, old, value);
+		if (replacement != block) setBlock(blockIndex, replacement);
+		ValueChangeListener listener = this.listener;
+		if (listener != null) listener.valueChanged(position, old, value);
+	}
+
+	/**
+	 * Returns a copy of the block, that is owned by this storage.
+	 */
+	private Block copy(Block block) {
+		if (block instanceof DenseBlock) return new DenseBlock((DenseBlock) block);
+		if (block instanceof MappedBlock) return new MappedBlock(
+			(MappedBlock) block);
+		SparseBlock sparse = (SparseBlock) block;
+		return new SparseBlock(sparse.keys, sparse.values.clone());
+	}
+
+	private Object lock(long blockIndex) {
+		return locks[(int) blockIndex & (STRIPES - 1)];
+	}
+
+	long blockIndex(Localizable position) {
+		long sum = 0;
+		for (int d = 0; d < n; d++)
+			sum += ((position.getLongPosition(d) - min[d]) >> blockShift[d]) *
+				gridSteps[d];
+		return sum;
+	}
+
+	int innerIndex(Localizable position) {
+		int sum = 0;
+		for (int d = 0; d < n; d++)
+			sum |= (int) ((position.getLongPosition(d) - min[d]) &
+				blockMask[d]) << innerShift[d];
+		return sum;
+	}
+
+	private Block block(long blockIndex) {
+		Block[] page = pages[(int) (blockIndex >>> PAGE_BITS)];
+		return page == null ? null : page[(int) blockIndex & PAGE_MASK];
+	}
+
+	/**
+	 * Stores the block, null frees the block.
+	 */
+	private void setBlock(long blockIndex, Block block) {
+		int p = (int) (blockIndex >>> PAGE_BITS);
+		Block[] page = pages[p];
+		if (page == null) {
+			if (block == null) return;
+			page = allocatePage(p);
+		}
+		page[(int) blockIndex & PAGE_MASK] = block;
+	}
+
+	private Block[] allocatePage(int p) {
+		synchronized (pages) {
+			Block[] page = pages[p];
+			if (page == null) pages[p] = page = new Block[PAGE_MASK + 1];
+			return page;
+		}
+	}
+
+	/**
+	 * Returns the index of the first allocated block, with an index greater or
+	 * equal to the given index. Returns -1 if there is no such block.
+	 */
+	private long nextBlock(long blockIndex) {
+		while (blockIndex < numBlocks) {
+			Block[] page = pages[(int) (blockIndex >>> PAGE_BITS)];
+			if (page == null) blockIndex = ((blockIndex >>> PAGE_BITS) + 1) <<
+				PAGE_BITS;
+			else if (page[(int) blockIndex & PAGE_MASK] != null) return blockIndex;
+			else blockIndex++;
+		}
+		return -1;
+	}
+
+	private void blockOrigin(long blockIndex, long[] origin) {
+		for (int d = 0; d < n; d++)
+			origin[d] = ((blockIndex / gridSteps[d] % gridDimensions[d]) <<
+				blockShift[d]) + min[d];
+	}
+
+	/**
+	 * A position, that keeps the tile index and the index within the tile up to
+	 * date incrementally. Moving along one dimension costs a shift, a mask and
+	 * two additions.
+	 */
+	static class Position extends IncrementalPoint {
+
+		private final IntBlocks blocks;
+
+		private final long[] blockCoordinate;
+
+		private final int[] innerCoordinate;
+
+		private long blockIndex;
+
+		private int innerIndex;
+
+		Position(IntBlocks blocks) {
+			super(blocks.n);
+			this.blocks = blocks;
+			this.blockCoordinate = new long[n];
+			this.innerCoordinate = new int[n];
+			for (int d = 0; d < n; d++)
+				moved(d, 0);
+		}
+
+		Position(Position other) {
+			super(other);
+			this.blocks = other.blocks;
+			this.blockCoordinate = other.blockCoordinate.clone();
+			this.innerCoordinate = other.innerCoordinate.clone();
+			this.blockIndex = other.blockIndex;
+			this.innerIndex = other.innerIndex;
+		}
+
+		@Override
+		final void moved(int d, long distance) {
+			long relative = position[d] - blocks.min[d];
+			long block = relative >> blocks.blockShift[d];
+			int inner = (int) (relative & blocks.blockMask[d]);
+			blockIndex += (block - blockCoordinate[d]) * blocks.gridSteps[d];
+			innerIndex += (inner - innerCoordinate[d]) << blocks.innerShift[d];
+			blockCoordinate[d] = block;
+			innerCoordinate[d] = inner;
+		}
+
+		int getValue() {
+			return blocks.get(blockIndex, innerIndex);
+		}
+
+		void setValue(int value) {
+			blocks.set(this, blockIndex, innerIndex, value);
+		}
+	}
+
+	private abstract class Block {
+
+		final Object owner = IntBlocks.this.owner;
+
+		abstract int count();
+
+		abstract int get(int innerIndex);
+
+		/**
+		 * Returns the first index, greater or equal to the given index, that holds
+		 * a value different from the no entry value. Returns -1 if there is none.
+		 */
+		abstract int next(int innerIndex);
+
+		/**
+		 * Writes the value, and returns the block that replaces this block. This
+		 * is the block itself, a block with a different representation, or null
+		 * if the block became empty.
+		 */
+		abstract Block write(int innerIndex, int old, int value);
+	}
+
+	private final class DenseBlock extends Block {
+
+		private final int[] values;
+
+		private int count;
+
+		private DenseBlock(SparseBlock sparse) {
+			values = new int[blockLength];
+			if (noEntryValue != 0) Arrays.fill(values, noEntryValue);
+			for (int i = 0; i < sparse.keys.length; i++)
+				values[sparse.keys[i]] = sparse.values[i];
+			count = sparse.keys.length;
+		}
+
+		private DenseBlock(DenseBlock other) {
+			this(other.values.clone(), other.count);
+		}
+
+		private DenseBlock(int[] values, int count) {
+			this.values = values;
+			this.count = count;
+		}
+
+		@Override
+		int count() {
+			return count;
+		}
+
+		@Override
+		int get(int innerIndex) {
+			return values[innerIndex];
+		}
+
+		@Override
+		int next(int innerIndex) {
+			for (int i = innerIndex; i < blockLength; i++)
+				if (values[i] != noEntryValue) return i;
+			return -1;
+		}
+
+		@Override
+		Block write(int innerIndex, int old, int value) {
+			values[innerIndex] = value;
+			if (old == noEntryValue) count++;
+			else if (value == noEntryValue) {
+				count--;
+				if (count == 0) return null;
+				if (count < sparseLimit) return new SparseBlock(this);
+			}
+			return this;
+		}
+	}
+
+	/**
+	 * Dense block, whose values are stored off-heap, in a page of the
+	 * {@link MappedIntPages}. The page is released, when the block is garbage
+	 * collected.
+	 */
+	private final class MappedBlock extends Block {
+
+		private final IntBuffer values = store.allocate(this);
+
+		private int count;
+
+		private MappedBlock(SparseBlock sparse) {
+			for (int i = 0; i < blockLength; i++)
+				values.put(i, noEntryValue);
+			for (int i = 0; i < sparse.keys.length; i++)
+				values.put(sparse.keys[i], sparse.values[i]);
+			count = sparse.keys.length;
+		}
+
+		private MappedBlock(MappedBlock other) {
+			values.duplicate().put(other.values.duplicate());
+			count = other.count;
+		}
+
+		@Override
+		int count() {
+			return count;
+		}
+
+		@Override
+		int get(int innerIndex) {
+			return values.get(innerIndex);
+		}
+
+		@Override
+		int next(int innerIndex) {
+			for (int i = innerIndex; i < blockLength; i++)
+				if (values.get(i) != noEntryValue) return i;
+			return -1;
+		}
+
+		@Override
+		Block write(int innerIndex, int old, int value) {
+			values.put(innerIndex, value);
+			if (old == noEntryValue) count++;
+			else if (value == noEntryValue) {
+				count--;
+				if (count == 0) return null;
+				if (count < sparseLimit) return new SparseBlock(this);
+			}
+			return this;
+		}
+
+		/**
+		 * Same as {@link IntBlocks#remap(Block, IntUnaryOperator)}.
+		 */
+		private Block remap(IntUnaryOperator operator) {
+			MappedBlock result = null;
+			for (int i = 0; i < blockLength; i++) {
+				int old = values.get(i);
+				if (old == noEntryValue) continue;
+				int value = operator.applyAsInt(old);
+				if (value == old) continue;
+				if (value == noEntryValue) throw new IllegalArgumentException(
+					"A stored value must not be mapped to the no entry value.");
+				if (result == null) result = owner == IntBlocks.this.owner ? this
+					: new MappedBlock(this);
+				result.values.put(i, value);
+			}
+			return result == null ? this : result;
+		}
+	}
+
+	/**
+	 * Block with sorted pairs of inner index and value. Inserting or removing an
+	 * entry creates a new block, so that lock-free readers always see
+	 * consistent arrays.
+	 */
+	private final class SparseBlock extends Block {
+
+		private final int[] keys;
+
+		private final int[] values;
+
+		private SparseBlock(int innerIndex, int value) {
+			keys = new int[] { innerIndex };
+			values = new int[] { value };
+		}
+
+		private SparseBlock(int[] keys, int[] values) {
+			this.keys = keys;
+			this.values = values;
+		}
+
+		private SparseBlock(Block dense) {
+			keys = new int[dense.count()];
+			values = new int[dense.count()];
+			for (int i = 0, k = 0; k < keys.length; i++) {
+				int value = dense.get(i);
+				if (value != noEntryValue) {
+					keys[k] = i;
+					values[k++] = value;
+				}
+			}
+		}
+
+		@Override
+		int count() {
+			return keys.length;
+		}
+
+		@Override
+		int get(int innerIndex) {
+			int pos = Arrays.binarySearch(keys, innerIndex);
+			return pos < 0 ? noEntryValue : values[pos];
+		}
+
+		@Override
+		int next(int innerIndex) {
+			int pos = Arrays.binarySearch(keys, innerIndex);
+			if (pos < 0) pos = -pos - 1;
+			return pos < keys.length ? keys[pos] : -1;
+		}
+
+		@Override
+		Block write(int innerIndex, int old, int value) {
+			int pos = Arrays.binarySearch(keys, innerIndex);
+			if (pos >= 0) {
+				if (value != noEntryValue) {
+					values[pos] = value;
+					return this;
+				}
+				if (keys.length == 1) return null;
+				return new SparseBlock(remove(keys, pos), remove(values, pos));
+			}
+			pos = -pos - 1;
+			return new SparseBlock(insert(keys, pos, innerIndex), insert(values, pos,
+				value)).optimize();
+		}
+
+		private Block optimize() {
+			if (keys.length <= denseLimit) return this;
+			return store == null ? new DenseBlock(this) : new MappedBlock(this);
+		}
+	}
+
+	private static int[] insert(int[] array, int pos, int value) {
+		int[] result = new int[array.length + 1];
+		System.arraycopy(array, 0, result, 0, pos);
+		result[pos] = value;
+		System.arraycopy(array, pos, result, pos + 1, array.length - pos);
+		return result;
+	}
+
+	private static int[] remove(int[] array, int pos) {
+		int[] result = new int[array.length - 1];
+		System.arraycopy(array, 0, result, 0, pos);
+		System.arraycopy(array, pos + 1, result, pos, result.length - pos);
+		return result;
+	}
+
+	/**
+	 * Cursor that visits all positions with a value different from the no
+	 * entry value. The positions are visited block by block.
+	 */
+	class SparsityCursor extends AbstractCursor<Void> {
+
+		private final long blockFrom;
+
+		private final long blockTo;
+
+		private final int innerFrom;
+
+		private final int innerTo;
+
+		private final long[] origin;
+
+		private long blockIndex;
+
+		private int innerIndex;
+
+		private Block nextBlock;
+
+		private long nextBlockIndex;
+
+		private int nextInnerIndex;
+
+		private boolean nextIsFirst;
+
+		SparsityCursor() {
+			this(IntBlocks.this.n, 0, numBlocks, 0, blockLength);
+		}
+
+		/**
+		 * Cursor over the hyperslice at the given position of the last dimension.
+		 * It has one dimension less than the storage. The tiles, that intersect
+		 * the hyperslice, have consecutive indices, and so have the pixels of the
+		 * hyperslice within each tile.
+		 */
+		SparsityCursor(long slicePosition) {
+			this(IntBlocks.this.n - 1, sliceBlockFrom(slicePosition), sliceBlockTo(
+				slicePosition), sliceInnerFrom(slicePosition), sliceInnerTo(
+					slicePosition));
+		}
+
+		private SparsityCursor(int numDimensions, long blockFrom, long blockTo,
+			int innerFrom, int innerTo)
+		{
+			super(numDimensions);
+			this.blockFrom = blockFrom;
+			this.blockTo = blockTo;
+			this.innerFrom = innerFrom;
+			this.innerTo = innerTo;
+			origin = new long[IntBlocks.this.n];
+			reset();
+		}
+
+		private SparsityCursor(SparsityCursor other) {
+			super(other.numDimensions());
+			blockFrom = other.blockFrom;
+			blockTo = other.blockTo;
+			innerFrom = other.innerFrom;
+			innerTo = other.innerTo;
+			origin = other.origin.clone();
+			blockIndex = other.blockIndex;
+			innerIndex = other.innerIndex;
+			nextBlock = other.nextBlock;
+			nextBlockIndex = other.nextBlockIndex;
+			nextInnerIndex = other.nextInnerIndex;
+			nextIsFirst = other.nextIsFirst;
+		}
+
+		@Override
+		public Void get() {
+			return null;
+		}
+
+		@Override
+		public void fwd() {
+			if (nextBlockIndex != blockIndex) blockOrigin(nextBlockIndex, origin);
+			blockIndex = nextBlockIndex;
+			innerIndex = nextInnerIndex;
+			findNext(blockIndex, innerIndex + 1);
+		}
+
+		@Override
+		public void reset() {
+			blockIndex = -1;
+			innerIndex = -1;
+			findNext(blockFrom, innerFrom);
+		}
+
+		/**
+		 * Tiles, that are skipped completely, are not scanned value by value.
+		 */
+		@Override
+		public void jumpFwd(long steps) {
+			if (steps <= 0) return;
+			boolean wholeTiles = innerFrom == 0 && innerTo == blockLength;
+			for (long skip = steps - 1; skip > 0 && nextBlock != null;) {
+				int count = nextBlock.count();
+				if (wholeTiles && nextIsFirst && skip >= count) {
+					skip -= count;
+					findNext(nextBlockIndex + 1, innerFrom);
+				}
+				else {
+					skip--;
+					findNext(nextBlockIndex, nextInnerIndex + 1);
+				}
+			}
+			fwd();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return nextBlock != null;
+		}
+
+		private void findNext(long b, int i) {
+			for (long found; (found = nextBlock(b)) >= 0 &&
+				found < blockTo; b++, i = innerFrom)
+			{
+				if (found != b) i = innerFrom;
+				b = found;
+				Block block = block(b);
+				if (block == null) continue;
+				int next = block.next(i);
+				if (next >= 0 && next < innerTo) {
+					nextBlock = block;
+					nextBlockIndex = b;
+					nextInnerIndex = next;
+					nextIsFirst = i == innerFrom;
+					return;
+				}
+			}
+			nextBlock = null;
+			nextBlockIndex = -1;
+		}
+
+		@Override
+		public void localize(long[] position) {
+			for (int d = 0; d < n; d++)
+				position[d] = getLongPosition(d);
+		}
+
+		@Override
+		public long getLongPosition(int d) {
+			return origin[d] + ((innerIndex >>> innerShift[d]) & blockMask[d]);
+		}
+
+		@Override
+		public AbstractCursor<Void> copy() {
+			return new SparsityCursor(this);
+		}
+
+		@Override
+		public AbstractCursor<Void> copyCursor() {
+			return copy();
+		}
+	}
+
+	private long sliceBlockFrom(long slicePosition) {
+		int last = n - 1;
+		return ((slicePosition - min[last]) >> blockShift[last]) * gridSteps[last];
+	}
+
+	private long sliceBlockTo(long slicePosition) {
+		return Math.min(numBlocks, sliceBlockFrom(slicePosition) + gridSteps[n -
+			1]);
+	}
+
+	private int sliceInnerFrom(long slicePosition) {
+		int last = n - 1;
+		return (int) ((slicePosition - min[last]) & blockMask[last]) <<
+			innerShift[last];
+	}
+
+	private int sliceInnerTo(long slicePosition) {
+		return sliceInnerFrom(slicePosition) + (1 << innerShift[n - 1]);
+	}
+}
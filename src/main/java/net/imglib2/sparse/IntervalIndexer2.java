@@ -51,4 +51,41 @@ public class IntervalIndexer2 {
 	public long indexToPosition(long index, int d) {
 		return index / stepSize[d] % dimensions[d] + min[d];
 	}
+
+	public void indexToPosition(long index, long[] position) {
+		for (int d = 0; d < dimensions.length; ++d)
+			position[d] = indexToPosition(index, d);
+	}
+
+	/**
+	 * Returns the difference of the linear index, when coordinate d is
+	 * increased by one.
+	 */
+	public long step(int d) {
+		return stepSize[d];
+	}
+
+	/**
+	 * Moves the position forward, by the given (non-negative) difference of the
+	 * linear index. Carries are propagated by subtraction, a division is only
+	 * needed if a carry spans more than one line. Consecutive indices of a
+	 * sorted set are therefore decoded without any division.
+	 */
+	public void advance(long[] position, long distance) {
+		int last = dimensions.length - 1;
+		int d = 0;
+		long p = position[0] - min[0] + distance;
+		while (d < last && p >= dimensions[d]) {
+			long carry = 1;
+			p -= dimensions[d];
+			if (p >= dimensions[d]) {
+				carry += p / dimensions[d];
+				p %= dimensions[d];
+			}
+			position[d] = p + min[d];
+			d++;
+			p = position[d] - min[d] + carry;
+		}
+		position[d] = p + min[d];
+	}
 }
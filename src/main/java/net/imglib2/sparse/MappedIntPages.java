@@ -0,0 +1,141 @@
+
+package net.imglib2.sparse;
+
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Off-heap storage for the dense tiles of {@link IntBlocks}. Each tile gets a
+ * page of a fixed number of ints, in a memory-mapped scratch file. The
+ * operating system pages them in and out, so the tiles may exceed the
+ * available RAM, and they neither use the Java heap nor add work for the
+ * garbage collector.
+ * <p>
+ * The scratch files are created in segments of {@link #SEGMENT_BYTES}. A file
+ * is deleted as soon as it's mapped, or on Windows, as soon as it's unmapped.
+ * A page is reused, after the tile it was allocated for has been garbage
+ * collected. So a thread, that still reads an outdated tile, never sees the
+ * values of another tile.
+ *
+ * @author Matthias Arzt
+ */
+final class MappedIntPages {
+
+	static final int SEGMENT_BYTES = 64 << 20;
+
+	private final int pageLength;
+
+	private final int pagesPerSegment;
+
+	private final List<IntBuffer> segments = new ArrayList<>();
+
+	private final TIntArrayList free = new TIntArrayList();
+
+	private final ReferenceQueue<Object> released = new ReferenceQueue<>();
+
+	/** Keeps the references reachable, until they are enqueued. */
+	private final Set<PageReference> references = new HashSet<>();
+
+	private int allocated = 0;
+
+	MappedIntPages(int pageLength) {
+		long pageBytes = (long) pageLength * Integer.BYTES;
+		if (pageLength <= 0 || pageBytes > Integer.MAX_VALUE)
+			throw new IllegalArgumentException(
+				"Page length must be between 1 and " + Integer.MAX_VALUE /
+					Integer.BYTES + ", but is " + pageLength);
+		this.pageLength = pageLength;
+		this.pagesPerSegment = (int) Math.max(1, SEGMENT_BYTES / pageBytes);
+	}
+
+	int pageLength() {
+		return pageLength;
+	}
+
+	/**
+	 * Returns the number of pages, that are currently in use.
+	 */
+	synchronized int pagesInUse() {
+		expunge();
+		return references.size();
+	}
+
+	/**
+	 * Returns a page for the given holder. The page is released, when the
+	 * holder is garbage collected, the holder must therefore keep the returned
+	 * buffer, but the buffer must not reference the holder. The content of the
+	 * page is undefined.
+	 */
+	synchronized IntBuffer allocate(Object holder) {
+		expunge();
+		int page = free.isEmpty() ? newPage() : free.removeAt(free.size() - 1);
+		references.add(new PageReference(holder, released, page));
+		IntBuffer buffer = segments.get(page / pagesPerSegment).duplicate();
+		int offset = page % pagesPerSegment * pageLength;
+		buffer.limit(offset + pageLength);
+		buffer.position(offset);
+		return buffer.slice();
+	}
+
+	private int newPage() {
+		if (allocated == segments.size() * pagesPerSegment) mapSegment();
+		return allocated++;
+	}
+
+	private void mapSegment() {
+		long bytes = (long) pagesPerSegment * pageLength * Integer.BYTES;
+		try {
+			Path file = Files.createTempFile("labkit-", ".pages");
+			FileChannel channel;
+			try {
+				channel = FileChannel.open(file, StandardOpenOption.READ,
+					StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+			}
+			catch (IOException e) {
+				Files.deleteIfExists(file);
+				throw e;
+			}
+			try (FileChannel c = channel) {
+				// NB: The mapping stays valid, after the channel is closed.
+				segments.add(c.map(FileChannel.MapMode.READ_WRITE, 0, bytes).order(
+					ByteOrder.nativeOrder()).asIntBuffer());
+			}
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private void expunge() {
+		for (Object reference; (reference = released.poll()) != null;) {
+			references.remove(reference);
+			free.add(((PageReference) reference).page);
+		}
+	}
+
+	private static class PageReference extends PhantomReference<Object> {
+
+		private final int page;
+
+		private PageReference(Object holder, ReferenceQueue<Object> queue,
+			int page)
+		{
+			super(holder, queue);
+			this.page = page;
+		}
+	}
+}
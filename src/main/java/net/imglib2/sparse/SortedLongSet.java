@@ -0,0 +1,246 @@
+
+package net.imglib2.sparse;
+
+import java.util.Arrays;
+
+/**
+ * A set of long values, that is always kept in sorted order.
+ * <p>
+ * The values are stored in a list of sorted chunks, each chunk holds at most
+ * {@link #MAX_CHUNK_LENGTH} values. Adding and removing a value costs a binary
+ * search and a shift within one chunk. Iterating over the set visits the values
+ * in ascending order, it doesn't need to copy or sort.
+ * <p>
+ * Modifying the set while iterating over it, has undefined results.
+ *
+ * @author Matthias Arzt
+ */
+public class SortedLongSet {
+
+	static final int MAX_CHUNK_LENGTH = 2048;
+
+	private static final int MIN_CHUNK_CAPACITY = 8;
+
+	private long[][] chunks = new long[4][];
+
+	private int[] lengths = new int[4];
+
+	private int numChunks = 0;
+
+	private long size = 0;
+
+	public SortedLongSet() {}
+
+	/**
+	 * Returns a set, that contains the given values.
+	 */
+	public static SortedLongSet of(long... values) {
+		long[] sorted = values.clone();
+		Arrays.sort(sorted);
+		int length = 0;
+		for (int i = 0; i < sorted.length; i++)
+			if (i == 0 || sorted[i] != sorted[i - 1]) sorted[length++] = sorted[i];
+		SortedLongSet result = new SortedLongSet();
+		int chunkLength = MAX_CHUNK_LENGTH / 2;
+		for (int i = 0; i < length; i += chunkLength) {
+			int l = Math.min(chunkLength, length - i);
+			result.insertChunk(result.numChunks, Arrays.copyOfRange(sorted, i, i +
+				l), l);
+		}
+		result.size = length;
+		return result;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean contains(long value) {
+		int c = findChunk(value);
+		return c >= 0 && Arrays.binarySearch(chunks[c], 0, lengths[c],
+			value) >= 0;
+	}
+
+	/**
+	 * Adds the value to the set. Returns true if the set didn't contain the
+	 * value before.
+	 */
+	public boolean add(long value) {
+		if (numChunks == 0) {
+			insertChunk(0, new long[MIN_CHUNK_CAPACITY], 0);
+		}
+		int c = Math.max(0, findChunk(value));
+		int pos = Arrays.binarySearch(chunks[c], 0, lengths[c], value);
+		if (pos >= 0) return false;
+		pos = -pos - 1;
+		if (lengths[c] == MAX_CHUNK_LENGTH) {
+			splitChunk(c);
+			int half = lengths[c];
+			if (pos > half) {
+				c++;
+				pos -= half;
+			}
+		}
+		insert(c, pos, value);
+		size++;
+		return true;
+	}
+
+	/**
+	 * Removes the value from the set. Returns true if the set contained the
+	 * value.
+	 */
+	public boolean remove(long value) {
+		int c = findChunk(value);
+		if (c < 0) return false;
+		int length = lengths[c];
+		long[] chunk = chunks[c];
+		int pos = Arrays.binarySearch(chunk, 0, length, value);
+		if (pos < 0) return false;
+		System.arraycopy(chunk, pos + 1, chunk, pos, length - pos - 1);
+		lengths[c] = length - 1;
+		size--;
+		if (lengths[c] == 0) removeChunk(c);
+		return true;
+	}
+
+	public void clear() {
+		Arrays.fill(chunks, 0, numChunks, null);
+		numChunks = 0;
+		size = 0;
+	}
+
+	public long[] toArray() {
+		long[] result = new long[Math.toIntExact(size)];
+		int offset = 0;
+		for (int c = 0; c < numChunks; c++) {
+			System.arraycopy(chunks[c], 0, result, offset, lengths[c]);
+			offset += lengths[c];
+		}
+		return result;
+	}
+
+	public Iterator iterator() {
+		return new Iterator();
+	}
+
+	// -- Helper methods --
+
+	/**
+	 * Returns the index of the last chunk, whose first value is less or equal to
+	 * the given value. Returns -1 if there is no such chunk.
+	 */
+	private int findChunk(long value) {
+		int low = 0;
+		int high = numChunks - 1;
+		int result = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (chunks[mid][0] <= value) {
+				result = mid;
+				low = mid + 1;
+			}
+			else high = mid - 1;
+		}
+		return result;
+	}
+
+	private void insert(int c, int pos, long value) {
+		long[] chunk = chunks[c];
+		int length = lengths[c];
+		if (length == chunk.length) {
+			chunk = Arrays.copyOf(chunk, Math.min(MAX_CHUNK_LENGTH, length * 2));
+			chunks[c] = chunk;
+		}
+		System.arraycopy(chunk, pos, chunk, pos + 1, length - pos);
+		chunk[pos] = value;
+		lengths[c] = length + 1;
+	}
+
+	private void splitChunk(int c) {
+		long[] chunk = chunks[c];
+		int half = lengths[c] / 2;
+		long[] upper = new long[MAX_CHUNK_LENGTH];
+		System.arraycopy(chunk, half, upper, 0, lengths[c] - half);
+		insertChunk(c + 1, upper, lengths[c] - half);
+		lengths[c] = half;
+	}
+
+	private void insertChunk(int c, long[] chunk, int length) {
+		if (numChunks == chunks.length) {
+			chunks = Arrays.copyOf(chunks, numChunks * 2);
+			lengths = Arrays.copyOf(lengths, numChunks * 2);
+		}
+		System.arraycopy(chunks, c, chunks, c + 1, numChunks - c);
+		System.arraycopy(lengths, c, lengths, c + 1, numChunks - c);
+		chunks[c] = chunk;
+		lengths[c] = length;
+		numChunks++;
+	}
+
+	private void removeChunk(int c) {
+		System.arraycopy(chunks, c + 1, chunks, c, numChunks - c - 1);
+		System.arraycopy(lengths, c + 1, lengths, c, numChunks - c - 1);
+		numChunks--;
+		chunks[numChunks] = null;
+	}
+
+	/**
+	 * Iterates over the values of a {@link SortedLongSet} in ascending order.
+	 */
+	public class Iterator {
+
+		private int chunk;
+
+		private int offset;
+
+		private Iterator() {
+			reset();
+		}
+
+		private Iterator(Iterator other) {
+			chunk = other.chunk;
+			offset = other.offset;
+		}
+
+		public Iterator copy() {
+			return new Iterator(this);
+		}
+
+		public void reset() {
+			chunk = 0;
+			offset = -1;
+		}
+
+		/**
+		 * Skips the given number of values, same as calling {@link #next()} that
+		 * many times, but only costs one step per chunk.
+		 */
+		public void skip(long steps) {
+			long o = offset + steps;
+			while (chunk < numChunks && o >= lengths[chunk]) {
+				o -= lengths[chunk];
+				chunk++;
+			}
+			offset = (int) o;
+		}
+
+		public boolean hasNext() {
+			return chunk < numChunks && (offset + 1 < lengths[chunk] ||
+				chunk + 1 < numChunks);
+		}
+
+		public long next() {
+			offset++;
+			if (offset >= lengths[chunk]) {
+				chunk++;
+				offset = 0;
+			}
+			return chunks[chunk][offset];
+		}
+	}
+}
@@ -2,7 +2,6 @@
 package net.imglib2.sparse;
 
 import gnu.trove.set.TLongSet;
-import gnu.trove.set.hash.TLongHashSet;
 import net.imglib2.AbstractCursor;
 import net.imglib2.AbstractWrappedInterval;
 import net.imglib2.Cursor;
@@ -15,40 +14,65 @@ import net.imglib2.img.basictypeaccess.array.LongArray;
 import net.imglib2.roi.IterableRegion;
 import net.imglib2.type.logic.BitType;
 
-import java.util.Arrays;
 import java.util.Iterator;
 
 /**
+ * An {@link IterableRegion} that stores the linear indices of the contained
+ * pixels in a {@link SortedLongSet}. The sorted index is kept up to date when
+ * pixels are added or removed. Opening a cursor is therefore cheap, and the
+ * cursor iterates in linear time without copying the indices.
+ * <p>
+ * Adding and removing pixels is thread-safe. Cursors must not be used while
+ * pixels are added or removed.
+ *
  * @author Matthias Arzt
  */
 public class SparseIterableRegion extends AbstractWrappedInterval<Interval>
 	implements IterableRegion<BitType>
 {
 
-	final private TLongSet codes;
+	final private SortedLongSet codes;
 
 	final private IntervalIndexer2 indexer;
 
 	public SparseIterableRegion(Interval interval) {
-		this(interval, new TLongHashSet());
+		this(interval, new SortedLongSet());
 	}
 
+	/**
+	 * Creates a region, that contains the given linear indices. The indices are
+	 * copied into a {@link SortedLongSet}, later changes of the given set don't
+	 * affect the region.
+	 */
 	public SparseIterableRegion(Interval interval, TLongSet positions) {
+		this(interval, SortedLongSet.of(positions.toArray()));
+	}
+
+	public SparseIterableRegion(Interval interval, SortedLongSet positions) {
 		super(interval);
 		this.codes = positions;
 		this.indexer = new IntervalIndexer2(interval);
 	}
 
 	public void add(Localizable position) {
-		codes.add(indexer.positionToIndex(position));
+		long index = indexer.positionToIndex(position);
+		synchronized (codes) {
+			codes.add(index);
+		}
 	}
 
 	public void remove(Localizable position) {
-		codes.remove(indexer.positionToIndex(position));
+		long index = indexer.positionToIndex(position);
+		synchronized (codes) {
+			codes.remove(index);
+		}
 	}
 
 	private boolean contains(Localizable position) {
-		return codes.contains(indexer.positionToIndex(position));
+		long index = indexer.positionToIndex(position);
+		synchronized (codes) {
+			return codes.contains(index);
+		}
 	}
 
 	@Override
@@ -95,18 +119,22 @@ public class SparseIterableRegion extends AbstractWrappedInterval<Interval>
 		Cursor<Void>
 	{
 
-		private final long[] sortedCodes;
-		private final int lastIndex;
-		private final Point point;
-		private int i;
+		private final SortedLongSet.Iterator iterator;
+		private final long[] position;
+		private long index;
 
 		private SparseRoiCursor() {
 			super(SparseIterableRegion.this.numDimensions());
-			point = new Point(SparseIterableRegion.this.numDimensions());
-			sortedCodes = codes.toArray();
-			Arrays.sort(sortedCodes);
-			lastIndex = sortedCodes.length - 1;
-			reset();
+			position = new long[SparseIterableRegion.this.numDimensions()];
+			iterator = codes.iterator();
+			index = -1;
+		}
+
+		private SparseRoiCursor(SparseRoiCursor other) {
+			super(other.numDimensions());
+			position = other.position.clone();
+			iterator = other.iterator.copy();
+			index = other.index;
 		}
 
 		@Override
@@ -116,38 +144,51 @@ public class SparseIterableRegion extends AbstractWrappedInterval<Interval>
 
 		@Override
 		public AbstractCursor<Void> copy() {
-			throw new UnsupportedOperationException();
+			return new SparseRoiCursor(this);
 		}
 
 		@Override
 		public AbstractCursor<Void> copyCursor() {
-			throw new UnsupportedOperationException();
+			return copy();
+		}
+
+		@Override
+		public void jumpFwd(long steps) {
+			if (steps <= 0) return;
+			if (steps > 1) {
+				iterator.skip(steps - 1);
+				index = -1;
+			}
+			fwd();
 		}
 
 		@Override
 		public void fwd() {
-			i++;
-			indexer.indexToPosition(sortedCodes[i], point);
+			long next = iterator.next();
+			if (index < 0) indexer.indexToPosition(next, position);
+			else indexer.advance(position, next - index);
+			index = next;
 		}
 
 		@Override
 		public void reset() {
-			i = -1;
+			iterator.reset();
+			index = -1;
 		}
 
 		@Override
 		public boolean hasNext() {
-			return i < lastIndex;
+			return iterator.hasNext();
 		}
 
 		@Override
 		public void localize(long[] position) {
-			point.localize(position);
+			System.arraycopy(this.position, 0, position, 0, n);
 		}
 
 		@Override
 		public long getLongPosition(int d) {
-			return point.getLongPosition(d);
+			return position[d];
 		}
 	}
 
@@ -189,7 +230,7 @@ public class SparseIterableRegion extends AbstractWrappedInterval<Interval>
 
 		@Override
 		public Sampler<BitType> copy() {
-			throw new UnsupportedOperationException();
+			return copyRandomAccess();
 		}
 	}
 }
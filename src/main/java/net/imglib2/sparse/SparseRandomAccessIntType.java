@@ -6,18 +6,50 @@ import gnu.trove.impl.hash.THash;
 import gnu.trove.map.hash.TLongIntHashMap;
 import net.imglib2.AbstractWrappedInterval;
 import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.Localizable;
-import net.imglib2.Point;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.Sampler;
+import net.imglib2.converter.Converters;
 import net.imglib2.img.basictypeaccess.IntAccess;
+import net.imglib2.img.basictypeaccess.array.LongArray;
 import net.imglib2.roi.IterableRegion;
 import net.imglib2.type.BooleanType;
+import net.imglib2.type.logic.BitType;
 import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.LongStream;
 
 /**
+ * A sparse {@link RandomAccessibleInterval} of {@link IntType}. Only values
+ * different from the no entry value are stored.
+ * <p>
+ * There are two storage modes. By default, every stored pixel is one entry in
+ * a hash map. In block-sparse mode (see {@link #blockSparse(Interval)}), the
+ * interval is divided into fixed-size tiles, which are allocated when written
+ * to, and freed when they become empty again. Tiles with few entries store
+ * sorted pairs of position and value, densely filled tiles are primitive
+ * arrays. Block-sparse mode uses less memory and gives cache-local access when
+ * large regions are densely filled. The dense tiles may also be stored
+ * off-heap, see {@link #blockSparseOffHeap(Interval)}. In both modes the
+ * sparsity pattern is a live view. In block-sparse mode it is iterated tile by
+ * tile, in hash map mode it iterates the sorted keys, which are cached until a
+ * pixel is added or removed.
+ * <p>
+ * Block-sparse mode is thread-safe: pixels may be written concurrently from
+ * many threads, while other threads read. Writes use lock striping over the
+ * tiles, reads don't lock at all. Hash map mode is not thread-safe.
+ *
  * @author Matthias Arzt
  */
 public class SparseRandomAccessIntType extends AbstractWrappedInterval<Interval>
@@ -26,7 +58,16 @@ public class SparseRandomAccessIntType extends AbstractWrappedInterval<Interval>
 
 	private final IntervalIndexer2 indexer;
 	private final TLongIntHashMap values;
+	private final IntBlocks blocks;
 	private final int noEntryValue;
+	private final List<ValueChangeListener> listeners =
+		new CopyOnWriteArrayList<>();
+
+	/**
+	 * Sorted keys of the hash map, or null if a pixel was added or removed since
+	 * they were sorted. Guarded by the lock of the hash map.
+	 */
+	private SortedLongSet sortedKeys = null;
 
 	public SparseRandomAccessIntType(Interval source) {
 		this(source, 0);
@@ -37,12 +78,185 @@ public class SparseRandomAccessIntType extends AbstractWrappedInterval<Interval>
 		this.indexer = new IntervalIndexer2(source);
 		this.values = new TLongIntHashMap(Constants.DEFAULT_CAPACITY,
 			Constants.DEFAULT_LOAD_FACTOR, -1, noEntryValue);
+		this.blocks = null;
 		this.noEntryValue = noEntryValue;
 	}
 
+	private SparseRandomAccessIntType(Interval source, int noEntryValue,
+		int[] blockSize, double denseThreshold, boolean offHeap)
+	{
+		super(source);
+		this.indexer = new IntervalIndexer2(source);
+		this.values = null;
+		this.blocks = new IntBlocks(source, noEntryValue, blockSize,
+			denseThreshold, offHeap);
+		this.noEntryValue = noEntryValue;
+	}
+
+	private SparseRandomAccessIntType(Interval source, IntBlocks blocks) {
+		super(source);
+		this.indexer = new IntervalIndexer2(source);
+		this.values = null;
+		this.blocks = blocks;
+		this.noEntryValue = blocks.noEntryValue();
+	}
+
+	/**
+	 * Returns a block-sparse image, with zero as no entry value and a default
+	 * block size of roughly 4096 pixels.
+	 */
+	public static SparseRandomAccessIntType blockSparse(Interval source) {
+		return blockSparse(source, 0);
+	}
+
+	public static SparseRandomAccessIntType blockSparse(Interval source,
+		int noEntryValue)
+	{
+		return blockSparse(source, noEntryValue, IntBlocks.defaultBlockSize(
+			source));
+	}
+
+	/**
+	 * Returns a block-sparse image.
+	 *
+	 * @param blockSize Size of the tiles, must be a power of two in every
+	 *          dimension.
+	 */
+	public static SparseRandomAccessIntType blockSparse(Interval source,
+		int noEntryValue, int[] blockSize)
+	{
+		return blockSparse(source, noEntryValue, blockSize,
+			IntBlocks.DEFAULT_DENSE_THRESHOLD);
+	}
+
+	/**
+	 * Returns a block-sparse image.
+	 *
+	 * @param blockSize Size of the tiles, must be a power of two in every
+	 *          dimension.
+	 * @param denseThreshold Fraction of filled pixels, above which a tile is
+	 *          stored as a plain array rather than as sorted pairs of position
+	 *          and value. Zero means, that tiles are always plain arrays.
+	 */
+	public static SparseRandomAccessIntType blockSparse(Interval source,
+		int noEntryValue, int[] blockSize, double denseThreshold)
+	{
+		return new SparseRandomAccessIntType(source, noEntryValue, blockSize,
+			denseThreshold, false);
+	}
+
+	/**
+	 * Returns a block-sparse image, with zero as no entry value and a default
+	 * block size of roughly 4096 pixels, whose dense tiles are stored outside
+	 * the Java heap, in memory-mapped scratch files. The operating system pages
+	 * the tiles in and out, so the image may exceed the available RAM. The
+	 * sparse tiles stay on the heap, they are small.
+	 */
+	public static SparseRandomAccessIntType blockSparseOffHeap(Interval source) {
+		return blockSparseOffHeap(source, 0, IntBlocks.defaultBlockSize(source),
+			IntBlocks.DEFAULT_DENSE_THRESHOLD);
+	}
+
+	/**
+	 * Same as {@link #blockSparse(Interval, int, int[], double)}, but the dense
+	 * tiles are stored off-heap, see {@link #blockSparseOffHeap(Interval)}.
+	 */
+	public static SparseRandomAccessIntType blockSparseOffHeap(Interval source,
+		int noEntryValue, int[] blockSize, double denseThreshold)
+	{
+		return new SparseRandomAccessIntType(source, noEntryValue, blockSize,
+			denseThreshold, true);
+	}
+
+	public boolean isBlockSparse() {
+		return blocks != null;
+	}
+
+	/**
+	 * Returns true, if the dense tiles are stored off-heap.
+	 *
+	 * @see #blockSparseOffHeap(Interval)
+	 */
+	public boolean isOffHeap() {
+		return isBlockSparse() && blocks.isOffHeap();
+	}
+
+	/**
+	 * Returns a copy of this image, that doesn't change when this image is
+	 * modified, and vice versa. In block-sparse mode the copy shares the tiles
+	 * with this image, a tile is copied only when one of the two images writes
+	 * to it. Taking the snapshot is therefore cheap, and it may be taken while
+	 * other threads write. In hash map mode, the hash map is copied. Listeners
+	 * are not copied.
+	 */
+	public SparseRandomAccessIntType snapshot() {
+		if (isBlockSparse()) return new SparseRandomAccessIntType(sourceInterval,
+			blocks.snapshot());
+		SparseRandomAccessIntType copy = new SparseRandomAccessIntType(
+			sourceInterval, noEntryValue);
+		copy.values.putAll(values);
+		return copy;
+	}
+
+	/**
+	 * Runs the action, while no pixel can be written by
+	 * {@link #update(Localizable, IntUnaryOperator)}. In block-sparse mode, all
+	 * tile locks are held, so the action must not wait for other threads that
+	 * write. Reads are not blocked.
+	 */
+	public void withWritesBlocked(Runnable action) {
+		if (isBlockSparse()) blocks.withAllLocks(action);
+		else synchronized (values) {
+			action.run();
+		}
+	}
+
+	/**
+	 * Returns tasks, that replace every stored value by the result of the
+	 * operator, and that may be executed in parallel. The operator must not map
+	 * a stored value to the no entry value. The tasks don't lock, they must be
+	 * executed within {@link #withWritesBlocked(Runnable)}. Listeners are not
+	 * notified.
+	 */
+	public List<Callable<Void>> remapChunks(IntUnaryOperator operator,
+		int numChunks)
+	{
+		if (isBlockSparse()) return blocks.remapChunks(operator, numChunks);
+		return Collections.<Callable<Void>> singletonList(() -> {
+			values.transformValues(old -> {
+				int value = operator.applyAsInt(old);
+				if (value == noEntryValue) throw new IllegalArgumentException(
+					"A stored value must not be mapped to the no entry value.");
+				return value;
+			});
+			return null;
+		});
+	}
+
+	/**
+	 * Adds a listener, that is notified about every pixel that changes its
+	 * value.
+	 */
+	public void addValueChangeListener(ValueChangeListener listener) {
+		listeners.add(listener);
+		if (isBlockSparse()) blocks.setListener(this::fireValueChanged);
+	}
+
+	public void removeValueChangeListener(ValueChangeListener listener) {
+		listeners.remove(listener);
+		if (isBlockSparse() && listeners.isEmpty()) blocks.setListener(null);
+	}
+
+	private void fireValueChanged(Localizable position, int oldValue,
+		int newValue)
+	{
+		for (ValueChangeListener listener : listeners)
+			listener.valueChanged(position, oldValue, newValue);
+	}
+
 	@Override
 	public RandomAccess<IntType> randomAccess() {
-		return new MyRandomAccess();
+		return isBlockSparse() ? new BlockRandomAccess() : new MyRandomAccess();
 	}
 
 	@Override
@@ -50,49 +264,130 @@ public class SparseRandomAccessIntType extends AbstractWrappedInterval<Interval>
 		return randomAccess();
 	}
 
-	public Cursor<IntType> sparseCursor() {
-		return new MappingCursor<>(sparsityPattern().cursor(), randomAccess());
+	/**
+	 * Atomically replaces the value at the given position by the result of the
+	 * operator, and returns the new value. In block-sparse mode, concurrent
+	 * updates of different pixels don't block each other, unless they happen to
+	 * fall into tiles that share a lock.
+	 */
+	public int update(Localizable position, IntUnaryOperator operator) {
+		if (isBlockSparse()) return blocks.update(position, operator);
+		synchronized (values) {
+			long index = indexer.positionToIndex(position);
+			int old = values.get(index);
+			int value = operator.applyAsInt(old);
+			if (value == old) return value;
+			put(index, old, value);
+			if (!listeners.isEmpty()) fireValueChanged(position, old, value);
+			return value;
+		}
 	}
 
-	public IterableRegion<? extends BooleanType<?>> sparsityPattern() {
-		return new SparseIterableRegion(this, values.keySet());
+	/**
+	 * Writes a value to the hash map, must be called while holding its lock.
+	 */
+	private void put(long index, int old, int value) {
+		if (value == noEntryValue) values.remove(index);
+		else values.put(index, value);
+		if (old == noEntryValue || value == noEntryValue) sortedKeys = null;
 	}
 
-	// -- Helper methods --
+	/**
+	 * Returns the sorted keys of the hash map. They are cached until a pixel is
+	 * added or removed.
+	 */
+	private SortedLongSet sortedKeys() {
+		synchronized (values) {
+			if (sortedKeys == null) sortedKeys = SortedLongSet.of(values.keys());
+			return sortedKeys;
+		}
+	}
 
-	private int get(MyRandomAccess position) {
-		return values.get(indexer.positionToIndex(position));
+	public Cursor<IntType> sparseCursor() {
+		return new MappingCursor<>(sparsityPattern().cursor(), randomAccess());
 	}
 
-	private void set(MyRandomAccess position, int value) {
-		Long index = indexer.positionToIndex(position);
-		if (value == noEntryValue) values.remove(index);
-		else values.put(index, value);
+	/**
+	 * Returns the positions of the stored pixels, as a live view. Its size and
+	 * random access are cheap in both modes. In hash map mode, the cursor
+	 * iterates a sorted copy of the keys, it's therefore not affected by later
+	 * writes. The sorted keys are cached until a pixel is added or removed.
+	 */
+	public IterableRegion<? extends BooleanType<?>> sparsityPattern() {
+		if (isBlockSparse()) return new BlockSparsityPattern();
+		return new HashSparsityPattern();
+	}
+
+	/**
+	 * Returns the sparsity pattern of the hyperslice at the given position of
+	 * the last dimension. The pattern has one dimension less than the image. In
+	 * block-sparse mode, it's a live view, that only visits the tiles which
+	 * intersect the hyperslice. In hash map mode, it's a sorted copy.
+	 */
+	public IterableRegion<? extends BooleanType<?>> sparsityPattern(
+		long slicePosition)
+	{
+		int last = numDimensions() - 1;
+		long[] sliceMin = new long[last];
+		long[] sliceMax = new long[last];
+		for (int d = 0; d < last; d++) {
+			sliceMin[d] = min(d);
+			sliceMax[d] = max(d);
+		}
+		Interval slice = new FinalInterval(sliceMin, sliceMax);
+		if (isBlockSparse()) return new BlockSparsityPattern(slice,
+			slicePosition);
+		long sliceSize = Intervals.numElements(slice);
+		long from = (slicePosition - min(last)) * sliceSize;
+		long[] keys = LongStream.of(values.keys()).filter(key -> key >= from &&
+			key < from + sliceSize).map(key -> key - from).toArray();
+		return new SparseIterableRegion(slice, SortedLongSet.of(keys));
 	}
 
 	// -- Helper classes --
 
-	private class MyRandomAccess extends Point implements RandomAccess<IntType> {
+	/**
+	 * RandomAccess for hash map mode. The linear index is updated incrementally
+	 * whenever the position changes.
+	 */
+	private class MyRandomAccess extends IncrementalPoint implements
+		RandomAccess<IntType>
+	{
+
+		private long index;
 
 		private IntType value = new IntType(new IntAccess() {
 
 			@Override
 			public int getValue(int ignored) {
-				return SparseRandomAccessIntType.this.get(MyRandomAccess.this);
+				return values.get(index);
 			}
 
 			@Override
 			public void setValue(int ignored, int value) {
-				SparseRandomAccessIntType.this.set(MyRandomAccess.this, value);
+				synchronized (values) {
+					int old = values.get(index);
+					if (old == value) return;
+					put(index, old, value);
+					if (!listeners.isEmpty()) fireValueChanged(MyRandomAccess.this, old,
+						value);
+				}
 			}
 		});
 
 		private MyRandomAccess() {
 			super(SparseRandomAccessIntType.this.numDimensions());
+			index = indexer.positionToIndex(this);
 		}
 
-		private MyRandomAccess(Localizable localizable) {
-			super(localizable);
+		private MyRandomAccess(MyRandomAccess other) {
+			super(other);
+			index = other.index;
+		}
+
+		@Override
+		void moved(int d, long distance) {
+			index += distance * indexer.step(d);
 		}
 
 		@Override
@@ -107,7 +402,210 @@ public class SparseRandomAccessIntType extends AbstractWrappedInterval<Interval>
 
 		@Override
 		public Sampler<IntType> copy() {
-			throw new UnsupportedOperationException();
+			return copyRandomAccess();
+		}
+	}
+
+	private class BlockRandomAccess extends IntBlocks.Position implements
+		RandomAccess<IntType>
+	{
+
+		private IntType value = new IntType(new IntAccess() {
+
+			@Override
+			public int getValue(int ignored) {
+				return BlockRandomAccess.this.getValue();
+			}
+
+			@Override
+			public void setValue(int ignored, int value) {
+				BlockRandomAccess.this.setValue(value);
+			}
+		});
+
+		private BlockRandomAccess() {
+			super(blocks);
+		}
+
+		private BlockRandomAccess(BlockRandomAccess other) {
+			super(other);
+		}
+
+		@Override
+		public RandomAccess<IntType> copyRandomAccess() {
+			return new BlockRandomAccess(this);
+		}
+
+		@Override
+		public IntType get() {
+			return value;
+		}
+
+		@Override
+		public Sampler<IntType> copy() {
+			return copyRandomAccess();
+		}
+	}
+
+	private class BlockSparsityPattern extends
+		AbstractWrappedInterval<Interval> implements IterableRegion<BitType>
+	{
+
+		private final boolean sliced;
+
+		private final long slicePosition;
+
+		private BlockSparsityPattern() {
+			super(SparseRandomAccessIntType.this);
+			this.sliced = false;
+			this.slicePosition = 0;
+		}
+
+		private BlockSparsityPattern(Interval slice, long slicePosition) {
+			super(slice);
+			this.sliced = true;
+			this.slicePosition = slicePosition;
+		}
+
+		@Override
+		public Cursor<Void> cursor() {
+			if (sliced) return blocks.new SparsityCursor(slicePosition);
+			return blocks.new SparsityCursor();
+		}
+
+		@Override
+		public Cursor<Void> localizingCursor() {
+			return cursor();
+		}
+
+		@Override
+		public long size() {
+			if (!sliced) return blocks.size();
+			long count = 0;
+			for (Cursor<Void> cursor = cursor(); cursor.hasNext(); cursor.fwd())
+				count++;
+			return count;
+		}
+
+		@Override
+		public Void firstElement() {
+			return null;
+		}
+
+		@Override
+		public Object iterationOrder() {
+			return null;
+		}
+
+		@Override
+		public Iterator<Void> iterator() {
+			return cursor();
+		}
+
+		@Override
+		public RandomAccess<BitType> randomAccess() {
+			if (sliced) return Views.hyperSlice(new BlockSparsityPattern(),
+				numDimensions(), slicePosition).randomAccess();
+			return new PatternRandomAccess();
+		}
+
+		@Override
+		public RandomAccess<BitType> randomAccess(Interval interval) {
+			return randomAccess();
+		}
+	}
+
+	private class HashSparsityPattern extends AbstractWrappedInterval<Interval>
+		implements IterableRegion<BitType>
+	{
+
+		private HashSparsityPattern() {
+			super(SparseRandomAccessIntType.this);
+		}
+
+		@Override
+		public Cursor<Void> cursor() {
+			// NB: The cached keys are never modified, a write replaces them.
+			return new SparseIterableRegion(SparseRandomAccessIntType.this,
+				sortedKeys()).cursor();
+		}
+
+		@Override
+		public Cursor<Void> localizingCursor() {
+			return cursor();
+		}
+
+		@Override
+		public long size() {
+			return values.size();
+		}
+
+		@Override
+		public Void firstElement() {
+			return null;
+		}
+
+		@Override
+		public Object iterationOrder() {
+			return null;
+		}
+
+		@Override
+		public Iterator<Void> iterator() {
+			return cursor();
+		}
+
+		@Override
+		public RandomAccess<BitType> randomAccess() {
+			return Converters.convert(SparseRandomAccessIntType.this, (in,
+				out) -> out.set(in.getInteger() != noEntryValue), new BitType())
+				.randomAccess();
+		}
+
+		@Override
+		public RandomAccess<BitType> randomAccess(Interval interval) {
+			return randomAccess();
+		}
+	}
+
+	private class PatternRandomAccess extends IntBlocks.Position implements
+		RandomAccess<BitType>
+	{
+
+		private BitType value = new BitType(new LongArray(1)) {
+
+			@Override
+			public void set(boolean value) {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public boolean get() {
+				return PatternRandomAccess.this.getValue() != noEntryValue;
+			}
+		};
+
+		private PatternRandomAccess() {
+			super(blocks);
+		}
+
+		private PatternRandomAccess(PatternRandomAccess other) {
+			super(other);
+		}
+
+		@Override
+		public RandomAccess<BitType> copyRandomAccess() {
+			return new PatternRandomAccess(this);
+		}
+
+		@Override
+		public BitType get() {
+			return value;
+		}
+
+		@Override
+		public Sampler<BitType> copy() {
+			return copyRandomAccess();
 		}
 	}
 }
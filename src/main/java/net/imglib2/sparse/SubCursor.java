@@ -0,0 +1,150 @@
+
+package net.imglib2.sparse;
+
+import net.imglib2.Cursor;
+import net.imglib2.Sampler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link Cursor}, that only visits a range of the elements of another
+ * cursor. The range is given by an offset and a length. Splitting a cursor into
+ * disjoint ranges allows to process an iterable interval in parallel. This is
+ * cheap for the sparse cursors, because they implement
+ * {@link Cursor#jumpFwd(long)} efficiently.
+ *
+ * @author Matthias Arzt
+ */
+public class SubCursor<T> implements Cursor<T> {
+
+	private final Cursor<T> cursor;
+
+	private final long offset;
+
+	private final long length;
+
+	private long remaining;
+
+	public SubCursor(Cursor<T> cursor, long offset, long length) {
+		this.cursor = cursor.copyCursor();
+		this.offset = offset;
+		this.length = length;
+		reset();
+	}
+
+	private SubCursor(SubCursor<T> other) {
+		this.cursor = other.cursor.copyCursor();
+		this.offset = other.offset;
+		this.length = other.length;
+		this.remaining = other.remaining;
+	}
+
+	/**
+	 * Splits the elements of the given cursor into the given number of disjoint
+	 * ranges of roughly equal size.
+	 *
+	 * @param size Total number of elements of the cursor.
+	 */
+	public static <T> List<Cursor<T>> split(Cursor<T> cursor, long size,
+		int numChunks)
+	{
+		List<Cursor<T>> result = new ArrayList<>(numChunks);
+		for (int i = 0; i < numChunks; i++) {
+			long start = size * i / numChunks;
+			long end = size * (i + 1) / numChunks;
+			if (end > start) result.add(new SubCursor<>(cursor, start, end - start));
+		}
+		return result;
+	}
+
+	@Override
+	public Cursor<T> copyCursor() {
+		return new SubCursor<>(this);
+	}
+
+	@Override
+	public T next() {
+		fwd();
+		return get();
+	}
+
+	@Override
+	public void jumpFwd(long steps) {
+		cursor.jumpFwd(steps);
+		remaining -= steps;
+	}
+
+	@Override
+	public void fwd() {
+		cursor.fwd();
+		remaining--;
+	}
+
+	@Override
+	public void reset() {
+		cursor.reset();
+		cursor.jumpFwd(offset);
+		remaining = length;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return remaining > 0 && cursor.hasNext();
+	}
+
+	@Override
+	public void localize(int[] position) {
+		cursor.localize(position);
+	}
+
+	@Override
+	public void localize(long[] position) {
+		cursor.localize(position);
+	}
+
+	@Override
+	public int getIntPosition(int d) {
+		return cursor.getIntPosition(d);
+	}
+
+	@Override
+	public long getLongPosition(int d) {
+		return cursor.getLongPosition(d);
+	}
+
+	@Override
+	public void localize(float[] position) {
+		cursor.localize(position);
+	}
+
+	@Override
+	public void localize(double[] position) {
+		cursor.localize(position);
+	}
+
+	@Override
+	public float getFloatPosition(int d) {
+		return cursor.getFloatPosition(d);
+	}
+
+	@Override
+	public double getDoublePosition(int d) {
+		return cursor.getDoublePosition(d);
+	}
+
+	@Override
+	public int numDimensions() {
+		return cursor.numDimensions();
+	}
+
+	@Override
+	public T get() {
+		return cursor.get();
+	}
+
+	@Override
+	public Sampler<T> copy() {
+		return cursor.copy();
+	}
+}
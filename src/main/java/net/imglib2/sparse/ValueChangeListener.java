@@ -0,0 +1,20 @@
+
+package net.imglib2.sparse;
+
+import net.imglib2.Localizable;
+
+/**
+ * Listener, that is notified whenever a pixel of a
+ * {@link SparseRandomAccessIntType} changes its value.
+ *
+ * @author Matthias Arzt
+ */
+public interface ValueChangeListener {
+
+	/**
+	 * Called after the value at the given position changed. The position is
+	 * only valid during the call. In block-sparse mode, the listener may be
+	 * called concurrently from many threads.
+	 */
+	void valueChanged(Localizable position, int oldValue, int newValue);
+}
@@ -0,0 +1,89 @@
+
+package net.imglib2.labkit.brush;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.algorithm.neighborhood.Neighborhood;
+import net.imglib2.labkit.brush.neighborhood.TransformedSphere;
+import net.imglib2.labkit.labeling.Label;
+import net.imglib2.labkit.labeling.LabelSetOperation;
+import net.imglib2.labkit.labeling.Labeling;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.util.Intervals;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collections;
+
+/**
+ * Stamping a brush, that is a {@link TransformedSphere}, into a labeling, the
+ * same way as {@link LabelBrushController} does. The invocations alternately
+ * add and remove the label, so that every invocation actually writes all the
+ * pixels of the brush.
+ *
+ * @author Matthias Arzt
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 4)
+@Measurement(iterations = 8)
+public class BrushBenchmark {
+
+	@Param({ "2", "10", "30" })
+	public double radius;
+
+	private Labeling labeling;
+
+	private Label label;
+
+	private AffineTransform3D transform;
+
+	private LabelSetOperation add;
+
+	private LabelSetOperation remove;
+
+	private boolean adding = true;
+
+	@Setup
+	public void setup() {
+		Interval interval = Intervals.createMinSize(0, 0, 0, 200, 200, 200);
+		labeling = Labeling.createEmpty(Collections.singletonList("a"), interval);
+		label = labeling.getLabel("a");
+		transform = new AffineTransform3D();
+		transform.set(radius, 0, 0, 0, 0, radius, 0, 0, 0, 0, radius, 0);
+		add = labeling.labelSetOperation(set -> set.add(label));
+		remove = labeling.labelSetOperation(set -> set.remove(label));
+	}
+
+	@Benchmark
+	public void stamp() {
+		LabelSetOperation operation = adding ? add : remove;
+		adding = !adding;
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		Neighborhood<LabelingType<Label>> neighborhood = TransformedSphere
+			.asNeighborhood(new long[] { 100, 100, 100 }, transform, ra);
+		Cursor<LabelingType<Label>> cursor = neighborhood.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			labeling.update(cursor, operation);
+		}
+	}
+
+	public static void main(final String... args) throws RunnerException {
+		final Options opt = new OptionsBuilder().include(BrushBenchmark.class
+			.getSimpleName()).build();
+		new Runner(opt).run();
+	}
+}
@@ -74,14 +74,29 @@ public class FloodFillTest {
 		c.setVisible(false);
 		Label ab = labeling.addLabel("ab");
 		final Consumer<Set<Label>> operation = l -> l.add(ab);
-		FloodFill.doFloodFillOnActiveLabels((RandomAccessibleInterval) labeling,
-			seed, operation);
+		FloodFill.doFloodFillOnActiveLabels(labeling, labeling.interval(), seed,
+			operation);
 		assertLabelEqualsInterval(labeling, intervalA, a);
 		assertLabelEqualsInterval(labeling, intervalB, b);
 		assertLabelEqualsInterval(labeling, intervalC, c);
 		assertLabelEqualsInterval(labeling, intervalAintersectB, ab);
 	}
 
+	@Test
+	public void testRegion() {
+		Labeling labeling = Labeling.fromImgLabeling(exampleImgLabeling());
+		Label ab = labeling.addLabel("ab");
+		Interval region = Intervals.createMinMax(0, 1, 7, 4);
+		FloodFill.doFloodFillOnActiveLabels(labeling, region, new Point(2, 2),
+			l -> l.add(ab));
+		assertLabelEqualsInterval(labeling, Intervals.createMinSize(1, 1, 3, 2),
+			ab);
+		FloodFill.doFloodFillOnActiveLabels(labeling, region, new Point(2, 0),
+			l -> l.add(ab));
+		assertLabelEqualsInterval(labeling, Intervals.createMinSize(1, 1, 3, 2),
+			ab);
+	}
+
 	private <T> void assertLabelEqualsInterval(
 		RandomAccessibleInterval<? extends Set<T>> labeling, Interval interval,
 		T label)
@@ -0,0 +1,134 @@
+
+package net.imglib2.labkit.labeling;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.Test;
+import org.scijava.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Matthias Arzt
+ */
+public class LabelingAutosaveTest {
+
+	@Test
+	public void testReplay() throws IOException {
+		String filename = tempFile();
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("a", "b"),
+			Intervals.createMinSize(-3, 2, 50, 40));
+		addPixelLabel(labeling, labeling.getLabel("a"), 0, 2);
+		LabelingAutosave autosave = LabelingAutosave.start(labeling, filename,
+			Long.MAX_VALUE);
+		long snapshotSize = new File(filename).length();
+		addPixelLabel(labeling, labeling.getLabel("b"), 0, 2);
+		addPixelLabel(labeling, labeling.getLabel("b"), 1, 2);
+		labeling.removeLabel(labeling.getLabel("a"));
+		Label c = labeling.addLabel("c");
+		addPixelLabel(labeling, c, 10, 20);
+		autosave.flush();
+		assertEquals(snapshotSize, new File(filename).length());
+		assertLabelingEquals(labeling, open(filename));
+		labeling.getLabel("b").setName("d");
+		addPixelLabel(labeling, c, 11, 20);
+		autosave.close();
+		Labeling reopened = open(filename);
+		assertLabelingEquals(labeling, reopened);
+		assertEquals(Arrays.asList("d", "c"), names(reopened));
+	}
+
+	@Test
+	public void testRemoveLabelWhileAutosaving() throws IOException {
+		String filename = tempFile();
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("a", "b", "c"),
+			Intervals.createMinSize(0, 0, 30, 30));
+		addPixelLabel(labeling, labeling.getLabel("c"), 1, 1);
+		labeling.removeLabel(labeling.getLabel("c"));
+		LabelingAutosave autosave = LabelingAutosave.start(labeling, filename,
+			Long.MAX_VALUE);
+		addPixelLabel(labeling, labeling.getLabel("a"), 3, 4);
+		addPixelLabel(labeling, labeling.getLabel("b"), 3, 4);
+		autosave.flush();
+		labeling.removeLabel(labeling.getLabel("a"));
+		autosave.compact();
+		assertLabelingEquals(labeling, open(filename));
+		addPixelLabel(labeling, labeling.getLabel("b"), 5, 5);
+		autosave.close();
+		Labeling reopened = open(filename);
+		assertLabelingEquals(labeling, reopened);
+		assertEquals(Collections.singletonList("b"), names(reopened));
+	}
+
+	@Test
+	public void testSaveRemovesJournal() throws IOException {
+		String filename = tempFile();
+		Labeling labeling = Labeling.createEmpty(Collections.singletonList("a"),
+			Intervals.createMinSize(0, 0, 20, 20));
+		LabelingAutosave autosave = LabelingAutosave.start(labeling, filename,
+			Long.MAX_VALUE);
+		addPixelLabel(labeling, labeling.getLabel("a"), 5, 5);
+		autosave.close();
+		Labeling other = Labeling.createEmpty(Collections.singletonList("x"),
+			Intervals.createMinSize(0, 0, 20, 20));
+		new LabelingSerializer(new Context()).save(other, filename);
+		assertFalse(new File(filename + LabelingAutosave.SUFFIX).exists());
+		assertLabelingEquals(other, open(filename));
+	}
+
+	private String tempFile() throws IOException {
+		File file = File.createTempFile("test-", ".labeling");
+		file.deleteOnExit();
+		new File(file.getPath() + LabelingAutosave.SUFFIX).deleteOnExit();
+		return file.getAbsolutePath();
+	}
+
+	private Labeling open(String filename) throws IOException {
+		return new LabelingSerializer(new Context()).open(filename);
+	}
+
+	private void assertLabelingEquals(Labeling expected, Labeling actual) {
+		assertTrue(Intervals.equals(expected, actual));
+		assertEquals(names(expected), names(actual));
+		RandomAccess<LabelingType<Label>> ra = actual.randomAccess();
+		Cursor<LabelingType<Label>> cursor = Views.iterable(expected)
+			.localizingCursor();
+		while (cursor.hasNext()) {
+			Set<String> labels = toStrings(cursor.next());
+			ra.setPosition(cursor);
+			assertEquals(labels, toStrings(ra.get()));
+		}
+	}
+
+	private Set<String> toStrings(Set<Label> labels) {
+		return labels.stream().map(Label::name).collect(Collectors.toCollection(
+			HashSet::new));
+	}
+
+	private List<String> names(Labeling labeling) {
+		return labeling.getLabels().stream().map(Label::name).collect(Collectors
+			.toList());
+	}
+
+	private void addPixelLabel(Labeling labeling, Label value,
+		long... position)
+	{
+		RandomAccess<LabelingType<Label>> randomAccess = labeling.randomAccess();
+		randomAccess.setPosition(position);
+		randomAccess.get().add(value);
+	}
+}
@@ -0,0 +1,101 @@
+
+package net.imglib2.labkit.labeling;
+
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.roi.IterableRegion;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.sparse.BenchmarkData;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Benchmarks {@link Labeling#iterableRegions()},
+ * {@link Labeling#clearLabel(Label)} and
+ * {@link Labeling#addLabel(String, net.imglib2.RandomAccessibleInterval)}.
+ *
+ * @author Matthias Arzt
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 4)
+@Measurement(iterations = 8)
+public class LabelingBenchmark {
+
+	@Param({ "2D", "3D", "4D" })
+	public String size;
+
+	@Param({ "0.01", "0.1", "0.5" })
+	public double density;
+
+	private Interval interval;
+
+	private Labeling labeling;
+
+	private Img<BitType> bitmap;
+
+	@Setup(Level.Trial)
+	public void setupBitmap() {
+		interval = BenchmarkData.interval(size);
+		bitmap = ArrayImgs.bits(Intervals.dimensionsAsLongArray(interval));
+		RandomAccess<BitType> ra = bitmap.randomAccess();
+		for (Point point : BenchmarkData.randomPositions(interval, density)) {
+			ra.setPosition(point);
+			ra.get().setOne();
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void setupLabeling() {
+		labeling = Labeling.createEmpty(Arrays.asList("a", "b", "c"), interval);
+		Label[] labels = labeling.getLabels().toArray(new Label[0]);
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		int i = 0;
+		for (Point point : BenchmarkData.randomPositions(interval, density)) {
+			ra.setPosition(point);
+			ra.get().add(labels[i++ % labels.length]);
+		}
+	}
+
+	@Benchmark
+	public Map<Label, IterableRegion<BitType>> iterableRegions() {
+		return labeling.iterableRegions();
+	}
+
+	@Benchmark
+	public void clearLabel() {
+		labeling.clearLabel(labeling.getLabel("a"));
+	}
+
+	@Benchmark
+	public void addLabel() {
+		labeling.addLabel("d", Views.translate(bitmap, Intervals.minAsLongArray(
+			interval)));
+	}
+
+	public static void main(final String... args) throws RunnerException {
+		final Options opt = new OptionsBuilder().include(LabelingBenchmark.class
+			.getSimpleName()).build();
+		new Runner(opt).run();
+	}
+}
@@ -0,0 +1,95 @@
+
+package net.imglib2.labkit.labeling;
+
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.sparse.BenchmarkData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.scijava.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Saving and loading a {@link Labeling} as JSON and TIFF.
+ *
+ * @author Matthias Arzt
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 4)
+public class LabelingSerializationBenchmark {
+
+	@Param({ "2D", "3D", "4D" })
+	public String size;
+
+	@Param({ "0.01", "0.1" })
+	public double density;
+
+	@Param({ "json", "tif" })
+	public String format;
+
+	private Context context;
+
+	private LabelingSerializer serializer;
+
+	private Labeling labeling;
+
+	private String filename;
+
+	@Setup
+	public void setup() throws IOException {
+		context = new Context();
+		serializer = new LabelingSerializer(context);
+		Interval interval = BenchmarkData.interval(size);
+		labeling = Labeling.createEmpty(Arrays.asList("a", "b"), interval);
+		Label[] labels = labeling.getLabels().toArray(new Label[0]);
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		int i = 0;
+		for (Point point : BenchmarkData.randomPositions(interval, density)) {
+			ra.setPosition(point);
+			ra.get().add(labels[i++ % labels.length]);
+		}
+		File file = File.createTempFile("benchmark-", "." + format);
+		file.deleteOnExit();
+		filename = file.getAbsolutePath();
+		serializer.save(labeling, filename);
+	}
+
+	@TearDown
+	public void tearDown() {
+		context.dispose();
+	}
+
+	@Benchmark
+	public void save() throws IOException {
+		serializer.save(labeling, filename);
+	}
+
+	@Benchmark
+	public Labeling load() throws IOException {
+		return serializer.open(filename);
+	}
+
+	public static void main(final String... args) throws RunnerException {
+		final Options opt = new OptionsBuilder().include(
+			LabelingSerializationBenchmark.class.getSimpleName()).build();
+		new Runner(opt).run();
+	}
+}
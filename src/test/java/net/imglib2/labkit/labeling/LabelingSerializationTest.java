@@ -5,20 +5,27 @@ import com.google.gson.Gson;
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccess;
 import net.imglib2.roi.IterableRegion;
+import net.imglib2.roi.labeling.LabelingType;
 import net.imglib2.sparse.SparseIterableRegion;
 import net.imglib2.type.logic.BitType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 import org.junit.Test;
 import org.scijava.Context;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.stream.Collectors;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -38,6 +45,98 @@ public class LabelingSerializationTest {
 		testSerialization(emptyLabeling(), "tif");
 	}
 
+	@Test
+	public void testTiledTif() throws IOException {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("A", "B"),
+			Intervals.createMinSize(0, 0, 0, 600, 300, 3));
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		ra.setPosition(new long[] { 599, 299, 2 });
+		ra.get().add(labeling.getLabel("A"));
+		ra.setPosition(new long[] { 300, 10, 1 });
+		ra.get().add(labeling.getLabel("A"));
+		ra.get().add(labeling.getLabel("B"));
+		testSerialization(labeling, "tif");
+	}
+
+	@Test
+	public void testTiledTif2D() throws IOException {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("A", "B"),
+			Intervals.createMinSize(0, 0, 600, 300));
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		ra.setPosition(new long[] { 599, 299 });
+		ra.get().add(labeling.getLabel("A"));
+		ra.setPosition(new long[] { 300, 10 });
+		ra.get().add(labeling.getLabel("A"));
+		ra.get().add(labeling.getLabel("B"));
+		testSerialization(labeling, "tif");
+	}
+
+	@Test
+	public void testTiledTif4D() throws IOException {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("A", "B"),
+			Intervals.createMinSize(0, 0, 0, 0, 300, 260, 2, 3));
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		ra.setPosition(new long[] { 299, 259, 1, 2 });
+		ra.get().add(labeling.getLabel("A"));
+		ra.setPosition(new long[] { 5, 6, 0, 1 });
+		ra.get().add(labeling.getLabel("B"));
+		testSerialization(labeling, "tif");
+	}
+
+	@Test
+	public void testBinary() throws IOException {
+		testSerialization(exampleLabeling(), "labeling");
+		testSerialization(emptyLabeling(), "labeling");
+		testSerialization(largeLabeling(), "labeling");
+	}
+
+	@Test
+	public void testBinaryAfterRemoveLabel() throws IOException {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("A", "B"),
+			Intervals.createMinSize(0, 0, 20, 20));
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		ra.setPosition(new long[] { 3, 4 });
+		ra.get().add(labeling.getLabel("A"));
+		ra.get().add(labeling.getLabel("B"));
+		ra.setPosition(new long[] { 5, 6 });
+		ra.get().add(labeling.getLabel("A"));
+		// NB: The undo step of the removal keeps the label sets, that contain A.
+		labeling.removeLabel(labeling.getLabel("A"));
+		String filename = tempFileWithExtension("labeling");
+		LabelingSerializer serializer = new LabelingSerializer(new Context());
+		serializer.save(labeling, filename);
+		Labeling deserialized = serializer.open(filename);
+		assertTrue(labelingsEqual(labeling, deserialized));
+		assertEquals(Collections.singletonList("B"), deserialized.getLabels()
+			.stream().map(Label::name).collect(Collectors.toList()));
+		assertEquals(1, deserialized.getPixelCount(deserialized.getLabel("B")));
+	}
+
+	@Test
+	public void testOpenJsonWithLabelingExtension() throws IOException {
+		Labeling labeling = exampleLabeling();
+		String filename = tempFileWithExtension("labeling");
+		try (FileWriter writer = new FileWriter(filename)) {
+			new Gson().toJson(labeling, Labeling.class, writer);
+		}
+		Labeling deserialized = new LabelingSerializer(new Context()).open(
+			filename);
+		assertTrue(labelingsEqual(labeling, deserialized));
+	}
+
+	@Test
+	public void testTifWithoutLabelsFile() throws IOException {
+		String filename = tempFileWithExtension("tif");
+		LabelingSerializer serializer = new LabelingSerializer(new Context());
+		serializer.save(exampleLabeling(), filename);
+		new File(filename + ".labels").delete();
+		Labeling labeling = serializer.open(filename);
+		assertEquals(new HashSet<>(Arrays.asList("1", "2")), labeling.getLabels()
+			.stream().map(Label::name).collect(Collectors.toSet()));
+		assertEquals(1, labeling.getPixelCount(labeling.getLabel("1")));
+		assertEquals(1, labeling.getPixelCount(labeling.getLabel("2")));
+	}
+
 	private void testSerialization(Labeling labeling, String extension)
 		throws IOException
 	{
@@ -84,6 +183,21 @@ public class LabelingSerializationTest {
 			2));
 	}
 
+	private static Labeling largeLabeling() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("A", "B"),
+			Intervals.createMinSize(-20, 7, 3, 300, 200, 5));
+		Label a = labeling.getLabel("A");
+		Label b = labeling.getLabel("B");
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		Random random = new Random(42);
+		for (int i = 0; i < 10000; i++) {
+			ra.setPosition(new long[] { -20 + random.nextInt(300), 7 + random
+				.nextInt(200), 3 + random.nextInt(5) });
+			ra.get().add(random.nextBoolean() ? a : b);
+		}
+		return labeling;
+	}
+
 	private static IterableRegion<BitType> exampleRegion(long... position) {
 		SparseIterableRegion roi = new SparseIterableRegion(new FinalInterval(100,
 			200));
@@ -1,6 +1,7 @@
 
 package net.imglib2.labkit.labeling;
 
+import net.imglib2.Cursor;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
@@ -18,6 +19,7 @@ import java.util.TreeSet;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 public class LabelingSlicerTest {
@@ -51,6 +53,27 @@ public class LabelingSlicerTest {
 		assertImageEquals(slices.get(1), result.get(1));
 	}
 
+	@Test
+	public void testSliceViewSparsity() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("a", "b"),
+			Intervals.createMinSize(0, 0, 0, 10, 10, 20));
+		RandomAccess<LabelingType<Label>> ra = labeling.randomAccess();
+		ra.setPosition(new long[] { 5, 8, 3 });
+		ra.get().add(labeling.getLabel("a"));
+		ra.setPosition(new long[] { 1, 2, 4 });
+		ra.get().add(labeling.getLabel("b"));
+		Labeling slice = Labelings.slices(labeling).get(4);
+		assertEquals(2, slice.numDimensions());
+		Cursor<?> cursor = slice.sparsityCursor();
+		assertTrue(cursor.hasNext());
+		cursor.fwd();
+		assertEquals(1, cursor.getLongPosition(0));
+		assertEquals(2, cursor.getLongPosition(1));
+		assertFalse(cursor.hasNext());
+		assertEquals(1, slice.getPixelCount(labeling.getLabel("b")));
+		assertEquals(0, slice.getPixelCount(labeling.getLabel("a")));
+	}
+
 	private <T> void assertImageEquals(
 		RandomAccessibleInterval<LabelingType<T>> expected,
 		RandomAccessibleInterval<LabelingType<T>> actual)
@@ -1,16 +1,37 @@
 
 package net.imglib2.labkit.labeling;
 
+import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Point;
 import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.roi.IterableRegion;
+import net.imglib2.roi.labeling.ImgLabeling;
 import net.imglib2.roi.labeling.LabelingType;
+import net.imglib2.sparse.SparseRandomAccessIntType;
+import net.imglib2.type.logic.BitType;
 import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
 import org.junit.Test;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -42,6 +63,434 @@ public class LabelingTest {
 			labeling, position)));
 	}
 
+	@Test
+	public void testConcurrentLabelSetOperations() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("f", "b"),
+			Intervals.createMinSize(0, 0, 100, 100));
+		Label f = labeling.getLabel("f");
+		Label b = labeling.getLabel("b");
+		LabelSetOperation addF = labeling.labelSetOperation(set -> set.add(f));
+		LabelSetOperation addB = labeling.labelSetOperation(set -> set.add(b));
+		IntStream.range(0, 20000).parallel().forEach(i -> {
+			Point position = new Point(i % 100, (i / 100) % 100);
+			labeling.update(position, i < 10000 ? addF : addB);
+		});
+		Set<Label> expected = new HashSet<>(Arrays.asList(f, b));
+		Views.iterable(labeling).forEach(set -> assertEquals(expected, set));
+	}
+
+	@Test
+	public void testPixelCountAndBoundingBox() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("f", "b"),
+			Intervals.createMinSize(0, 0, 100, 100));
+		Label f = labeling.getLabel("f");
+		addPixelLabel(labeling, f, 10, 20);
+		addPixelLabel(labeling, f, 30, 5);
+		addPixelLabel(labeling, labeling.getLabel("b"), 30, 5);
+		assertEquals(2, labeling.getPixelCount(f));
+		assertTrue(Intervals.equals(Intervals.createMinMax(10, 5, 30, 20),
+			labeling.getBoundingBox(f)));
+		getPixelLabels(labeling, 30, 5).remove(f);
+		assertEquals(1, labeling.getPixelCount(f));
+		assertTrue(Intervals.equals(Intervals.createMinMax(10, 20, 10, 20),
+			labeling.getBoundingBox(f)));
+		labeling.clearLabel(f);
+		assertEquals(0, labeling.getPixelCount(f));
+		assertEquals(null, labeling.getBoundingBox(f));
+	}
+
+	@Test
+	public void testLiveIterableRegions() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("f", "b"),
+			Intervals.createMinSize(-5, 3, 100, 100));
+		Label f = labeling.getLabel("f");
+		Label b = labeling.getLabel("b");
+		Map<Label, IterableRegion<BitType>> regions = labeling
+			.liveIterableRegions();
+		addPixelLabel(labeling, f, 10, 20);
+		addPixelLabel(labeling, f, -5, 7);
+		addPixelLabel(labeling, b, 10, 20);
+		assertEquals(Arrays.asList("[-5, 7]", "[10, 20]"), positions(regions.get(
+			f)));
+		assertEquals(Collections.singletonList("[10, 20]"), positions(regions.get(
+			b)));
+		labeling.clearLabel(f);
+		assertEquals(Collections.emptyList(), positions(regions.get(f)));
+		assertEquals(Collections.singletonList("[10, 20]"), positions(regions.get(
+			b)));
+		RandomAccess<BitType> ra = regions.get(f).randomAccess();
+		ra.setPosition(new long[] { 0, 3 });
+		ra.get().set(true);
+		assertTrue(getPixelLabels(labeling, 0, 3).contains(f));
+		assertEquals(Collections.singletonList("[0, 3]"), positions(regions.get(
+			f)));
+	}
+
+	@Test
+	public void testIterableRegionsAreCopies() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("f", "b"),
+			Intervals.createMinSize(0, 0, 10, 10));
+		Label f = labeling.getLabel("f");
+		addPixelLabel(labeling, f, 1, 2);
+		Map<Label, IterableRegion<BitType>> regions = labeling.iterableRegions();
+		addPixelLabel(labeling, f, 3, 4);
+		labeling.clearLabel(f);
+		assertEquals(Collections.singletonList("[1, 2]"), positions(regions.get(
+			f)));
+		assertEquals(Collections.emptyList(), positions(regions.get(labeling
+			.getLabel("b"))));
+	}
+
+	@Test
+	public void testBulkRemapping() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("a", "b", "c"),
+			Intervals.createMinSize(0, 0, 10, 10));
+		Label a = labeling.getLabel("a");
+		Label b = labeling.getLabel("b");
+		Label c = labeling.getLabel("c");
+		addPixelLabel(labeling, a, 1, 1);
+		addPixelLabel(labeling, a, 2, 2);
+		addPixelLabel(labeling, b, 2, 2);
+		addPixelLabel(labeling, c, 3, 3);
+		labeling.mergeLabels(a, b);
+		assertEquals(Arrays.asList(b, c), labeling.getLabels());
+		assertEquals(Collections.singleton(b), getPixelLabels(labeling, 1, 1));
+		assertEquals(Collections.singleton(b), getPixelLabels(labeling, 2, 2));
+		assertEquals(2, labeling.getPixelCount(b));
+		labeling.remapLabelSets(set -> set.add(c));
+		assertEquals(100, labeling.getPixelCount(c));
+		assertEquals(new HashSet<>(Arrays.asList(b, c)), getPixelLabels(labeling,
+			2, 2));
+		labeling.removeLabels(Arrays.asList(b, c));
+		assertTrue(labeling.getLabels().isEmpty());
+		assertFalse(labeling.sparsityCursor().hasNext());
+	}
+
+	@Test
+	public void testCompactLabelSets() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("a", "b"),
+			Intervals.createMinSize(0, 0, 10, 10));
+		Label a = labeling.getLabel("a");
+		Label b = labeling.getLabel("b");
+		addPixelLabel(labeling, a, 1, 1);
+		addPixelLabel(labeling, a, 2, 2);
+		addPixelLabel(labeling, b, 2, 2);
+		addPixelLabel(labeling, b, 3, 3);
+		labeling.clearLabel(a);
+		assertEquals(4, labeling.getLabelSets().size());
+		assertEquals(2, labeling.compactLabelSets());
+		assertEquals(2, labeling.getLabelSets().size());
+		assertEquals(Collections.emptySet(), getPixelLabels(labeling, 1, 1));
+		assertEquals(Collections.singleton(b), getPixelLabels(labeling, 2, 2));
+		assertEquals(Collections.singleton(b), getPixelLabels(labeling, 3, 3));
+		addPixelLabel(labeling, a, 4, 4);
+		assertEquals(1, labeling.getPixelCount(a));
+		assertEquals(2, labeling.getPixelCount(b));
+		assertEquals(0, labeling.compactLabelSets());
+	}
+
+	@Test(timeout = 60000)
+	public void testCompactWhileWriting() throws Exception {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("a", "b"),
+			Intervals.createMinSize(0, 0, 10, 10));
+		Label a = labeling.getLabel("a");
+		Label b = labeling.getLabel("b");
+		// NB: The operations are created once, and used across compactions.
+		LabelSetOperation addA = labeling.labelSetOperation(set -> set.add(a));
+		LabelSetOperation removeA = labeling.labelSetOperation(set -> set.remove(
+			a));
+		List<Thread> writers = new ArrayList<>();
+		for (int y = 1; y <= 4; y++) {
+			long row = y;
+			writers.add(new Thread(() -> {
+				for (int k = 0; k < 2010; k++) {
+					boolean add = (k / 10) % 2 == 0;
+					labeling.update(new Point(k % 10, row), add ? addA : removeA);
+				}
+			}));
+		}
+		writers.forEach(Thread::start);
+		while (writers.stream().anyMatch(Thread::isAlive)) {
+			addPixelLabel(labeling, b, 0, 0);
+			labeling.clearLabel(b);
+			labeling.compactLabelSets();
+		}
+		for (Thread writer : writers)
+			writer.join();
+		assertEquals(40, labeling.getPixelCount(a));
+		assertEquals(0, labeling.getPixelCount(b));
+		for (int x = 0; x < 10; x++)
+			assertEquals(Collections.singleton(a), getPixelLabels(labeling, x, 3));
+	}
+
+	@Test(timeout = 60000)
+	public void testRemapWhileWriting() throws Exception {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("a", "b"),
+			Intervals.createMinSize(0, 0, 100, 100));
+		Label a = labeling.getLabel("a");
+		Label b = labeling.getLabel("b");
+		LabelSetOperation addB = labeling.labelSetOperation(set -> set.add(b));
+		Thread writer = new Thread(() -> {
+			for (int i = 0; i < 10000; i++)
+				labeling.update(new Point(i % 100, i / 100), addB);
+		});
+		writer.start();
+		// NB: Adding a label to every pixel changes the empty label set, so all
+		// pixels are visited.
+		labeling.remapLabelSets(set -> set.add(a));
+		writer.join();
+		assertEquals(10000, labeling.getPixelCount(a));
+		assertEquals(10000, labeling.getPixelCount(b));
+	}
+
+	@Test(timeout = 60000)
+	public void testParallelWrites() throws Exception {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("a", "b", "c",
+			"d"), Intervals.createMinSize(0, 0, 256, 256));
+		int[] values = new int[4];
+		for (int i = 0; i < 4; i++) {
+			Label label = labeling.getLabels().get(i);
+			values[i] = labeling.labelSetOperation(set -> set.add(label))
+				.applyAsInt(0);
+		}
+		File file = File.createTempFile("test-", ".labeling");
+		file.deleteOnExit();
+		new File(file.getPath() + LabelingAutosave.SUFFIX).deleteOnExit();
+		LabelingAutosave autosave = LabelingAutosave.start(labeling, file
+			.getPath(), Long.MAX_VALUE);
+		LabelingJournal journal = labeling.journal();
+		journal.beginStep();
+		SparseRandomAccessIntType indexImg =
+			(SparseRandomAccessIntType) labeling.getIndexImg();
+		// NB: Each thread writes to its own tile, and waits for the others
+		// while holding the lock of the tile. The global locks are held by this
+		// thread, so the writes only complete, if they don't need them.
+		CyclicBarrier barrier = new CyclicBarrier(4);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			synchronized (labeling.labelSetsLock()) {
+				synchronized (journal) {
+					synchronized (autosave) {
+						List<Future<?>> futures = new ArrayList<>();
+						for (int t = 0; t < 4; t++) {
+							int thread = t;
+							futures.add(executor.submit(() -> {
+								for (int i = 0; i < 64; i++)
+									indexImg.update(new Point(64 * thread + i, i), old -> {
+										await(barrier);
+										return values[thread];
+									});
+							}));
+						}
+						for (Future<?> future : futures)
+							future.get(30, TimeUnit.SECONDS);
+					}
+				}
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		journal.endStep();
+		for (Label label : labeling.getLabels())
+			assertEquals(64, labeling.getPixelCount(label));
+		assertTrue(journal.undo());
+		for (Label label : labeling.getLabels())
+			assertEquals(0, labeling.getPixelCount(label));
+		autosave.close();
+	}
+
+	private static void await(CyclicBarrier barrier) {
+		try {
+			barrier.await(30, TimeUnit.SECONDS);
+		}
+		catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Test
+	public void testOperationAfterCompaction() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("a", "b"),
+			Intervals.createMinSize(0, 0, 10, 10));
+		Label a = labeling.getLabel("a");
+		Label b = labeling.getLabel("b");
+		LabelSetOperation addB = labeling.labelSetOperation(set -> set.add(b));
+		addPixelLabel(labeling, a, 1, 1);
+		labeling.update(new Point(1, 1), addB);
+		labeling.clearLabel(a);
+		assertTrue(labeling.compactLabelSets() > 0);
+		addPixelLabel(labeling, a, 2, 2);
+		labeling.update(new Point(2, 2), addB);
+		labeling.update(new Point(3, 3), addB);
+		assertEquals(new HashSet<>(Arrays.asList(a, b)), getPixelLabels(labeling,
+			2, 2));
+		assertEquals(Collections.singleton(b), getPixelLabels(labeling, 3, 3));
+	}
+
+	@Test
+	public void testAddLabelFromMask() {
+		Interval interval = Intervals.createMinSize(-3, 2, 50, 40);
+		Labeling labeling = Labeling.createEmpty(Collections.emptyList(),
+			interval);
+		RandomAccessibleInterval<BitType> mask = Views.interval(Views.translate(
+			ArrayImgs.bits(50, 40), -3, 2), interval);
+		Views.interval(mask, Intervals.createMinSize(5, 5, 20, 3)).forEach(
+			pixel -> pixel.set(true));
+		labeling.addLabel("mask", mask, new CellGrid(new long[] { 50, 40 },
+			new int[] { 16, 16 }));
+		Label label = labeling.getLabel("mask");
+		assertEquals(60, labeling.getPixelCount(label));
+		assertTrue(Intervals.equals(Intervals.createMinSize(5, 5, 20, 3), labeling
+			.getBoundingBox(label)));
+		labeling.addLabel("copy", labeling.iterableRegions().get(label));
+		assertEquals(60, labeling.getPixelCount(labeling.getLabel("copy")));
+	}
+
+	@Test
+	public void testUndoRedo() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("a", "b"),
+			Intervals.createMinSize(0, 0, 10, 10));
+		Label a = labeling.getLabel("a");
+		Label b = labeling.getLabel("b");
+		LabelingJournal journal = labeling.journal();
+		journal.beginStep();
+		addPixelLabel(labeling, a, 1, 1);
+		addPixelLabel(labeling, a, 2, 1);
+		addPixelLabel(labeling, b, 2, 1);
+		journal.endStep();
+		labeling.removeLabel(a);
+		assertEquals(Collections.singletonList(b), labeling.getLabels());
+		assertTrue(journal.undo());
+		assertEquals(Arrays.asList(a, b), labeling.getLabels());
+		assertEquals(new HashSet<>(Arrays.asList(a, b)), getPixelLabels(labeling,
+			2, 1));
+		assertTrue(journal.undo());
+		assertEquals(Collections.emptySet(), getPixelLabels(labeling, 1, 1));
+		assertEquals(0, labeling.getPixelCount(b));
+		assertFalse(journal.undo());
+		assertTrue(journal.redo());
+		assertEquals(2, labeling.getPixelCount(a));
+		assertEquals(0, labeling.compactLabelSets());
+		assertTrue(journal.redo());
+		assertEquals(Collections.singleton(b), getPixelLabels(labeling, 2, 1));
+		assertFalse(journal.redo());
+		assertEquals(Collections.singletonList(b), labeling.getLabels());
+	}
+
+	@Test(timeout = 60000)
+	public void testUndoWhileEditing() throws Exception {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("a", "b"),
+			Intervals.createMinSize(0, 0, 100, 100));
+		Label a = labeling.getLabel("a");
+		Label b = labeling.getLabel("b");
+		LabelingJournal journal = labeling.journal();
+		journal.beginStep();
+		addPixelLabel(labeling, a, 0, 0);
+		journal.endStep();
+		LabelSetOperation addB = labeling.labelSetOperation(set -> set.add(b));
+		Thread writer = new Thread(() -> {
+			for (int i = 0; i < 500; i++) {
+				journal.beginStep();
+				labeling.update(new Point(i % 100, 1 + i / 100), addB);
+				journal.endStep();
+			}
+		});
+		writer.start();
+		while (writer.isAlive()) {
+			journal.undo();
+			journal.redo();
+		}
+		writer.join();
+		// NB: Every step of the writer was recorded, or undone and dropped from
+		// the redo steps by a later step. So undo reverts all of them.
+		while (journal.undo()) {
+			// continue
+		}
+		assertEquals(0, labeling.getPixelCount(b));
+	}
+
+	@Test
+	public void testUndoRestoresLabelOrder() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("a", "b", "c",
+			"d"), Intervals.createMinSize(0, 0, 10, 10));
+		List<Label> labels = new ArrayList<>(labeling.getLabels());
+		addPixelLabel(labeling, labels.get(1), 1, 1);
+		labeling.removeLabels(Arrays.asList(labels.get(0), labels.get(2)));
+		assertEquals(Arrays.asList(labels.get(1), labels.get(3)), labeling
+			.getLabels());
+		assertTrue(labeling.journal().undo());
+		assertEquals(labels, labeling.getLabels());
+		assertTrue(labeling.journal().redo());
+		assertEquals(Arrays.asList(labels.get(1), labels.get(3)), labeling
+			.getLabels());
+	}
+
+	@Test
+	public void testOffHeapIndexImg() {
+		Interval interval = Intervals.createMinSize(0, 0, 100, 100);
+		Labeling labeling = Labeling.fromImgLabeling(Collections.emptyList(),
+			new ImgLabeling<>(SparseRandomAccessIntType.blockSparseOffHeap(
+				interval)));
+		Label a = labeling.addLabel("a");
+		Label b = labeling.addLabel("b");
+		// NB: Leaves the label set {b} unused, the compaction below renumbers {a}.
+		addPixelLabel(labeling, b, 0, 99);
+		labeling.clearLabel(b);
+		LabelSetOperation addA = labeling.labelSetOperation(set -> set.add(a));
+		LabelingJournal journal = labeling.journal();
+		journal.beginStep();
+		for (int y = 0; y < 50; y++)
+			for (int x = 0; x < 100; x++)
+				labeling.update(new Point(x, y), addA);
+		journal.endStep();
+		assertEquals(5000, labeling.getPixelCount(a));
+		Labeling snapshot = labeling.snapshot();
+		labeling.mergeLabels(a, b);
+		assertEquals(5000, labeling.getPixelCount(b));
+		assertEquals(Collections.singleton(a), getPixelLabels(snapshot, 99, 49));
+		assertTrue(journal.undo());
+		assertTrue(journal.undo());
+		assertEquals(0, labeling.getPixelCount(a));
+		assertTrue(journal.redo());
+		assertEquals(5000, labeling.getPixelCount(a));
+		journal.clear();
+		assertTrue(labeling.compactLabelSets() > 0);
+		assertEquals(5000, labeling.getPixelCount(a));
+		assertEquals(Collections.singleton(a), getPixelLabels(labeling, 99, 49));
+		assertTrue(((SparseRandomAccessIntType) labeling.getIndexImg())
+			.isOffHeap());
+	}
+
+	@Test
+	public void testSnapshot() {
+		Labeling labeling = Labeling.createEmpty(Arrays.asList("a", "b"),
+			Intervals.createMinSize(0, 0, 10, 10));
+		Label a = labeling.getLabel("a");
+		Label b = labeling.getLabel("b");
+		addPixelLabel(labeling, a, 1, 1);
+		Labeling snapshot = labeling.snapshot();
+		addPixelLabel(labeling, b, 1, 1);
+		addPixelLabel(labeling, b, 2, 2);
+		assertEquals(Collections.singleton(a), getPixelLabels(snapshot, 1, 1));
+		assertEquals(Collections.emptySet(), getPixelLabels(snapshot, 2, 2));
+		assertEquals(new HashSet<>(Arrays.asList(a, b)), getPixelLabels(labeling,
+			1, 1));
+		assertEquals(2, labeling.getPixelCount(b));
+	}
+
+	private List<String> positions(IterableRegion<BitType> region) {
+		List<String> result = new ArrayList<>();
+		Cursor<Void> cursor = region.cursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			long[] position = new long[cursor.numDimensions()];
+			cursor.localize(position);
+			result.add(Arrays.toString(position));
+		}
+		return result;
+	}
+
 	private void addPixelLabel(Labeling labeling, Label value, long... position) {
 		RandomAccess<LabelingType<Label>> randomAccess = labeling.randomAccess();
 		randomAccess.setPosition(position);
@@ -0,0 +1,76 @@
+
+package net.imglib2.labkit.labeling;
+
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.volatiles.VolatileARGBType;
+import net.imglib2.util.Intervals;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LabelsSourceTest {
+
+	@Test
+	public void testLevels() {
+		Img<ARGBType> colors = ArrayImgs.argbs(1000, 600);
+		LabelsSource source = new LabelsSource(colors, new AffineTransform3D(),
+			false, Runnable::run, () -> {});
+		assertEquals(3, source.getNumMipmapLevels());
+		assertEquals(500, source.getSource(0, 1).dimension(0));
+		assertEquals(300, source.getSource(0, 1).dimension(1));
+		assertEquals(1, source.getSource(0, 1).dimension(2));
+		AffineTransform3D transform = new AffineTransform3D();
+		source.getSourceTransform(0, 2, transform);
+		assertEquals(4, transform.get(0, 0), 0);
+		assertEquals(1.5, transform.get(0, 3), 0);
+		assertEquals(1, transform.get(2, 2), 0);
+	}
+
+	@Test
+	public void testAverageAndInvalidate() {
+		Img<ARGBType> colors = ArrayImgs.argbs(1000, 600);
+		RandomAccess<ARGBType> ra = colors.randomAccess();
+		ra.setPosition(new long[] { 10, 10 });
+		ra.get().set(ARGBType.rgba(200, 0, 0, 255));
+		ra.setPosition(new long[] { 11, 10 });
+		ra.get().set(ARGBType.rgba(0, 100, 0, 255));
+		LabelsSource source = new LabelsSource(colors, new AffineTransform3D(),
+			false, Runnable::run, () -> {});
+		assertEquals(ARGBType.rgba(100, 50, 0, 255), color(source, 5, 5));
+		assertEquals(0, color(source, 6, 5));
+		ra.setPosition(new long[] { 12, 10 });
+		ra.get().set(ARGBType.rgba(0, 0, 80, 255));
+		assertEquals(0, color(source, 6, 5));
+		source.invalidate(Point.wrap(new long[] { 12, 10 }));
+		assertEquals(ARGBType.rgba(0, 0, 80, 255), color(source, 6, 5));
+	}
+
+	@Test
+	public void testInvalidateInterval() {
+		Img<ARGBType> colors = ArrayImgs.argbs(1000, 600);
+		LabelsSource source = new LabelsSource(colors, new AffineTransform3D(),
+			false, Runnable::run, () -> {});
+		assertEquals(0, color(source, 300, 200));
+		RandomAccess<ARGBType> ra = colors.randomAccess();
+		ra.setPosition(new long[] { 600, 400 });
+		ra.get().set(ARGBType.rgba(0, 0, 80, 255));
+		source.invalidate(Intervals.createMinSize(0, 0, 10, 10));
+		assertEquals(0, color(source, 300, 200));
+		source.invalidate(Intervals.createMinSize(590, 390, 20, 20));
+		assertEquals(ARGBType.rgba(0, 0, 80, 255), color(source, 300, 200));
+	}
+
+	private int color(LabelsSource source, long x, long y) {
+		RandomAccess<VolatileARGBType> ra = source.getSource(0, 1)
+			.randomAccess();
+		ra.setPosition(new long[] { x, y, 0 });
+		assertTrue(ra.get().isValid());
+		return ra.get().get().get();
+	}
+}
@@ -35,6 +35,21 @@ public class SparseIterableRegionSerializationTest {
 		assertEquals(roi.size(), roi2.size());
 	}
 
+	@Test
+	public void testCoordinatesBeforeInterval() {
+		final Gson gson = new GsonBuilder().registerTypeHierarchyAdapter(
+			IterableRegion.class, new SparseIterableRegionSerializer.Adapter())
+			.create();
+		String json = "{\"coordinates\":[[1,2],[3,4]],\"interval\":" + new Gson()
+			.toJson(new FinalInterval(10, 10)) + "}";
+		SparseIterableRegion roi = gson.fromJson(json, SparseIterableRegion.class);
+		assertTrue(Intervals.equals(new FinalInterval(10, 10), roi));
+		assertEquals(2, roi.size());
+		RandomAccess<BitType> ra = roi.randomAccess();
+		ra.setPosition(new long[] { 3, 4 });
+		assertTrue(ra.get().get());
+	}
+
 	public static SparseIterableRegion exampleSparseRoi() {
 		final Interval interval = new FinalInterval(100, 200, 300);
 		final SparseIterableRegion roi = new SparseIterableRegion(interval);
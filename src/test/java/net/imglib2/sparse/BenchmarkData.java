@@ -0,0 +1,58 @@
+
+package net.imglib2.sparse;
+
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.util.Intervals;
+
+import java.util.Random;
+
+/**
+ * Image sizes and random pixel positions, that are shared by the JMH
+ * benchmarks. Every size has roughly one million pixels, so that results for
+ * different dimensionalities can be compared.
+ *
+ * @author Matthias Arzt
+ */
+public class BenchmarkData {
+
+	public static Interval interval(String size) {
+		switch (size) {
+			case "2D":
+				return Intervals.createMinSize(0, 0, 1000, 1000);
+			case "3D":
+				return Intervals.createMinSize(0, 0, 0, 100, 100, 100);
+			case "4D":
+				return Intervals.createMinSize(0, 0, 0, 0, 50, 50, 20, 20);
+			default:
+				throw new IllegalArgumentException("Unknown size: " + size);
+		}
+	}
+
+	/**
+	 * Returns the given number of random positions within the interval.
+	 */
+	public static Point[] randomPositions(Interval interval, int count,
+		long seed)
+	{
+		Random random = new Random(seed);
+		Point[] points = new Point[count];
+		for (int i = 0; i < count; i++) {
+			Point point = new Point(interval.numDimensions());
+			for (int d = 0; d < interval.numDimensions(); d++)
+				point.setPosition(interval.min(d) + (long) (random.nextDouble() *
+					interval.dimension(d)), d);
+			points[i] = point;
+		}
+		return points;
+	}
+
+	/**
+	 * Returns as many random positions, as needed to fill the given fraction of
+	 * the interval. Some positions may occur twice.
+	 */
+	public static Point[] randomPositions(Interval interval, double density) {
+		int count = (int) (Intervals.numElements(interval) * density);
+		return randomPositions(interval, count, 42);
+	}
+}
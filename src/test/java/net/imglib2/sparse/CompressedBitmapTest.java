@@ -0,0 +1,81 @@
+
+package net.imglib2.sparse;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CompressedBitmapTest {
+
+	private final Random random = new Random(42);
+
+	@Test
+	public void testAddRemoveContains() {
+		CompressedBitmap bitmap = new CompressedBitmap();
+		assertTrue(bitmap.add(70000));
+		assertFalse(bitmap.add(70000));
+		assertTrue(bitmap.contains(70000));
+		assertFalse(bitmap.contains(4464));
+		assertTrue(bitmap.remove(70000));
+		assertFalse(bitmap.remove(70000));
+		assertTrue(bitmap.isEmpty());
+		assertFalse(bitmap.iterator().hasNext());
+	}
+
+	@Test
+	public void testSparseValues() {
+		testSetAlgebra(5000000);
+	}
+
+	@Test
+	public void testDenseValues() {
+		testSetAlgebra(70000);
+	}
+
+	private void testSetAlgebra(int range) {
+		TreeSet<Long> expectedA = new TreeSet<>();
+		TreeSet<Long> expectedB = new TreeSet<>();
+		CompressedBitmap a = randomBitmap(range, expectedA);
+		CompressedBitmap b = randomBitmap(range, expectedB);
+		assertEquals(expectedA, toSet(a));
+		TreeSet<Long> union = new TreeSet<>(expectedA);
+		union.addAll(expectedB);
+		assertEquals(union, toSet(CompressedBitmap.union(a, b)));
+		TreeSet<Long> intersection = new TreeSet<>(expectedA);
+		intersection.retainAll(expectedB);
+		assertEquals(intersection, toSet(CompressedBitmap.intersection(a, b)));
+		TreeSet<Long> difference = new TreeSet<>(expectedA);
+		difference.removeAll(expectedB);
+		assertEquals(difference, toSet(CompressedBitmap.difference(a, b)));
+	}
+
+	private CompressedBitmap randomBitmap(int range, TreeSet<Long> expected) {
+		CompressedBitmap bitmap = new CompressedBitmap();
+		for (int i = 0; i < 100000; i++) {
+			long value = random.nextInt(range);
+			if (random.nextInt(4) == 0) assertEquals(expected.remove(value), bitmap
+				.remove(value));
+			else assertEquals(expected.add(value), bitmap.add(value));
+		}
+		return bitmap;
+	}
+
+	private static TreeSet<Long> toSet(CompressedBitmap bitmap) {
+		TreeSet<Long> result = new TreeSet<>();
+		CompressedBitmap.Iterator iterator = bitmap.iterator();
+		long previous = -1;
+		while (iterator.hasNext()) {
+			long value = iterator.next();
+			assertTrue(value > previous);
+			previous = value;
+			result.add(value);
+		}
+		assertEquals(bitmap.cardinality(), result.size());
+		return result;
+	}
+}
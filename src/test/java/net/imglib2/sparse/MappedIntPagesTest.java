@@ -0,0 +1,36 @@
+
+package net.imglib2.sparse;
+
+import org.junit.Test;
+
+import java.nio.IntBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+public class MappedIntPagesTest {
+
+	@Test
+	public void testPagesAreDistinct() {
+		// NB: Two pages per segment, so the third page needs a second segment.
+		int pageLength = MappedIntPages.SEGMENT_BYTES / Integer.BYTES / 2;
+		MappedIntPages store = new MappedIntPages(pageLength);
+		Object[] holders = { new Object(), new Object(), new Object() };
+		IntBuffer[] pages = new IntBuffer[holders.length];
+		for (int i = 0; i < pages.length; i++) {
+			pages[i] = store.allocate(holders[i]);
+			assertEquals(pageLength, pages[i].capacity());
+			pages[i].put(0, i);
+			pages[i].put(pageLength - 1, -i);
+		}
+		for (int i = 0; i < pages.length; i++) {
+			assertEquals(i, pages[i].get(0));
+			assertEquals(-i, pages[i].get(pageLength - 1));
+		}
+		assertEquals(3, store.pagesInUse());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPageTooBig() {
+		new MappedIntPages(1 << 30);
+	}
+}
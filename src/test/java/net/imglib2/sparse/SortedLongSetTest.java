@@ -0,0 +1,73 @@
+
+package net.imglib2.sparse;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SortedLongSetTest {
+
+	@Test
+	public void testAddRemoveContains() {
+		SortedLongSet set = new SortedLongSet();
+		assertTrue(set.add(42));
+		assertFalse(set.add(42));
+		assertTrue(set.contains(42));
+		assertFalse(set.contains(7));
+		assertTrue(set.remove(42));
+		assertFalse(set.remove(42));
+		assertTrue(set.isEmpty());
+	}
+
+	@Test
+	public void testCompareWithTreeSet() {
+		SortedLongSet set = new SortedLongSet();
+		TreeSet<Long> expected = new TreeSet<>();
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; i++) {
+			long value = random.nextInt(20000);
+			if (random.nextInt(3) == 0) assertEquals(expected.remove(value), set
+				.remove(value));
+			else assertEquals(expected.add(value), set.add(value));
+		}
+		assertEquals(expected.size(), set.size());
+		assertArrayEquals(toArray(expected), iterate(set));
+		assertArrayEquals(toArray(expected), set.toArray());
+	}
+
+	@Test
+	public void testOf() {
+		SortedLongSet set = SortedLongSet.of(5, 3, 9, 3, 1);
+		assertArrayEquals(new long[] { 1, 3, 5, 9 }, iterate(set));
+		set.add(4);
+		assertArrayEquals(new long[] { 1, 3, 4, 5, 9 }, iterate(set));
+	}
+
+	@Test
+	public void testEmptyIterator() {
+		SortedLongSet set = new SortedLongSet();
+		set.add(1);
+		set.remove(1);
+		assertFalse(set.iterator().hasNext());
+	}
+
+	private static long[] iterate(SortedLongSet set) {
+		long[] result = new long[(int) set.size()];
+		SortedLongSet.Iterator iterator = set.iterator();
+		int i = 0;
+		while (iterator.hasNext())
+			result[i++] = iterator.next();
+		assertEquals(result.length, i);
+		return result;
+	}
+
+	private static long[] toArray(TreeSet<Long> set) {
+		return set.stream().mapToLong(x -> x).toArray();
+	}
+}
@@ -0,0 +1,109 @@
+
+package net.imglib2.sparse;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.view.Views;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Random and sequential get and set on {@link SparseRandomAccessIntType}, in
+ * hash map and block-sparse mode.
+ *
+ * @author Matthias Arzt
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 4)
+@Measurement(iterations = 8)
+public class SparseAccessBenchmark {
+
+	@Param({ "hash", "block" })
+	public String storage;
+
+	@Param({ "2D", "3D", "4D" })
+	public String size;
+
+	@Param({ "0.01", "0.1", "0.5" })
+	public double density;
+
+	private SparseRandomAccessIntType image;
+
+	private Point[] positions;
+
+	@Setup
+	public void setup() {
+		Interval interval = BenchmarkData.interval(size);
+		image = storage.equals("hash") ? new SparseRandomAccessIntType(interval)
+			: SparseRandomAccessIntType.blockSparse(interval);
+		RandomAccess<IntType> ra = image.randomAccess();
+		for (Point point : BenchmarkData.randomPositions(interval, density)) {
+			ra.setPosition(point);
+			ra.get().set(1);
+		}
+		positions = BenchmarkData.randomPositions(interval, 100000, 7);
+	}
+
+	@Benchmark
+	public long randomGet() {
+		RandomAccess<IntType> ra = image.randomAccess();
+		long sum = 0;
+		for (Point point : positions) {
+			ra.setPosition(point);
+			sum += ra.get().get();
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public void randomSet() {
+		RandomAccess<IntType> ra = image.randomAccess();
+		for (Point point : positions) {
+			ra.setPosition(point);
+			ra.get().set(2);
+		}
+	}
+
+	@Benchmark
+	public long sequentialGet() {
+		long sum = 0;
+		for (IntType pixel : Views.flatIterable(image))
+			sum += pixel.get();
+		return sum;
+	}
+
+	@Benchmark
+	public void sequentialSet() {
+		for (IntType pixel : Views.flatIterable(image))
+			pixel.set(1);
+	}
+
+	@Benchmark
+	public long sparseIteration() {
+		long sum = 0;
+		Cursor<IntType> cursor = image.sparseCursor();
+		while (cursor.hasNext())
+			sum += cursor.next().get();
+		return sum;
+	}
+
+	public static void main(final String... args) throws RunnerException {
+		final Options opt = new OptionsBuilder().include(SparseAccessBenchmark.class
+			.getSimpleName()).build();
+		new Runner(opt).run();
+	}
+}
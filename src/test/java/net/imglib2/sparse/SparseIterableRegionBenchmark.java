@@ -0,0 +1,82 @@
+
+package net.imglib2.sparse;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.Point;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Cursor creation and iteration for {@link SparseIterableRegion} and
+ * {@link BitmapIterableRegion}.
+ *
+ * @author Matthias Arzt
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 4)
+@Measurement(iterations = 8)
+public class SparseIterableRegionBenchmark {
+
+	@Param({ "2D", "3D", "4D" })
+	public String size;
+
+	@Param({ "0.01", "0.1", "0.5" })
+	public double density;
+
+	private SparseIterableRegion sparseRegion;
+
+	private BitmapIterableRegion bitmapRegion;
+
+	@Setup
+	public void setup() {
+		Interval interval = BenchmarkData.interval(size);
+		sparseRegion = new SparseIterableRegion(interval);
+		bitmapRegion = new BitmapIterableRegion(interval);
+		for (Point point : BenchmarkData.randomPositions(interval, density)) {
+			sparseRegion.add(point);
+			bitmapRegion.add(point);
+		}
+	}
+
+	@Benchmark
+	public Cursor<Void> createCursor() {
+		return sparseRegion.cursor();
+	}
+
+	@Benchmark
+	public long iterate() {
+		return sum(sparseRegion.cursor());
+	}
+
+	@Benchmark
+	public long iterateBitmap() {
+		return sum(bitmapRegion.cursor());
+	}
+
+	private static long sum(Cursor<Void> cursor) {
+		long sum = 0;
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			sum += cursor.getLongPosition(0);
+		}
+		return sum;
+	}
+
+	public static void main(final String... args) throws RunnerException {
+		final Options opt = new OptionsBuilder().include(
+			SparseIterableRegionBenchmark.class.getSimpleName()).build();
+		new Runner(opt).run();
+	}
+}
@@ -1,6 +1,7 @@
 
 package net.imglib2.sparse;
 
+import gnu.trove.set.hash.TLongHashSet;
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccess;
 import net.imglib2.type.logic.BitType;
@@ -8,6 +9,7 @@ import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public class SparseIterableRegionTest {
@@ -27,4 +29,16 @@ public class SparseIterableRegionTest {
 		Views.iterable(region).forEach(x -> assertTrue(x.get()));
 	}
 
+	@Test
+	public void testFromTLongSet() {
+		TLongHashSet indices = new TLongHashSet(new long[] { 7, 2, 5 });
+		SparseIterableRegion region = new SparseIterableRegion(Intervals
+			.createMinSize(0, 0, 4, 2), indices);
+		indices.add(0);
+		assertEquals(3, region.size());
+		RandomAccess<BitType> ra = region.randomAccess();
+		ra.setPosition(new long[] { 1, 1 });
+		assertTrue(ra.get().get());
+	}
+
 }
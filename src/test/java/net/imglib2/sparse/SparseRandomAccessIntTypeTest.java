@@ -1,13 +1,32 @@
 
 package net.imglib2.sparse;
 
+import net.imglib2.Cursor;
 import net.imglib2.Interval;
-import net.imglib2.sparse.SparseRandomAccessIntType;
+import net.imglib2.Point;
+import net.imglib2.RandomAccess;
+import net.imglib2.roi.IterableRegion;
+import net.imglib2.type.BooleanType;
+import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class SparseRandomAccessIntTypeTest {
 
@@ -24,4 +43,225 @@ public class SparseRandomAccessIntTypeTest {
 		// test
 		assertFalse(image.sparsityPattern().cursor().hasNext());
 	}
+
+	@Test
+	public void testBlockSparseNoEntryValue() {
+		int noEntryValue = -1;
+		SparseRandomAccessIntType image = SparseRandomAccessIntType.blockSparse(
+			interval, noEntryValue);
+		Views.iterable(image).forEach(x -> x.setInteger(noEntryValue));
+		assertFalse(image.sparsityPattern().cursor().hasNext());
+		Views.iterable(image).forEach(x -> assertEquals(noEntryValue, x
+			.getInteger()));
+	}
+
+	@Test
+	public void testBlockSparseEqualsHashMap() {
+		testBlockSparseEqualsHashMap(0.25, false);
+		testBlockSparseEqualsHashMap(0, false);
+	}
+
+	@Test
+	public void testOffHeapEqualsHashMap() {
+		testBlockSparseEqualsHashMap(0.25, true);
+		testBlockSparseEqualsHashMap(0, true);
+	}
+
+	private void testBlockSparseEqualsHashMap(double denseThreshold,
+		boolean offHeap)
+	{
+		Interval interval = Intervals.createMinSize(-7, 3, 2, 100, 70, 9);
+		SparseRandomAccessIntType expected = new SparseRandomAccessIntType(
+			interval);
+		int[] blockSize = { 8, 4, 2 };
+		SparseRandomAccessIntType actual = offHeap ? SparseRandomAccessIntType
+			.blockSparseOffHeap(interval, 0, blockSize, denseThreshold)
+			: SparseRandomAccessIntType.blockSparse(interval, 0, blockSize,
+				denseThreshold);
+		assertEquals(offHeap, actual.isOffHeap());
+		RandomAccess<IntType> e = expected.randomAccess();
+		RandomAccess<IntType> a = actual.randomAccess();
+		Random random = new Random(42);
+		long[] position = new long[3];
+		for (int i = 0; i < 10000; i++) {
+			for (int d = 0; d < 3; d++)
+				position[d] = interval.min(d) + random.nextInt((int) interval
+					.dimension(d));
+			int value = random.nextInt(4);
+			e.setPosition(position);
+			e.get().set(value);
+			a.setPosition(position);
+			a.get().set(value);
+		}
+		Views.interval(Views.pair(expected, actual), interval).forEach(
+			p -> assertEquals(p.getA().get(), p.getB().get()));
+		assertEquals(expected.sparsityPattern().size(), actual.sparsityPattern()
+			.size());
+		assertEquals(positions(expected), positions(actual));
+	}
+
+	@Test
+	public void testSparsityPatternIsLive() {
+		testSparsityPatternIsLive(new SparseRandomAccessIntType(interval));
+		testSparsityPatternIsLive(SparseRandomAccessIntType.blockSparse(interval));
+	}
+
+	private void testSparsityPatternIsLive(SparseRandomAccessIntType image) {
+		IterableRegion<? extends BooleanType<?>> pattern = image
+			.sparsityPattern();
+		RandomAccess<IntType> ra = image.randomAccess();
+		ra.setPosition(new long[] { 4, -3, 7 });
+		ra.get().set(2);
+		assertEquals(1, pattern.size());
+		RandomAccess<? extends BooleanType<?>> pa = pattern.randomAccess();
+		pa.setPosition(ra);
+		assertTrue(pa.get().get());
+		assertEquals(Collections.singleton("[4, -3, 7]"), positions(image));
+		ra.setPosition(new long[] { 3, -5, 6 });
+		ra.get().set(1);
+		assertEquals(2, pattern.size());
+		assertEquals(Arrays.asList("[3, -5, 6]", "[4, -3, 7]"), new ArrayList<>(
+			positions(image)).stream().sorted().collect(Collectors.toList()));
+		ra.setPosition(new long[] { 4, -3, 7 });
+		ra.get().set(0);
+		assertEquals(Collections.singleton("[3, -5, 6]"), positions(image));
+	}
+
+	@Test
+	public void testBlocksAreFreed() {
+		SparseRandomAccessIntType image = SparseRandomAccessIntType.blockSparse(
+			interval);
+		Views.iterable(image).forEach(x -> x.setInteger(7));
+		assertEquals(Intervals.numElements(interval), image.sparsityPattern()
+			.size());
+		Views.iterable(image).forEach(x -> x.setInteger(0));
+		assertEquals(0, image.sparsityPattern().size());
+		assertFalse(image.sparsityPattern().cursor().hasNext());
+	}
+
+	@Test
+	public void testDenseSparseSwitching() {
+		testDenseSparseSwitching(false);
+		testDenseSparseSwitching(true);
+	}
+
+	private void testDenseSparseSwitching(boolean offHeap) {
+		Interval interval = Intervals.createMinSize(0, 0, 16, 16);
+		IntBlocks blocks = new IntBlocks(interval, -1, new int[] { 16, 16 },
+			0.25, offHeap);
+		for (int i = 0; i < 64; i++)
+			set(blocks, i, i);
+		assertEquals(0, blocks.denseBlocks());
+		set(blocks, 64, 64);
+		assertEquals(1, blocks.denseBlocks());
+		for (int i = 0; i < 33; i++)
+			set(blocks, i, -1);
+		assertEquals(1, blocks.denseBlocks());
+		set(blocks, 33, -1);
+		assertEquals(0, blocks.denseBlocks());
+		assertEquals(31, blocks.size());
+		for (int i = 0; i < 256; i++)
+			assertEquals(i > 33 && i <= 64 ? i : -1, blocks.get(0, i));
+	}
+
+	/**
+	 * Sets the pixel with the given index within the single 16x16 tile.
+	 */
+	private static void set(IntBlocks blocks, int innerIndex, int value) {
+		blocks.set(new Point(innerIndex % 16, innerIndex / 16), value);
+	}
+
+	@Test
+	public void testSnapshot() {
+		testSnapshot(new SparseRandomAccessIntType(interval));
+		testSnapshot(SparseRandomAccessIntType.blockSparse(interval, 0,
+			new int[] { 2, 2, 1 }, 0.25));
+		testSnapshot(SparseRandomAccessIntType.blockSparseOffHeap(interval, 0,
+			new int[] { 2, 2, 1 }, 0.25));
+	}
+
+	private void testSnapshot(SparseRandomAccessIntType image) {
+		Views.iterable(image).forEach(x -> x.setInteger(3));
+		SparseRandomAccessIntType snapshot = image.snapshot();
+		Views.iterable(image).forEach(x -> x.setInteger(5));
+		Views.iterable(snapshot).forEach(x -> assertEquals(3, x.getInteger()));
+		Views.iterable(snapshot).forEach(x -> x.setInteger(0));
+		Views.iterable(image).forEach(x -> assertEquals(5, x.getInteger()));
+		assertEquals(0, snapshot.sparsityPattern().size());
+		assertEquals(Intervals.numElements(interval), image.sparsityPattern()
+			.size());
+	}
+
+	@Test
+	public void testIncrementalPosition() {
+		testIncrementalPosition(new SparseRandomAccessIntType(interval));
+		testIncrementalPosition(SparseRandomAccessIntType.blockSparse(interval, 0,
+			new int[] { 2, 2, 1 }));
+	}
+
+	private void testIncrementalPosition(SparseRandomAccessIntType image) {
+		Cursor<IntType> cursor = Views.iterable(image).localizingCursor();
+		int i = 1;
+		while (cursor.hasNext())
+			cursor.next().set(i++);
+		IntervalIndexer2 indexer = new IntervalIndexer2(interval);
+		RandomAccess<IntType> moving = image.randomAccess();
+		Random random = new Random(42);
+		for (int j = 0; j < 1000; j++) {
+			int d = random.nextInt(3);
+			long position = interval.min(d) + random.nextInt((int) interval
+				.dimension(d));
+			switch (random.nextInt(3)) {
+				case 0:
+					moving.setPosition(position, d);
+					break;
+				case 1:
+					moving.move(position - moving.getLongPosition(d), d);
+					break;
+				default:
+					if (moving.getLongPosition(d) < interval.max(d)) moving.fwd(d);
+					else moving.bck(d);
+			}
+			int expected = (int) indexer.positionToIndex(moving) + 1;
+			assertEquals(expected, moving.get().get());
+			assertEquals(expected, moving.copyRandomAccess().get().get());
+		}
+	}
+
+	@Test
+	public void testConcurrentUpdate() throws Exception {
+		Interval interval = Intervals.createMinSize(0, 0, 256, 256);
+		SparseRandomAccessIntType image = SparseRandomAccessIntType.blockSparse(
+			interval);
+		int numThreads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int t = 0; t < numThreads; t++)
+			futures.add(executor.submit(() -> {
+				Cursor<?> cursor = Views.iterable(image).localizingCursor();
+				while (cursor.hasNext()) {
+					cursor.fwd();
+					image.update(cursor, x -> x + 1);
+				}
+			}));
+		for (Future<?> future : futures)
+			future.get();
+		executor.shutdown();
+		Views.iterable(image).forEach(x -> assertEquals(numThreads, x
+			.getInteger()));
+		assertEquals(Intervals.numElements(interval), image.sparsityPattern()
+			.size());
+	}
+
+	private Set<String> positions(SparseRandomAccessIntType image) {
+		Set<String> result = new HashSet<>();
+		Cursor<?> cursor = image.sparsityPattern().cursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			long[] position = new long[cursor.numDimensions()];
+			cursor.localize(position);
+			result.add(Arrays.toString(position));
+		}
+		return result;
+	}
 }
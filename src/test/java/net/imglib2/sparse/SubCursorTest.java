@@ -0,0 +1,106 @@
+
+package net.imglib2.sparse;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.roi.IterableRegion;
+import net.imglib2.type.BooleanType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.util.Intervals;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class SubCursorTest {
+
+	private final Interval interval = Intervals.createMinSize(-3, 5, 2, 300,
+		200, 4);
+
+	@Test
+	public void testSparseIterableRegion() {
+		SparseIterableRegion region = new SparseIterableRegion(interval);
+		fill(region.randomAccess());
+		testRegion(region);
+	}
+
+	@Test
+	public void testBitmapIterableRegion() {
+		BitmapIterableRegion region = new BitmapIterableRegion(interval);
+		fill(region.randomAccess());
+		testRegion(region);
+	}
+
+	@Test
+	public void testBlockSparsityPattern() {
+		SparseRandomAccessIntType image = SparseRandomAccessIntType.blockSparse(
+			interval);
+		RandomAccess<IntType> ra = image.randomAccess();
+		Random random = new Random(42);
+		for (int i = 0; i < 50000; i++) {
+			setRandomPosition(ra, random);
+			ra.get().set(1);
+		}
+		testRegion(image.sparsityPattern());
+	}
+
+	private void fill(RandomAccess<? extends BooleanType<?>> ra) {
+		Random random = new Random(42);
+		for (int i = 0; i < 50000; i++) {
+			setRandomPosition(ra, random);
+			ra.get().set(true);
+		}
+	}
+
+	private void setRandomPosition(RandomAccess<?> ra, Random random) {
+		for (int d = 0; d < interval.numDimensions(); d++)
+			ra.setPosition(interval.min(d) + random.nextInt((int) interval
+				.dimension(d)), d);
+	}
+
+	private void testRegion(IterableRegion<?> region) {
+		List<String> expected = positions(region.cursor());
+		assertEquals(region.size(), expected.size());
+		List<String> actual = new ArrayList<>();
+		for (Cursor<?> chunk : SubCursor.split(region.cursor(), region.size(), 7))
+			actual.addAll(positions(chunk));
+		assertEquals(expected, actual);
+		testJumpAndCopy(region, expected);
+	}
+
+	private void testJumpAndCopy(IterableRegion<?> region,
+		List<String> expected)
+	{
+		Random random = new Random(42);
+		for (int i = 0; i < 20; i++) {
+			long steps = 1 + random.nextInt(expected.size());
+			Cursor<?> cursor = region.cursor();
+			cursor.jumpFwd(steps);
+			assertEquals(expected.get((int) steps - 1), position(cursor));
+			List<String> rest = expected.subList((int) steps, expected.size());
+			Cursor<?> copy = cursor.copyCursor();
+			assertEquals(rest, positions(copy));
+			assertEquals(rest, positions(cursor));
+		}
+	}
+
+	private static List<String> positions(Cursor<?> cursor) {
+		List<String> result = new ArrayList<>();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			result.add(position(cursor));
+		}
+		return result;
+	}
+
+	private static String position(Cursor<?> cursor) {
+		long[] position = new long[cursor.numDimensions()];
+		cursor.localize(position);
+		return Arrays.toString(position);
+	}
+}